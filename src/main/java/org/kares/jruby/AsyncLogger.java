@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous logging - messages are placed in a bounded (ring) buffer and
+ * written in batches by a single background (daemon) thread.
+ *
+ * When the buffer is full messages are either dropped (and counted) or the
+ * logging thread blocks until there's space, depending on the policy.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class AsyncLogger implements Runnable {
+
+    /**
+     * Where the (batched) log entries end up, might be implemented in Ruby.
+     */
+    public interface Sink {
+
+        void write(List<Entry> entries) ;
+
+    }
+
+    public static class Entry {
+
+        private final Sink sink;
+        private final int level;
+        private final String message;
+        private final Throwable error;
+
+        Entry(final Sink sink, final int level, final String message, final Throwable error) {
+            this.sink = sink; this.level = level;
+            this.message = message; this.error = error;
+        }
+
+        public int getLevel() { return level; }
+
+        public String getMessage() { return message; }
+
+        public Throwable getError() { return error; }
+
+    }
+
+    private static final Entry STOP = new Entry(null, 0, null, null);
+
+    static final int MAX_BATCH_SIZE = 256;
+
+    // the writer checks for a stop (e.g. if STOP did not fit into the buffer)
+    private static final long POLL_TIMEOUT = 100;
+
+    private final BlockingQueue<Entry> buffer;
+    private final boolean block;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * @param capacity the buffer size
+     * @param block whether to block (or drop) messages when the buffer is full
+     */
+    public AsyncLogger(final int capacity, final boolean block) {
+        this.buffer = new ArrayBlockingQueue<Entry>(capacity);
+        this.block = block;
+    }
+
+    public synchronized void start(final String name) {
+        if ( thread != null ) return;
+        stopped = false;
+        final Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        this.thread = thread;
+    }
+
+    /**
+     * Stop the background thread, pending messages are written before it exits.
+     * Messages still buffered once it exited are written by the calling thread.
+     * @param timeout max millis to wait for pending messages to be written
+     */
+    public void stop(final long timeout) {
+        final Thread thread;
+        synchronized (this) {
+            if ( ( thread = this.thread ) == null ) return;
+            this.thread = null; stopped = true;
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        try {
+            // a full buffer (with a slow writer) does not block stopping
+            buffer.offer(STOP, timeout, TimeUnit.MILLISECONDS);
+            thread.join( Math.max(deadline - System.currentTimeMillis(), 1) );
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if ( ! thread.isAlive() ) { // messages that raced with the stop
+            final List<Entry> batch = new ArrayList<Entry>(buffer.size());
+            buffer.drainTo(batch); batch.remove(STOP);
+            if ( ! batch.isEmpty() ) write(batch);
+        }
+    }
+
+    public boolean isStarted() {
+        return thread != null;
+    }
+
+    /**
+     * Log a message (asynchronously).
+     * @param sink
+     * @param level
+     * @param message
+     * @param error (optional)
+     * @return false if the logger is not running (message needs to be written by caller)
+     */
+    public boolean log(final Sink sink, final int level, final String message, final Throwable error) {
+        final Thread thread = this.thread;
+        if ( stopped || thread == null || Thread.currentThread() == thread ) return false;
+        final Entry entry = new Entry(sink, level, message, error);
+        if ( block ) {
+            try {
+                buffer.put(entry);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        else if ( ! buffer.offer(entry) ) {
+            dropped.incrementAndGet();
+            return true;
+        }
+        // stopped meanwhile - unless already written the caller writes it
+        if ( stopped && buffer.remove(entry) ) return false;
+        return true;
+    }
+
+    /**
+     * @return number of messages dropped (due a full buffer)
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of messages written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    public int getPending() {
+        return buffer.size();
+    }
+
+    public void run() {
+        final List<Entry> batch = new ArrayList<Entry>(MAX_BATCH_SIZE);
+        boolean stop = false;
+        while ( ! stop ) {
+            final Entry entry;
+            try {
+                entry = buffer.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                continue; // only stop on STOP
+            }
+            if ( entry == null ) {
+                if ( stopped ) break; // STOP did not fit into the buffer
+                continue;
+            }
+            batch.add(entry);
+            buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+            if ( batch.remove(STOP) ) {
+                stop = true; buffer.drainTo(batch);
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(final List<Entry> batch) {
+        int start = 0; final int size = batch.size();
+        for ( int i = 1; i <= size; i++ ) { // a run of entries with the same sink
+            if ( i == size || batch.get(i).sink != batch.get(start).sink ) {
+                try {
+                    batch.get(start).sink.write( batch.subList(start, i) );
+                }
+                catch (RuntimeException e) {
+                    System.err.println("[" + getClass().getName() + "] failed writing log: " + e);
+                }
+                written.addAndGet(i - start);
+                start = i;
+            }
+        }
+    }
+
+}
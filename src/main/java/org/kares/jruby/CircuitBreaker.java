@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.Random;
+
+/**
+ * A circuit breaker (around backend access e.g. reserving jobs) shared by all
+ * worker threads of a manager.
+ *
+ * After a number of consecutive failures the breaker opens, workers wait
+ * (instead of polling the backend each on it's own) until a (jittered) probe
+ * time when a single worker is let through (half-open). A successful probe
+ * closes the breaker and all waiting workers resume at once, a failed one
+ * re-opens it with a (doubled) back-off. A probe not completed within the probe
+ * timeout (e.g. the probing thread died) is considered lost and another worker
+ * is let through.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class CircuitBreaker {
+
+    public static enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final WorkerManager manager;
+    private final int threshold;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final long probeTimeout;
+
+    private final Random random = new Random();
+
+    private volatile State state = State.CLOSED;
+    private volatile int failures;
+    private long backoff;
+    private long probeAt;
+
+    /**
+     * @param manager (used for logging)
+     * @param threshold consecutive failures to open the breaker
+     * @param minBackoff (initial) open time in millis
+     * @param maxBackoff maximum open time in millis
+     */
+    public CircuitBreaker(final WorkerManager manager, final int threshold,
+        final long minBackoff, final long maxBackoff) {
+        this(manager, threshold, minBackoff, maxBackoff, minBackoff);
+    }
+
+    /**
+     * @param manager (used for logging)
+     * @param threshold consecutive failures to open the breaker
+     * @param minBackoff (initial) open time in millis
+     * @param maxBackoff maximum open time in millis
+     * @param probeTimeout millis after which a (half-open) probe is considered lost
+     */
+    public CircuitBreaker(final WorkerManager manager, final int threshold,
+        final long minBackoff, final long maxBackoff, final long probeTimeout) {
+        this.manager = manager;
+        this.threshold = Math.max(threshold, 1);
+        this.minBackoff = minBackoff;
+        this.maxBackoff = Math.max(maxBackoff, minBackoff);
+        this.probeTimeout = Math.max(probeTimeout, 1);
+        this.backoff = minBackoff;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return true if the backend might be accessed (the breaker is closed or
+     * the calling thread is to probe the backend)
+     */
+    public boolean tryAcquire() {
+        if ( state == State.CLOSED ) return true; // fast-path (no locking)
+        synchronized (this) {
+            if ( state == State.CLOSED ) return true;
+            // OPEN or HALF_OPEN (someone else probing - unless the probe got lost)
+            final long now = System.currentTimeMillis();
+            if ( now < probeAt ) return false;
+            if ( state == State.HALF_OPEN ) log("probe timed out - probing again");
+            state = State.HALF_OPEN; // let a single probe through
+            probeAt = now + probeTimeout;
+            return true;
+        }
+    }
+
+    /**
+     * Waits while the breaker is open (until it closes or a probe is due).
+     * @param timeout maximum wait time in millis
+     * @return same as {@link #tryAcquire()} after waiting
+     * @throws InterruptedException
+     */
+    public boolean await(final long timeout) throws InterruptedException {
+        if ( tryAcquire() ) return true;
+        final long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while ( true ) {
+                if ( tryAcquire() ) return true;
+                final long now = System.currentTimeMillis();
+                long wait = deadline - now;
+                if ( wait <= 0 ) return false;
+                if ( state != State.CLOSED ) wait = Math.min(wait, Math.max(probeAt - now, 1));
+                wait(wait);
+            }
+        }
+    }
+
+    /**
+     * Record a successful backend access.
+     */
+    public void recordSuccess() {
+        if ( state == State.CLOSED && failures == 0 ) return; // fast-path
+        synchronized (this) {
+            final State previous = state;
+            state = State.CLOSED; failures = 0; backoff = minBackoff;
+            if ( previous != State.CLOSED ) {
+                log("closed - backend is back");
+                notifyAll(); // all waiting workers resume
+            }
+        }
+    }
+
+    /**
+     * Record a failed backend access.
+     * @param error a short error message
+     */
+    public synchronized void recordFailure(final String error) {
+        switch ( state ) {
+            case CLOSED :
+                if ( ++failures < threshold ) return;
+                open(error);
+                break;
+            case HALF_OPEN : // failed probe
+                backoff = Math.min(backoff * 2, maxBackoff);
+                open(error);
+                break;
+            default : // OPEN - already open
+        }
+    }
+
+    long getBackoff() {
+        return backoff;
+    }
+
+    private void open(final String error) {
+        // jitter (+/- 25%) so that (multiple) managers do not probe in sync
+        final long delay = backoff - backoff / 4 + (long) ( random.nextDouble() * ( backoff / 2 ) );
+        probeAt = System.currentTimeMillis() + delay;
+        state = State.OPEN;
+        log("opened after " + failures + " failure(s) - probing again in " + delay + "ms (" + error + ")");
+    }
+
+    private void log(final String message) {
+        if ( manager != null ) {
+            manager.log("[" + getClass().getName() + "] " + message);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Properties;
+
+import org.jruby.Ruby;
+import org.jruby.exceptions.MainExitException;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * A child (JVM) process performing jobs for an {@link IsolatedWorkerPool}.
+ *
+ * Boots the application (same as the {@link StandaloneWorkerManager} would)
+ * and performs job payloads using <code>JRuby::Rack::Worker::Isolated</code>.
+ *
+ * Usage: IsolatedWorker [root] [port] [index] (the token is read from the
+ * <code>JRUBY_WORKER_ISOLATED_TOKEN</code> environment variable)
+ *
+ * Heartbeats report the process' resident memory (RSS) thus native (off-heap)
+ * leaks are noticed as well, the used heap is reported where RSS is unknown.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class IsolatedWorker {
+
+    public static void main(final String[] args) throws Exception {
+        final String token = System.getenv(IsolatedWorkerPool.TOKEN_ENV);
+        if ( args.length < 3 || token == null ) {
+            System.err.println("usage: " + IsolatedWorker.class.getName() + " root port index" +
+                " (with " + IsolatedWorkerPool.TOKEN_ENV + " set)");
+            System.exit(1);
+        }
+        final File root = new File(args[0]);
+        final int port = Integer.parseInt(args[1]);
+        final int index = Integer.parseInt(args[2]);
+
+        final StandaloneWorkerManager manager = new StandaloneWorkerManager(root, new Properties());
+        final Ruby runtime = manager.getRuntime(); // boots the application
+        runtime.evalScriptlet("require 'jruby/rack/worker/isolated'");
+        final IRubyObject isolated = runtime.evalScriptlet("JRuby::Rack::Worker::Isolated");
+
+        final Socket socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        final ByteArrayOutputStream hello = new ByteArrayOutputStream(32);
+        final DataOutputStream helloOut = new DataOutputStream(hello);
+        helloOut.writeInt(index); helloOut.writeUTF(token);
+        IsolatedWorkerPool.writeFrame(out, IsolatedWorkerPool.HELLO, hello.toByteArray());
+
+        final Thread heartbeat = new Thread("isolated-worker-heartbeat") {
+            @Override
+            public void run() {
+                final File status = new File("/proc/self/status");
+                try {
+                    while ( true ) {
+                        final long used = usedMemory(status);
+                        synchronized (out) {
+                            IsolatedWorkerPool.writeFrame(out, IsolatedWorkerPool.HEARTBEAT, IsolatedWorkerPool.longPayload(used));
+                        }
+                        Thread.sleep(IsolatedWorkerPool.HEARTBEAT_INTERVAL);
+                    }
+                }
+                catch (InterruptedException e) { /* stopping */ }
+                catch (IOException e) { /* parent gone */ }
+            }
+        };
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        try {
+            while ( true ) {
+                final int length = in.readInt();
+                final byte type = in.readByte();
+                final byte[] payload = IsolatedWorkerPool.readPayload(in, length);
+                if ( type == IsolatedWorkerPool.STOP ) break;
+                if ( type != IsolatedWorkerPool.JOB ) throw new IOException("unexpected frame type: " + type);
+
+                byte[] result; byte resultType = IsolatedWorkerPool.RESULT;
+                try {
+                    result = (byte[]) JavaEmbedUtils.invokeMethod(runtime, isolated, "perform_payload",
+                        new Object[] { payload }, byte[].class);
+                }
+                catch (RaiseException e) {
+                    resultType = IsolatedWorkerPool.ERROR;
+                    result = String.valueOf(e.getMessage()).getBytes("UTF-8");
+                }
+                catch (MainExitException e) { // job called exit!
+                    System.exit(e.getStatus());
+                    return;
+                }
+                catch (RuntimeException e) {
+                    resultType = IsolatedWorkerPool.ERROR;
+                    result = e.toString().getBytes("UTF-8");
+                }
+                synchronized (out) { IsolatedWorkerPool.writeFrame(out, resultType, result); }
+            }
+        }
+        catch (EOFException e) { /* parent closed the connection */ }
+        finally {
+            heartbeat.interrupt();
+            socket.close();
+            manager.shutdown();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @param status the process status file (<code>/proc/self/status</code>)
+     * @return resident memory (bytes) or the used heap if RSS is not available
+     */
+    static long usedMemory(final File status) {
+        final long rss = residentMemory(status);
+        if ( rss >= 0 ) return rss;
+        final Runtime jvm = Runtime.getRuntime();
+        return jvm.totalMemory() - jvm.freeMemory();
+    }
+
+    /**
+     * @param status the process status file (<code>/proc/self/status</code>)
+     * @return the VmRSS value (in bytes) or -1 if not available
+     */
+    static long residentMemory(final File status) {
+        if ( ! status.isFile() ) return -1;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(status));
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                if ( line.startsWith("VmRSS:") ) { // e.g. "VmRSS:	  123456 kB"
+                    final String value = line.substring(6).trim();
+                    final int space = value.indexOf(' ');
+                    return Long.parseLong( space > 0 ? value.substring(0, space) : value ) * 1024;
+                }
+            }
+        }
+        catch (IOException e) { /* fallback */ }
+        catch (NumberFormatException e) { /* fallback */ }
+        finally {
+            if ( reader != null ) {
+                try { reader.close(); } catch (IOException e) { /* ignore */ }
+            }
+        }
+        return -1;
+    }
+
+}
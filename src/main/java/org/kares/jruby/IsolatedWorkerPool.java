@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performs (heavy or thread-unsafe) jobs in child JVM processes, isolated from
+ * the (web) JVM the manager runs in.
+ *
+ * Children ({@link IsolatedWorker}) connect back over a loopback socket, jobs
+ * (opaque payloads) and results are exchanged as frames :
+ * <code>[int length][byte type][payload]</code>. A child authenticates with a
+ * (random) token passed in it's environment, never on the command line.
+ * Children send heartbeats with their resident memory, a child not heard of for
+ * a while (or one that exited) gets re-spawned, a child above the memory
+ * threshold is restarted once idle.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class IsolatedWorkerPool {
+
+    static final byte HELLO = 1, JOB = 2, RESULT = 3, ERROR = 4, HEARTBEAT = 5, STOP = 6;
+
+    static final long HEARTBEAT_INTERVAL = 1000;
+    static final int HANDSHAKE_TIMEOUT = 5000;
+    static final String TOKEN_ENV = "JRUBY_WORKER_ISOLATED_TOKEN";
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    static final Object DIED = new Object();
+
+    class Child {
+
+        final int index;
+        volatile Process process;
+        volatile Socket socket;
+        volatile int connection; // incremented on each (re-)connect
+        volatile DataOutputStream out;
+        volatile long lastHeartbeat;
+        volatile long usedMemory;
+        volatile boolean recycle;
+        final BlockingQueue<Object> results = new ArrayBlockingQueue<Object>(1);
+
+        Child(final int index) { this.index = index; }
+
+        boolean isConnected() { return out != null; }
+
+    }
+
+    private final WorkerManager manager;
+    private final List<String> command;
+    private final long maxMemory;
+    private final Child[] children;
+
+    private final String token = newToken();
+    private final BlockingQueue<Child> idle = new LinkedBlockingQueue<Child>();
+
+    private ServerSocket server;
+    private String threadName;
+    private Thread acceptor, supervisor;
+    private volatile boolean stopped;
+
+    /**
+     * @param manager (used for logging)
+     * @param size number of child processes
+     * @param command the command to start a child (without the
+     * {@link IsolatedWorker} arguments e.g. java -cp ... org.kares.jruby.IsolatedWorker)
+     * @param maxMemory resident memory (bytes) after which a child is restarted (0 for no limit)
+     */
+    public IsolatedWorkerPool(final WorkerManager manager, final int size,
+        final List<String> command, final long maxMemory) {
+        this.manager = manager;
+        this.command = new ArrayList<String>(command);
+        this.maxMemory = maxMemory;
+        this.children = new Child[ Math.max(size, 1) ];
+        for ( int i = 0; i < children.length; i++ ) children[i] = new Child(i);
+    }
+
+    public synchronized void start(final String threadName) throws IOException {
+        server = new ServerSocket(0, children.length, InetAddress.getByName("127.0.0.1"));
+        this.threadName = threadName;
+        stopped = false;
+        for ( final Child child : children ) spawn(child);
+
+        acceptor = new Thread(threadName + "-acceptor") {
+            @Override
+            public void run() { accept(); }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        supervisor = new Thread(threadName + "-supervisor") {
+            @Override
+            public void run() { supervise(); }
+        };
+        supervisor.setDaemon(true);
+        supervisor.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        try { if ( server != null ) server.close(); }
+        catch (IOException e) { /* ignore */ }
+        if ( supervisor != null ) supervisor.interrupt();
+        for ( final Child child : children ) {
+            terminate(child, true);
+            child.results.offer(DIED); // wake up (a) waiting submitter
+        }
+        idle.clear();
+    }
+
+    /**
+     * Performs a job in a child process.
+     * @param payload the job payload
+     * @param timeout maximum wait time (millis) for a child to become available
+     * @return the result payload
+     * @throws IllegalStateException if no child is available, the child died
+     * or the job failed (with the child's error message)
+     * @throws InterruptedException
+     */
+    public byte[] submit(final byte[] payload, final long timeout) throws InterruptedException {
+        if ( stopped ) throw new IllegalStateException("isolated workers stopped");
+        final Child child = idle.poll(timeout, TimeUnit.MILLISECONDS);
+        if ( child == null ) throw new IllegalStateException("no isolated worker available (within " + timeout + "ms)");
+        boolean healthy = false;
+        try {
+            child.results.clear();
+            final DataOutputStream out = child.out;
+            if ( out == null ) throw new IllegalStateException("isolated worker " + child.index + " disconnected");
+            try {
+                synchronized (out) { writeFrame(out, JOB, payload); }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("isolated worker " + child.index + " failed : " + e, e);
+            }
+            final int connection = child.connection;
+            Object result;
+            while ( ( result = child.results.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS) ) == null ) {
+                // the reader offers DIED, still do not wait forever if that got lost
+                if ( stopped || ! child.isConnected() || child.connection != connection ) {
+                    result = DIED; break;
+                }
+            }
+            if ( result == DIED ) throw new IllegalStateException("isolated worker " + child.index + " died");
+            healthy = true;
+            if ( result instanceof String ) throw new IllegalStateException((String) result);
+            return (byte[]) result;
+        }
+        finally {
+            if ( healthy && ! child.recycle && ! stopped ) idle.offer(child);
+            else if ( ! stopped ) restart(child);
+        }
+    }
+
+    public int getSize() {
+        return children.length;
+    }
+
+    /**
+     * @return number of connected children waiting for a job
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    private void accept() {
+        while ( ! stopped ) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            }
+            catch (IOException e) {
+                if ( ! stopped ) log("accept failed : " + e);
+                return;
+            }
+            // a (local) client not sending its hello must not block others
+            final Thread connection = new Thread(threadName + "-handshake") {
+                @Override
+                public void run() { handshake(socket); }
+            };
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void handshake(final Socket socket) {
+        final Child child; final DataInputStream in;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            in = new DataInputStream(socket.getInputStream());
+            final DataInputStream hello = new DataInputStream(
+                new ByteArrayInputStream( readFrame(in, HELLO) )
+            );
+            final int index = hello.readInt();
+            final byte[] token = hello.readUTF().getBytes("UTF-8");
+            if ( index < 0 || index >= children.length ||
+                 ! MessageDigest.isEqual(this.token.getBytes("UTF-8"), token) ) {
+                socket.close(); return;
+            }
+            socket.setSoTimeout(0);
+            child = children[index];
+        }
+        catch (IOException e) {
+            log("handshake failed : " + e);
+            try { socket.close(); } catch (IOException ex) { /* ignore */ }
+            return;
+        }
+        final int connection;
+        try {
+            synchronized (child) { // not while being restarted
+                if ( stopped ) {
+                    socket.close(); return;
+                }
+                connection = ++child.connection;
+                child.socket = socket;
+                child.lastHeartbeat = System.currentTimeMillis();
+                child.out = new DataOutputStream(socket.getOutputStream());
+            }
+        }
+        catch (IOException e) {
+            log("handshake failed : " + e);
+            try { socket.close(); } catch (IOException ex) { /* ignore */ }
+            return;
+        }
+        Thread.currentThread().setName(threadName + "-reader-" + child.index);
+        idle.offer(child);
+        read(child, connection, in); // the handshake thread keeps reading
+    }
+
+    private void read(final Child child, final int connection, final DataInputStream in) {
+        try {
+            while ( true ) {
+                final int length = in.readInt();
+                final byte type = in.readByte();
+                final byte[] payload = readPayload(in, length);
+                switch ( type ) {
+                    case HEARTBEAT :
+                        child.usedMemory = new DataInputStream(
+                            new ByteArrayInputStream(payload)
+                        ).readLong();
+                        child.lastHeartbeat = System.currentTimeMillis();
+                        if ( maxMemory > 0 && child.usedMemory > maxMemory ) child.recycle = true;
+                        break;
+                    case RESULT :
+                        child.results.offer(payload); break;
+                    case ERROR :
+                        child.results.offer(new String(payload, "UTF-8")); break;
+                    default :
+                        throw new IOException("unexpected frame type: " + type);
+                }
+            }
+        }
+        catch (IOException e) { // EOF - child exited (or got killed)
+            if ( ! stopped && ! ( e instanceof EOFException || e instanceof SocketException ) ) {
+                log("isolated worker " + child.index + " read failed : " + e);
+            }
+        }
+        finally {
+            // even if terminated (a busy child) unless already re-connected
+            if ( child.connection == connection ) {
+                child.out = null;
+                child.results.offer(DIED);
+            }
+        }
+    }
+
+    private void supervise() {
+        while ( ! stopped ) {
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            for ( final Child child : children ) {
+                final Process process = child.process;
+                boolean exited = false;
+                if ( process != null ) {
+                    try { process.exitValue(); exited = true; }
+                    catch (IllegalThreadStateException e) { /* running */ }
+                }
+                final boolean stale = child.isConnected() && now - child.lastHeartbeat > 5 * HEARTBEAT_INTERVAL;
+                if ( exited || stale ) {
+                    if ( idle.remove(child) || ! child.isConnected() ) restart(child);
+                    else terminate(child, false); // busy - the submitter restarts it
+                }
+                else if ( child.recycle && idle.remove(child) ) {
+                    log("restarting isolated worker " + child.index + " (used memory " + ( child.usedMemory >> 20 ) + "MB)");
+                    restart(child);
+                }
+            }
+        }
+    }
+
+    private void restart(final Child child) {
+        synchronized (child) {
+            terminate(child, true);
+            if ( stopped ) return;
+            try {
+                spawn(child);
+            }
+            catch (IOException e) {
+                log("failed to re-spawn isolated worker " + child.index + " : " + e);
+            }
+        }
+    }
+
+    private void terminate(final Child child, final boolean graceful) {
+        final DataOutputStream out = child.out;
+        if ( graceful && out != null ) {
+            try {
+                synchronized (out) { writeFrame(out, STOP, new byte[0]); }
+            }
+            catch (IOException e) { /* ignore */ }
+        }
+        child.out = null;
+        final Socket socket = child.socket;
+        if ( socket != null ) {
+            try { socket.close(); } catch (IOException e) { /* ignore */ }
+        }
+        final Process process = child.process;
+        if ( process != null ) process.destroy();
+        child.socket = null; child.process = null;
+    }
+
+    private void spawn(final Child child) throws IOException {
+        final List<String> command = new ArrayList<String>(this.command);
+        command.add( Integer.toString(server.getLocalPort()) );
+        command.add( Integer.toString(child.index) );
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().put(TOKEN_ENV, token); // not visible (in ps) as an argument
+        builder.redirectErrorStream(true);
+        child.recycle = false; child.usedMemory = 0;
+        child.results.clear();
+        final Process process = builder.start();
+        child.process = process;
+        final Thread output = new Thread(threadName + "-output-" + child.index) {
+            @Override
+            public void run() { // child output goes to the manager's log
+                try {
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                    String line;
+                    while ( ( line = reader.readLine() ) != null ) log("[" + child.index + "] " + line);
+                }
+                catch (IOException e) { /* process exited */ }
+            }
+        };
+        output.setDaemon(true);
+        output.start();
+    }
+
+    private static String newToken() {
+        final byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        final StringBuilder token = new StringBuilder(32);
+        for ( final byte b : bytes ) token.append( Integer.toHexString((b & 0xFF) | 0x100).substring(1) );
+        return token.toString();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    static void writeFrame(final DataOutputStream out, final byte type, final byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.flush();
+    }
+
+    static byte[] readFrame(final DataInputStream in, final byte expectedType) throws IOException {
+        final int length = in.readInt();
+        final byte type = in.readByte();
+        if ( type != expectedType ) throw new IOException("unexpected frame type: " + type);
+        return readPayload(in, length);
+    }
+
+    static byte[] readPayload(final DataInputStream in, final int length) throws IOException {
+        if ( length < 0 || length > MAX_FRAME ) throw new IOException("invalid frame length: " + length);
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    static byte[] longPayload(final long value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        try {
+            new DataOutputStream(bytes).writeLong(value);
+        }
+        catch (IOException e) { throw new IllegalStateException(e); } // never happens
+        return bytes.toByteArray();
+    }
+
+    private void log(final String message) {
+        if ( manager != null ) {
+            manager.log("[" + getClass().getName() + "] " + message);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-JVM job completion (futures) keyed by job id, for (request) threads to
+ * await jobs (performed by workers in the same JVM) instead of polling.
+ *
+ * Workers complete a job once it succeeded or failed for good. Completions no
+ * one awaited (yet) are kept for a retention period, thus awaiting a job that
+ * completed right after it has been enqueued does not miss it.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobCompletions {
+
+    /**
+     * A (future) job completion.
+     */
+    public static class Completion {
+
+        private final String jobId;
+        private final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger waiters = new AtomicInteger();
+        private volatile String error;
+        private volatile long completedAt;
+
+        Completion(final String jobId) { this.jobId = jobId; }
+
+        public String getJobId() { return jobId; }
+
+        public boolean isDone() { return done.getCount() == 0; }
+
+        /**
+         * @return true if the job completed successfully
+         */
+        public boolean isSuccess() { return isDone() && error == null; }
+
+        /**
+         * @return the failure (message) or null if the job succeeded
+         */
+        public String getError() { return error; }
+
+        boolean complete(final String error) {
+            synchronized (this) {
+                if ( isDone() ) return false;
+                this.error = error;
+                this.completedAt = System.currentTimeMillis();
+                done.countDown();
+            }
+            return true;
+        }
+
+        boolean await(final long timeout) throws InterruptedException {
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "#<Completion job=" + jobId + ( isDone() ? ( error == null ? " success" : " failed" ) : " pending" ) + ">";
+        }
+
+    }
+
+    private final long retention;
+
+    private final ConcurrentMap<String, Completion> completions = new ConcurrentHashMap<String, Completion>();
+    private final ConcurrentLinkedQueue<Completion> completed = new ConcurrentLinkedQueue<Completion>();
+
+    /**
+     * @param retention how long (millis) to keep completions no one awaits
+     */
+    public JobCompletions(final long retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Awaits a job's completion.
+     * @param jobId
+     * @param timeout in millis
+     * @return the completion or null if the job did not complete in time
+     * @throws InterruptedException
+     */
+    public Completion await(final Object jobId, final long timeout) throws InterruptedException {
+        final String id = jobId.toString();
+        final Completion completion = getCompletion(id);
+        completion.waiters.incrementAndGet();
+        try {
+            return completion.await(timeout) ? completion : null;
+        }
+        finally {
+            // awaited (or given up on) - no need to keep unless awaited by others
+            if ( completion.waiters.decrementAndGet() == 0 ) completions.remove(id, completion);
+        }
+    }
+
+    /**
+     * Complete a job (wakes up threads awaiting it).
+     * @param jobId
+     * @param error null if the job succeeded
+     * @return true unless the job has already been completed
+     */
+    public boolean complete(final Object jobId, final String error) {
+        final Completion completion = getCompletion(jobId.toString());
+        final boolean completedNow = completion.complete(error);
+        if ( completedNow ) completed.offer(completion);
+        expire(System.currentTimeMillis());
+        return completedNow;
+    }
+
+    /**
+     * @return number of tracked (pending or retained) completions
+     */
+    public int size() {
+        return completions.size();
+    }
+
+    private Completion getCompletion(final String id) {
+        Completion completion = completions.get(id);
+        if ( completion == null ) {
+            final Completion newCompletion = new Completion(id);
+            completion = completions.putIfAbsent(id, newCompletion);
+            if ( completion == null ) completion = newCompletion;
+        }
+        return completion;
+    }
+
+    void expire(final long now) {
+        Completion completion;
+        while ( ( completion = completed.peek() ) != null ) {
+            if ( now - completion.completedAt < retention ) break;
+            if ( completed.remove(completion) ) completions.remove(completion.jobId, completion);
+        }
+    }
+
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only (memory mapped) journal of {@link JobQueue} changes.
+ *
+ * The journal is split into fixed size segment files, writers reserve space
+ * in the current segment concurrently (no locking unless a new segment needs
+ * to be created). A record is only considered when it's magic has been written
+ * (last) and it's checksum matches, records are 8-byte aligned thus replay
+ * scans past torn records as well as space reserved by writers that did not
+ * get to write (e.g. on a crash). Segments get deleted once all of their jobs
+ * have been removed (and all older segments have been deleted), each segment
+ * starts with a mark of the highest job id appended before, thus job ids are
+ * not re-used after a restart. Live jobs of the oldest segment get re-appended
+ * (compacted) once more segments pile up, thus a single (e.g. far scheduled)
+ * job does not keep all later segments around.
+ *
+ * Record layout : [int magic][int length][int crc][byte type][long id][data]
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobJournal {
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte MARK = 3; // (job id) high-water mark
+
+    private static final int MAGIC = 0x4A524A4A;
+    private static final int HEADER = 4 + 4 + 4; // magic + length + crc
+    private static final int ALIGN = 8;
+
+    private static final int COMPACT_SEGMENTS = 2; // compact the oldest when more
+
+    private static final Method FORCE_RANGE; // MappedByteBuffer#force(int, int) on Java 13+
+    static {
+        Method force;
+        try {
+            force = MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        }
+        catch (NoSuchMethodException e) { force = null; }
+        FORCE_RANGE = force;
+    }
+
+    private static final String PREFIX = "jobs-";
+    private static final String SUFFIX = ".journal";
+
+    static class Segment {
+
+        final File file;
+        final long number;
+        final MappedByteBuffer buffer; // null for replayed segments
+        final AtomicInteger position = new AtomicInteger(0);
+        final AtomicInteger writers = new AtomicInteger(0); // in-flight appends
+        // (live) jobs last appended to this segment
+        final Set<JobQueue.Job> jobs = Collections.newSetFromMap(new ConcurrentHashMap<JobQueue.Job, Boolean>());
+
+        Segment(final File file, final long number, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean sync;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private volatile Segment current;
+    private final AtomicLong highId = new AtomicLong(0);
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private boolean closed;
+
+    /**
+     * @param directory where to keep the journal (segment files)
+     * @param segmentSize segment size in bytes
+     * @param sync whether to force (fsync) each record to the storage device
+     */
+    public JobJournal(final File directory, final int segmentSize, final boolean sync) throws IOException {
+        if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            throw new IOException("could not create directory: " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Reads all existing segments (to be called once before appending).
+     * @return jobs that have not been removed
+     */
+    Collection<JobQueue.Job> replay() {
+        final Map<Long, JobQueue.Job> jobs = new LinkedHashMap<Long, JobQueue.Job>();
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if ( files != null ) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File file1, File file2) {
+                    final long num1 = number(file1), num2 = number(file2);
+                    return num1 < num2 ? -1 : ( num1 == num2 ? 0 : 1 );
+                }
+            });
+            for ( final File file : files ) {
+                final Segment segment = new Segment(file, number(file), null);
+                try {
+                    read(segment, jobs);
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException("failed reading journal: " + file, e);
+                }
+                synchronized (segments) { segments.add(segment); }
+            }
+        }
+        for ( final JobQueue.Job job : jobs.values() ) {
+            ((Segment) job.segment).jobs.add(job);
+        }
+        release();
+        return jobs.values();
+    }
+
+    private void read(final Segment segment, final Map<Long, JobQueue.Job> jobs) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        final ByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        finally {
+            file.close();
+        }
+        final CRC32 crc = new CRC32();
+        int position = 0;
+        while ( position + HEADER <= buffer.limit() ) {
+            final int length = buffer.getInt(position + 4);
+            if ( buffer.getInt(position) != MAGIC ||
+                length <= 0 || position + HEADER + length > buffer.limit() ) {
+                position += ALIGN; continue; // not (yet) written - scan past it
+            }
+            final byte[] body = new byte[length];
+            buffer.position(position + HEADER); buffer.get(body);
+            crc.reset(); crc.update(body, 0, length);
+            if ( (int) crc.getValue() == buffer.getInt(position + 8) ) { // complete
+                buffer.position(position + HEADER);
+                final byte type = buffer.get();
+                final long id = buffer.getLong();
+                if ( type == ADD ) {
+                    final int priority = buffer.getInt();
+                    final long runAt = buffer.getLong();
+                    final long created = buffer.getLong();
+                    final int attempts = buffer.getInt();
+                    final byte[] queue = new byte[ buffer.getShort() ];
+                    buffer.get(queue);
+                    final byte[] payload = new byte[ buffer.getInt() ];
+                    buffer.get(payload);
+                    final JobQueue.Job job = new JobQueue.Job(id, new String(queue, "UTF-8"),
+                        priority, runAt, created, attempts, payload);
+                    job.segment = segment;
+                    jobs.put(id, job);
+                }
+                else if ( type == REMOVE ) {
+                    jobs.remove(id);
+                }
+                if ( id > highId.get() ) highId.set(id); // ADD, REMOVE or MARK
+            }
+            position += aligned(HEADER + length);
+        }
+    }
+
+    /**
+     * Append a (newly added) job.
+     * @param job
+     * @throws IOException
+     */
+    void append(final JobQueue.Job job) throws IOException {
+        final byte[] queue = job.queue.getBytes("UTF-8");
+        append(ADD, job.id, queue, job, 1 + 8 + 4 + 8 + 8 + 4 + 2 + queue.length + 4 + job.payload.length);
+    }
+
+    /**
+     * Mark a job as removed (completed).
+     * @param job
+     * @throws IOException
+     */
+    void remove(final JobQueue.Job job) throws IOException {
+        final Segment added;
+        synchronized (job) { // not while being compacted
+            append(REMOVE, job.id, null, null, 1 + 8);
+            job.removed = true;
+            added = (Segment) job.segment;
+        }
+        if ( added != null && added.jobs.remove(job) && added.jobs.isEmpty() ) release();
+    }
+
+    /**
+     * @return the highest job id ever appended (as replayed)
+     */
+    long getHighWaterMark() {
+        return highId.get();
+    }
+
+    /**
+     * Replace a job with a (re-scheduled) one with the same id, the later added
+     * job supersedes the previous one on replay.
+     * @param job
+     * @param replacement
+     * @throws IOException
+     */
+    void replace(final JobQueue.Job job, final JobQueue.Job replacement) throws IOException {
+        final Segment added;
+        synchronized (job) { // not while being compacted
+            append(replacement);
+            job.removed = true; // superseded
+            added = (Segment) job.segment;
+        }
+        if ( added != null && added.jobs.remove(job) && added.jobs.isEmpty() ) release();
+    }
+
+    private void append(final byte type, final long id, final byte[] queue, final JobQueue.Job job,
+        final int length) throws IOException {
+        long high; // before reserving space so that a roll marks it
+        while ( id > ( high = highId.get() ) && ! highId.compareAndSet(high, id) ) continue;
+        final int size = aligned(HEADER + length);
+        if ( size > segmentSize ) {
+            throw new IOException("record size " + size + " exceeds journal segment size " + segmentSize);
+        }
+        while (true) {
+            final Segment segment = current;
+            if ( segment != null ) { // reserve space in the current segment
+                // a writer (before reserving) keeps the segment from being released
+                segment.writers.incrementAndGet();
+                try {
+                    final int position = segment.position.getAndAdd(size);
+                    if ( position + size <= segmentSize ) {
+                        if ( job != null ) {
+                            job.segment = segment; segment.jobs.add(job);
+                        }
+                        write(segment.buffer.duplicate(), position, length, type, id, queue, job);
+                        if ( sync ) force(segment.buffer, position, size);
+                        return;
+                    }
+                }
+                finally {
+                    if ( segment.writers.decrementAndGet() == 0 &&
+                        segment != current && segment.jobs.isEmpty() ) release();
+                }
+            }
+            boolean rolled = false;
+            synchronized (segments) { // segment full - roll a new one
+                if ( closed ) throw new IOException("journal closed");
+                if ( current == segment ) {
+                    current = newSegment(); release(); // previous might be done
+                    rolled = segments.size() > COMPACT_SEGMENTS;
+                }
+            }
+            if ( rolled ) {
+                try { compact(); }
+                catch (IOException e) { /* (a full disk) compacted on a later roll */ }
+            }
+        }
+    }
+
+    // NOTE: force() on a duplicate (on Java 7/8) does not sync - it lacks the fd
+    private static void force(final MappedByteBuffer buffer, final int position, final int size) {
+        if ( FORCE_RANGE != null ) {
+            try {
+                FORCE_RANGE.invoke(buffer, position, size); return; // only the written range
+            }
+            catch (Exception e) { /* fallback */ }
+        }
+        buffer.force();
+    }
+
+    /**
+     * Re-appends live jobs of the oldest segment (into the current one) so that
+     * it gets deleted (along with following segments without live jobs), unless
+     * most of the segment is still live.
+     */
+    void compact() throws IOException {
+        if ( ! compacting.compareAndSet(false, true) ) return; // one at a time
+        try {
+            final Segment oldest;
+            synchronized (segments) {
+                if ( segments.isEmpty() || ( oldest = segments.getFirst() ) == current ) return;
+            }
+            long size = 0; // mostly live - not worth copying
+            for ( final JobQueue.Job job : oldest.jobs ) size += job.payload.length;
+            if ( size > segmentSize / 2 ) return;
+            for ( final JobQueue.Job job : oldest.jobs ) {
+                synchronized (job) {
+                    if ( job.removed || job.segment != oldest ) continue;
+                    append(job); // (same id) supersedes the previous record on replay
+                }
+                oldest.jobs.remove(job);
+            }
+            release();
+        }
+        finally {
+            compacting.set(false);
+        }
+    }
+
+    private void write(final ByteBuffer buffer, final int position, final int length, final byte type,
+        final long id, final byte[] queue, final JobQueue.Job job) {
+        final ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(type);
+        body.putLong(id);
+        if ( job != null ) {
+            body.putInt(job.priority);
+            body.putLong(job.runAt);
+            body.putLong(job.created);
+            body.putInt(job.attempts);
+            body.putShort((short) queue.length);
+            body.put(queue);
+            body.putInt(job.payload.length);
+            body.put(job.payload);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        buffer.position(position + HEADER);
+        buffer.put(body.array(), 0, length);
+        buffer.putInt(position + 4, length);
+        buffer.putInt(position + 8, (int) crc.getValue());
+        buffer.putInt(position, MAGIC); // last - marks the record as written
+    }
+
+    private static int aligned(final int size) {
+        return ( size + ALIGN - 1 ) / ALIGN * ALIGN;
+    }
+
+    private Segment newSegment() throws IOException {
+        final long number = segments.isEmpty() ? 1 : segments.getLast().number + 1;
+        final File file = new File(directory, PREFIX + number + SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer buffer;
+        try {
+            raf.setLength(segmentSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        finally {
+            raf.close();
+        }
+        final Segment segment = new Segment(file, number, buffer);
+        final int size = aligned(HEADER + 1 + 8);
+        write(buffer.duplicate(), segment.position.getAndAdd(size), 1 + 8, MARK, highId.get(), null, null);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Deletes (oldest) segments without live jobs.
+     */
+    private void release() {
+        synchronized (segments) {
+            while ( ! segments.isEmpty() ) {
+                final Segment oldest = segments.getFirst();
+                // writers read first - a segment no longer current is full, a writer
+                // that reserved space in it adds its job before it's done
+                if ( oldest == current || oldest.writers.get() > 0 || ! oldest.jobs.isEmpty() ) break;
+                segments.removeFirst();
+                oldest.file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentCount() {
+        synchronized (segments) { return segments.size(); }
+    }
+
+    public void close() {
+        synchronized (segments) {
+            for ( final Segment segment : segments ) {
+                if ( segment.buffer != null ) segment.buffer.force();
+            }
+            closed = true;
+            current = null;
+            segments.clear();
+        }
+    }
+
+    private static long number(final File file) {
+        final String name = file.getName();
+        try {
+            return Long.parseLong( name.substring(PREFIX.length(), name.length() - SUFFIX.length()) );
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per job class (and queue) latency and queue-wait histograms.
+ *
+ * Workers are expected to call {@link #record(String, String, long, long, boolean)}
+ * once per performed job (check-out <code>jruby/rack/worker/metrics.rb</code>),
+ * all values are in micro-seconds.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobMetrics implements JobMetricsMBean {
+
+    static final String DEFAULT_QUEUE = "default";
+
+    private static final LatencyHistogram.Snapshot NO_WAIT = new LatencyHistogram(1).snapshot();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Timer>> queues =
+        new ConcurrentHashMap<String, ConcurrentMap<String, Timer>>(8);
+
+    // jobs (per queue) since the last interval, swapped by the reporter :
+    private final ConcurrentMap<String, AtomicReference<Interval>> intervals =
+        new ConcurrentHashMap<String, AtomicReference<Interval>>(8);
+
+    /**
+     * @return a start time to be passed to {@link #recordSince(String, String, long, long, boolean)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param jobClass
+     * @param queue (might be null)
+     * @param startNanos as returned from {@link #start()}
+     * @param waitMicros queue wait-time (negative if not known)
+     * @param failed
+     */
+    public void recordSince(final String jobClass, final String queue,
+        final long startNanos, final long waitMicros, final boolean failed) {
+        record(jobClass, queue, ( System.nanoTime() - startNanos ) / 1000, waitMicros, failed);
+    }
+
+    /**
+     * @param jobClass
+     * @param queue (might be null)
+     * @param latencyMicros job perform time
+     * @param waitMicros queue wait-time (negative if not known)
+     * @param failed
+     */
+    public void record(final String jobClass, final String queue,
+        final long latencyMicros, final long waitMicros, final boolean failed) {
+        final Timer timer = getTimer(jobClass, queue);
+        timer.latency.record(latencyMicros);
+        timer.waitTime.record(waitMicros);
+        if ( failed ) timer.failures.incrementAndGet();
+        final AtomicReference<Interval> current = getInterval(timer.queue);
+        while ( true ) {
+            final Interval interval = current.get();
+            interval.writers.incrementAndGet();
+            try {
+                // swapped meanwhile - the reporter might not wait for us
+                if ( current.get() != interval ) continue;
+                interval.latency.record(latencyMicros);
+                if ( failed ) interval.failures.incrementAndGet();
+                return;
+            }
+            finally {
+                interval.writers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Starts a new interval, returning job stats (per queue) since the previous
+     * one. Expected to be called from a single (reporting) thread, jobs being
+     * recorded while swapping are waited for (not missed).
+     * @return job stats keyed by queue (sorted) since the last call
+     */
+    public Map<String, Stats> nextInterval() {
+        final Map<String, Stats> stats = new TreeMap<String, Stats>();
+        for ( final Map.Entry<String, AtomicReference<Interval>> entry : intervals.entrySet() ) {
+            final Interval current = entry.getValue().get();
+            if ( current.latency.getCount() == 0 && current.failures.get() == 0 ) continue; // idle
+            final Interval interval = entry.getValue().getAndSet(new Interval());
+            while ( interval.writers.get() > 0 ) Thread.yield(); // a record in progress
+            final Stats intervalStats = interval.snapshot();
+            if ( intervalStats.getCount() > 0 || intervalStats.getFailures() > 0 ) {
+                stats.put(entry.getKey(), intervalStats);
+            }
+        }
+        return stats;
+    }
+
+    private AtomicReference<Interval> getInterval(final String queue) {
+        AtomicReference<Interval> interval = intervals.get(queue);
+        if ( interval == null ) {
+            interval = new AtomicReference<Interval>(new Interval());
+            final AtomicReference<Interval> prev = intervals.putIfAbsent(queue, interval);
+            if ( prev != null ) interval = prev;
+        }
+        return interval;
+    }
+
+    Timer getTimer(final String jobClass, String queue) {
+        if ( queue == null ) queue = DEFAULT_QUEUE;
+        ConcurrentMap<String, Timer> timers = queues.get(queue);
+        if ( timers == null ) {
+            timers = new ConcurrentHashMap<String, Timer>(8);
+            final ConcurrentMap<String, Timer> prev = queues.putIfAbsent(queue, timers);
+            if ( prev != null ) timers = prev;
+        }
+        Timer timer = timers.get(jobClass);
+        if ( timer == null ) {
+            timer = new Timer(jobClass, queue);
+            final Timer prev = timers.putIfAbsent(jobClass, timer);
+            if ( prev != null ) timer = prev;
+        }
+        return timer;
+    }
+
+    /**
+     * @return job stats keyed by "queue/JobClass" (sorted)
+     */
+    public Map<String, Stats> snapshot() {
+        final Map<String, Stats> snapshot = new TreeMap<String, Stats>();
+        for ( final ConcurrentMap<String, Timer> timers : queues.values() ) {
+            for ( final Timer timer : timers.values() ) {
+                snapshot.put(timer.getName(), timer.snapshot());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param queue
+     * @param jobClass
+     * @return stats for the given job or null if none recorded
+     */
+    public Stats snapshot(final String queue, final String jobClass) {
+        final ConcurrentMap<String, Timer> timers = queues.get(queue == null ? DEFAULT_QUEUE : queue);
+        final Timer timer = timers == null ? null : timers.get(jobClass);
+        return timer == null ? null : timer.snapshot();
+    }
+
+    // JobMetricsMBean :
+
+    public String[] getJobNames() {
+        return snapshot().keySet().toArray(new String[0]);
+    }
+
+    public String[] getSummary() {
+        final Map<String, Stats> snapshot = snapshot();
+        final String[] summary = new String[snapshot.size()]; int i = 0;
+        for ( final Map.Entry<String, Stats> entry : snapshot.entrySet() ) {
+            summary[i++] = entry.getKey() + ": " + entry.getValue();
+        }
+        return summary;
+    }
+
+    public long getLatencyPercentile(final String jobName, final double percentile) {
+        final Timer timer = findTimer(jobName);
+        return timer == null ? -1 : timer.latency.snapshot().getValueAtPercentile(percentile);
+    }
+
+    public long getWaitPercentile(final String jobName, final double percentile) {
+        final Timer timer = findTimer(jobName);
+        return timer == null ? -1 : timer.waitTime.snapshot().getValueAtPercentile(percentile);
+    }
+
+    public void reset() {
+        queues.clear();
+    }
+
+    private Timer findTimer(final String jobName) { // "queue/JobClass"
+        final int slash = jobName.indexOf('/');
+        if ( slash == -1 ) return null;
+        final ConcurrentMap<String, Timer> timers = queues.get(jobName.substring(0, slash));
+        return timers == null ? null : timers.get(jobName.substring(slash + 1));
+    }
+
+    static class Timer {
+
+        final String jobClass, queue;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram waitTime = new LatencyHistogram();
+        final AtomicLong failures = new AtomicLong();
+
+        Timer(final String jobClass, final String queue) {
+            this.jobClass = jobClass; this.queue = queue;
+        }
+
+        String getName() { return queue + '/' + jobClass; }
+
+        Stats snapshot() {
+            return new Stats(latency.snapshot(), waitTime.snapshot(), failures.get());
+        }
+
+    }
+
+    static class Interval {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicInteger writers = new AtomicInteger();
+
+        Stats snapshot() {
+            return new Stats(latency.snapshot(), NO_WAIT, failures.get());
+        }
+
+    }
+
+    /**
+     * A job's latency (perform time) and (queue) wait-time snapshot.
+     */
+    public static class Stats {
+
+        private final LatencyHistogram.Snapshot latency, wait;
+        private final long failures;
+
+        Stats(LatencyHistogram.Snapshot latency, LatencyHistogram.Snapshot wait, long failures) {
+            this.latency = latency; this.wait = wait; this.failures = failures;
+        }
+
+        public long getCount() { return latency.getCount(); }
+
+        public long getFailures() { return failures; }
+
+        public LatencyHistogram.Snapshot getLatency() { return latency; }
+
+        public LatencyHistogram.Snapshot getWait() { return wait; }
+
+        @Override
+        public String toString() {
+            return "failures=" + failures + " latency[" + latency + "]" +
+                ( wait.getCount() > 0 ? ( " wait[" + wait + "]" ) : "" );
+        }
+
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+/**
+ * JMX view of {@link JobMetrics}.
+ *
+ * Job names are in the form of "queue/JobClass", values in micro-seconds.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public interface JobMetricsMBean {
+
+    String[] getJobNames() ;
+
+    String[] getSummary() ;
+
+    long getLatencyPercentile(String jobName, double percentile) ;
+
+    long getWaitPercentile(String jobName, double percentile) ;
+
+    void reset() ;
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks failure rates per job class, a class failing (mostly) all the time
+ * gets quarantined for a cool-down period (workers skip it meanwhile) thus
+ * it can not eat up the throughput of healthy job classes.
+ *
+ * Outcomes are counted in (tumbling) windows of the cool-down length, a
+ * class is quarantined once it has at least the minimum number of outcomes
+ * and it's failure rate reaches the threshold (within a window).
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobQuarantine {
+
+    static class Stats {
+
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile long windowEnd;
+        volatile long quarantinedUntil;
+
+    }
+
+    private final WorkerManager manager;
+    private final double threshold;
+    private final int minCount;
+    private final long cooldown;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * @param manager (used for logging)
+     * @param threshold failure rate (0.0 - 1.0) to quarantine a job class
+     * @param minCount minimum outcomes (within a window) to consider a class
+     * @param cooldown quarantine (and window) time in millis
+     */
+    public JobQuarantine(final WorkerManager manager, final double threshold, final int minCount, final long cooldown) {
+        this.manager = manager;
+        this.threshold = threshold;
+        this.minCount = Math.max(minCount, 1);
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * Record the outcome of performing a job.
+     * @param jobClass
+     * @param failed
+     * @return true if the job class got quarantined (by this failure)
+     */
+    public boolean record(final String jobClass, final boolean failed) {
+        if ( jobClass == null ) return false;
+        final Stats stats = getStats(jobClass);
+        final long now = System.currentTimeMillis();
+        if ( now >= stats.windowEnd ) {
+            synchronized (stats) { // start a new window
+                if ( now >= stats.windowEnd ) {
+                    stats.count.set(0); stats.failures.set(0);
+                    stats.windowEnd = now + cooldown;
+                }
+            }
+        }
+        final int count = stats.count.incrementAndGet();
+        if ( ! failed ) return false;
+        final int failures = stats.failures.incrementAndGet();
+        if ( count < minCount || failures < count * threshold ) return false;
+        synchronized (stats) {
+            if ( stats.quarantinedUntil > now ) return false; // already
+            stats.quarantinedUntil = now + cooldown;
+            stats.count.set(0); stats.failures.set(0);
+            stats.windowEnd = stats.quarantinedUntil + cooldown; // probe after the cool-down
+        }
+        if ( manager != null ) {
+            manager.log("[" + getClass().getName() + "] quarantined " + jobClass + " for " + cooldown +
+                "ms (" + failures + " out of " + count + " jobs failed)");
+        }
+        return true;
+    }
+
+    /**
+     * @param jobClass
+     * @return 0 if the job class is not quarantined otherwise millis remaining
+     */
+    public long getQuarantineTime(final String jobClass) {
+        if ( jobClass == null ) return 0;
+        final Stats stats = this.stats.get(jobClass);
+        if ( stats == null ) return 0;
+        final long remaining = stats.quarantinedUntil - System.currentTimeMillis();
+        return remaining > 0 ? remaining : 0;
+    }
+
+    public boolean isQuarantined(final String jobClass) {
+        return getQuarantineTime(jobClass) > 0;
+    }
+
+    /**
+     * @return job classes currently quarantined
+     */
+    public String[] getQuarantined() {
+        final long now = System.currentTimeMillis();
+        final List<String> quarantined = new ArrayList<String>();
+        for ( final Map.Entry<String, Stats> entry : stats.entrySet() ) {
+            if ( entry.getValue().quarantinedUntil > now ) quarantined.add(entry.getKey());
+        }
+        return quarantined.toArray(new String[quarantined.size()]);
+    }
+
+    private Stats getStats(final String jobClass) {
+        Stats stats = this.stats.get(jobClass);
+        if ( stats == null ) {
+            final Stats newStats = new Stats();
+            stats = this.stats.putIfAbsent(jobClass, newStats);
+            if ( stats == null ) stats = newStats;
+        }
+        return stats;
+    }
+
+}
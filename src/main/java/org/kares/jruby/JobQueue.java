@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-JVM job queue (per named queue lanes) with priorities and delayed jobs.
+ *
+ * Jobs are kept in (lock-free) skip lists, a lower priority value is reserved
+ * first (same as with DJ). Waiting reservers park (without a shared lock) and
+ * get unparked as jobs are pushed. Optionally all changes are appended to a (memory
+ * mapped) {@link JobJournal} which gets replayed when the queue is created.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobQueue {
+
+    public static final String DEFAULT_QUEUE = "default";
+
+    /**
+     * A queued job, the payload is opaque (serialized) data.
+     */
+    public static class Job {
+
+        final long id;
+        final String queue;
+        final int priority;
+        final long runAt; // millis
+        final long created; // millis
+        final int attempts;
+        final byte[] payload;
+
+        Object segment; // journal segment the job has been appended to
+        boolean removed; // (guarded by the job) completed or superseded in the journal
+        volatile long reserved; // millis
+
+        Job(long id, String queue, int priority, long runAt, long created, int attempts, byte[] payload) {
+            this.id = id;
+            this.queue = queue;
+            this.priority = priority;
+            this.runAt = runAt;
+            this.created = created;
+            this.attempts = attempts;
+            this.payload = payload;
+        }
+
+        public long getId() { return id; }
+
+        public String getQueue() { return queue; }
+
+        public int getPriority() { return priority; }
+
+        public long getRunAt() { return runAt; }
+
+        public long getCreated() { return created; }
+
+        public int getAttempts() { return attempts; }
+
+        public byte[] getPayload() { return payload; }
+
+        /**
+         * @return how long (micro-seconds) the job waited before it was reserved
+         */
+        public long getWaitTime() {
+            final long reserved = this.reserved;
+            if ( reserved == 0 ) return -1;
+            return Math.max(reserved - Math.max(runAt, created), 0) * 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "#<Job id=" + id + " queue=" + queue + " priority=" + priority + " attempts=" + attempts + ">";
+        }
+
+    }
+
+    private static final Comparator<Job> READY_ORDER = new Comparator<Job>() {
+        public int compare(final Job job1, final Job job2) {
+            if ( job1.priority != job2.priority ) return job1.priority < job2.priority ? -1 : 1;
+            return job1.id < job2.id ? -1 : ( job1.id == job2.id ? 0 : 1 );
+        }
+    };
+
+    private static final Comparator<Job> SCHEDULED_ORDER = new Comparator<Job>() {
+        public int compare(final Job job1, final Job job2) {
+            if ( job1.runAt != job2.runAt ) return job1.runAt < job2.runAt ? -1 : 1;
+            return job1.id < job2.id ? -1 : ( job1.id == job2.id ? 0 : 1 );
+        }
+    };
+
+    static class Lane {
+
+        final ConcurrentSkipListSet<Job> ready = new ConcurrentSkipListSet<Job>(READY_ORDER);
+        final ConcurrentSkipListSet<Job> scheduled = new ConcurrentSkipListSet<Job>(SCHEDULED_ORDER);
+
+        /**
+         * Moves scheduled jobs that are due to the ready set.
+         * @return the next (not yet due) scheduled time or 0 if none
+         */
+        long promote(final long now) {
+            Job job;
+            while ( ( job = first(scheduled) ) != null ) {
+                if ( job.runAt > now ) return job.runAt;
+                if ( scheduled.remove(job) ) ready.add(job);
+            }
+            return 0;
+        }
+
+        int size() {
+            return ready.size() + scheduled.size();
+        }
+
+    }
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>(8);
+    private final AtomicLong sequence = new AtomicLong(1);
+
+    private final JobJournal journal;
+
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+    private final AtomicInteger wakeUps = new AtomicInteger();
+
+    /**
+     * A (non durable) in-memory only queue.
+     */
+    public JobQueue() {
+        this(null);
+    }
+
+    /**
+     * @param journal the journal (replayed on creation) or null
+     */
+    public JobQueue(final JobJournal journal) {
+        this.journal = journal;
+        if ( journal != null ) {
+            long maxId = 0;
+            for ( final Job job : journal.replay() ) {
+                offer(job);
+                if ( job.id > maxId ) maxId = job.id;
+            }
+            // completed jobs' ids might have been higher (do not re-use those)
+            sequence.set(Math.max(maxId, journal.getHighWaterMark()) + 1);
+        }
+    }
+
+    /**
+     * Enqueue a new job.
+     * @param queue the queue name (null for the default queue)
+     * @param priority a lower value gets reserved first
+     * @param runAt time millis the job is to run at (0 for now)
+     * @param payload serialized job data
+     * @return the new job
+     * @throws IOException if appending to the journal failed
+     */
+    public Job push(final String queue, final int priority, final long runAt, final byte[] payload)
+        throws IOException {
+        return push(queue, priority, runAt, 0, payload);
+    }
+
+    private Job push(final String queue, final int priority, final long runAt, final int attempts,
+        final byte[] payload) throws IOException {
+        final Job job = new Job(sequence.getAndIncrement(), queue == null ? DEFAULT_QUEUE : queue,
+            priority, runAt, System.currentTimeMillis(), attempts, payload);
+        if ( journal != null ) journal.append(job);
+        return push(job);
+    }
+
+    private Job push(final Job job) {
+        offer(job);
+        // waiters might be reserving from other queues - wake all to re-check
+        for ( final Thread waiter : waiters ) LockSupport.unpark(waiter);
+        return job;
+    }
+
+    private void offer(final Job job) {
+        final Lane lane = lane(job.queue);
+        if ( job.runAt > System.currentTimeMillis() ) lane.scheduled.add(job);
+        else lane.ready.add(job);
+    }
+
+    private Lane lane(final String queue) {
+        Lane lane = lanes.get(queue);
+        if ( lane == null ) {
+            final Lane newLane = new Lane();
+            lane = lanes.putIfAbsent(queue, newLane);
+            if ( lane == null ) lane = newLane;
+        }
+        return lane;
+    }
+
+    /**
+     * Reserve a job (that is due) from the given queues, the job with the
+     * lowest priority value (than the oldest) is returned.
+     * @param queues queue names (null or empty for all queues)
+     * @return a job or null if there's none to be performed
+     */
+    public Job reserve(final String[] queues) {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            Job best = null; Lane bestLane = null;
+            for ( final Lane lane : lanes(queues) ) {
+                lane.promote(now);
+                final Job job = first(lane.ready);
+                if ( job != null && ( best == null || READY_ORDER.compare(job, best) < 0 ) ) {
+                    best = job; bestLane = lane;
+                }
+            }
+            if ( best == null ) return null;
+            if ( bestLane.ready.remove(best) ) { // lost a race otherwise
+                best.reserved = now;
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #reserve(String[])} but waits (up to the given timeout)
+     * for a job to become available.
+     * @param queues
+     * @param timeout wait time in milliseconds
+     * @return a job or null if none got reserved till timeout (or woken up)
+     * @throws InterruptedException
+     * @see #wakeUp()
+     */
+    public Job reserve(final String[] queues, final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        final int wakeUp = wakeUps.get();
+        final Thread thread = Thread.currentThread();
+        Job job = reserve(queues);
+        if ( job != null ) return job;
+        waiters.add(thread);
+        try {
+            while (true) {
+                // (re-)check after registering - a push in between unparks us
+                if ( ( job = reserve(queues) ) != null ) return job;
+
+                final long now = System.currentTimeMillis();
+                long wait = deadline - now;
+                if ( wait <= 0 ) return null;
+                final long next = nextRunAt(queues);
+                if ( next > 0 ) wait = Math.min(wait, Math.max(next - now, 1));
+                LockSupport.parkNanos(this, wait * 1000000L);
+                if ( Thread.interrupted() ) throw new InterruptedException();
+                if ( wakeUps.get() != wakeUp ) return null;
+            }
+        }
+        finally {
+            waiters.remove(thread);
+        }
+    }
+
+    private long nextRunAt(final String[] queues) {
+        long next = 0;
+        for ( final Lane lane : lanes(queues) ) {
+            final Job job = first(lane.scheduled);
+            if ( job != null && ( next == 0 || job.runAt < next ) ) next = job.runAt;
+        }
+        return next;
+    }
+
+    private Collection<Lane> lanes(final String[] queues) {
+        if ( queues == null || queues.length == 0 ) return lanes.values();
+        final List<Lane> lanes = new ArrayList<Lane>(queues.length);
+        for ( final String queue : queues ) {
+            final Lane lane = this.lanes.get(queue);
+            if ( lane != null ) lanes.add(lane);
+        }
+        return lanes;
+    }
+
+    /**
+     * Mark a (reserved) job as completed (done).
+     * @param job
+     * @throws IOException if appending to the journal failed
+     */
+    public void complete(final Job job) throws IOException {
+        if ( journal != null ) journal.remove(job);
+    }
+
+    /**
+     * Wakes up all waiting reservers (without a job) e.g. on shutdown.
+     */
+    public void wakeUp() {
+        wakeUps.incrementAndGet();
+        for ( final Thread waiter : waiters ) LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Put back a reserved job (e.g. interrupted on shutdown) as it was.
+     * @param job
+     */
+    public void release(final Job job) {
+        job.reserved = 0;
+        push(job);
+    }
+
+    /**
+     * Re-schedule a (failed) reserved job.
+     * @param job
+     * @param runAt when to retry the job
+     * @return the re-scheduled job (same id with incremented attempts)
+     * @throws IOException if appending to the journal failed
+     */
+    public Job retry(final Job job, final long runAt) throws IOException {
+        // keeps the id - for whoever awaits the job (as returned on enqueue)
+        final Job retry = new Job(job.id, job.queue, job.priority, runAt,
+            System.currentTimeMillis(), job.attempts + 1, job.payload);
+        if ( journal != null ) journal.replace(job, retry);
+        return push(retry);
+    }
+
+    /**
+     * @return count of all (not reserved) jobs
+     */
+    public int size() {
+        int size = 0;
+        for ( final Lane lane : lanes.values() ) size += lane.size();
+        return size;
+    }
+
+    /**
+     * @param queue
+     * @return count of (not reserved) jobs in the given queue
+     */
+    public int size(final String queue) {
+        final Lane lane = lanes.get(queue);
+        return lane == null ? 0 : lane.size();
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Closes (flushes) the journal, queued jobs will be replayed on re-open.
+     */
+    public void close() {
+        if ( journal != null ) journal.close();
+    }
+
+    private static Job first(final ConcurrentSkipListSet<Job> set) {
+        final Iterator<Job> it = set.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps (delayed and recurring) job run times in a {@link TimingWheel} and
+ * wakes up idle workers when a job is due, instead of workers polling their
+ * backend for jobs every sleep delay.
+ *
+ * Run times are loaded incrementally (for a time window ahead) using a
+ * {@link Loader} the (Ruby) worker registers, jobs enqueued locally might
+ * be scheduled directly using {@link #schedule(long)}.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobScheduler implements Runnable {
+
+    /**
+     * Loads job run times from the backend.
+     */
+    public static interface Loader {
+
+        /**
+         * @param from window start (exclusive) millis - the current time on
+         * the first load (due jobs get polled), jobs created since the last
+         * load should be returned even if their run time is before
+         * @param to window end (inclusive) millis
+         * @return run times (millis) of jobs to be run until the window end
+         * @throws Exception
+         */
+        long[] load(long from, long to) throws Exception;
+
+    }
+
+    private final WorkerManager manager;
+    private final long tick;
+    private final long window;
+    private final int maxPermits;
+
+    private final TimingWheel wheel;
+    private final Semaphore due = new Semaphore(0);
+
+    private volatile Loader loader;
+    private volatile long loadInterval;
+    private long horizon;
+
+    private volatile Thread thread;
+
+    /**
+     * @param manager
+     * @param tick the wheel tick in millis
+     * @param window millis to load run times ahead of time
+     * @param maxPermits maximum number of pending wake-ups (e.g. worker count)
+     */
+    public JobScheduler(final WorkerManager manager, final long tick, final long window, final int maxPermits) {
+        this.manager = manager;
+        this.tick = tick;
+        this.window = window;
+        this.maxPermits = Math.max(maxPermits, 1);
+        this.wheel = new TimingWheel(tick, 64, System.currentTimeMillis());
+        this.loadInterval = window / 2;
+    }
+
+    /**
+     * Set the loader, if there's one already set it's not replaced.
+     * @param loader
+     * @return whether the loader has been set
+     */
+    public synchronized boolean setLoader(final Loader loader) {
+        if ( this.loader != null ) return false;
+        this.loader = loader;
+        return true;
+    }
+
+    public boolean hasLoader() {
+        return loader != null;
+    }
+
+    /**
+     * Load (incrementally) more often than every half a window e.g. every
+     * (worker) sleep delay to notice jobs changed by other processes.
+     * @param interval millis between loads
+     */
+    public void setLoadInterval(final long interval) {
+        if ( interval > 0 && interval < loadInterval ) loadInterval = Math.max(interval, tick);
+    }
+
+    public long getLoadInterval() {
+        return loadInterval;
+    }
+
+    /**
+     * Schedule a job run time, an idle worker is woken up once it's due.
+     * @param runAt time in millis
+     */
+    public void schedule(final long runAt) {
+        if ( ! wheel.schedule(runAt) ) fire(1);
+    }
+
+    /**
+     * Waits until a (scheduled) job is due.
+     * @param timeout millis
+     * @return true if a job is due, false on timeout
+     * @throws InterruptedException
+     */
+    public boolean await(final long timeout) throws InterruptedException {
+        return due.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the time window (millis) run times are loaded for
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    public int getPending() {
+        return wheel.getPending();
+    }
+
+    private void fire(final int count) {
+        final int permits = Math.min(count, maxPermits - due.availablePermits());
+        if ( permits > 0 ) due.release(permits);
+    }
+
+    public synchronized void start(final String name) {
+        if ( thread != null ) return;
+        final Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            if ( ( thread = this.thread ) == null ) return;
+            this.thread = null;
+        }
+        thread.interrupt();
+        due.release(maxPermits); // wake up waiting workers
+    }
+
+    public void run() {
+        long nextLoad = 0;
+        while ( thread != null ) {
+            try {
+                Thread.sleep(tick);
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            final long now = System.currentTimeMillis();
+            if ( now >= nextLoad && loader != null ) {
+                load(now);
+                nextLoad = now + loadInterval;
+            }
+            final int expired = wheel.advance(now);
+            if ( expired > 0 ) fire(expired);
+        }
+    }
+
+    void load(final long now) {
+        final long to = now + window;
+        try {
+            final long[] runAts = loader.load(horizon > 0 ? horizon : now, to);
+            horizon = to;
+            if ( runAts != null ) {
+                for ( final long runAt : runAts ) schedule(runAt);
+            }
+        }
+        catch (Exception e) {
+            manager.log("[" + getClass().getName() + "] failed loading job run times: " + e);
+        }
+    }
+
+}
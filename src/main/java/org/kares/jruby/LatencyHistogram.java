@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A (HDR-like) log-linear histogram of latency values, recording is striped
+ * across a few cells (picked by thread id) and merged on read.
+ *
+ * Values are expected to be micro-seconds, the relative error of a reported
+ * percentile is bellow 1 / {@link #SUB_BUCKETS} of the value.
+ *
+ * NOTE: {@link #record(long)} does not allocate and does not lock.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int MAX_BITS = 38; // ~ 76 hours in micros
+
+    static final int BUCKETS = ( MAX_BITS - SUB_BITS + 1 ) * SUB_BUCKETS;
+
+    // per stripe slots after the bucket counts :
+    private static final int COUNT = BUCKETS, SUM = BUCKETS + 1, MAX = BUCKETS + 2;
+    private static final int STRIPE_SIZE = BUCKETS + 3;
+
+    private final int stripeMask;
+    private final AtomicLongArray cells;
+
+    public LatencyHistogram() {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    public LatencyHistogram(final int stripes) {
+        int count = 1;
+        while ( count < stripes && count < 8 ) count <<= 1;
+        this.stripeMask = count - 1;
+        this.cells = new AtomicLongArray(count * STRIPE_SIZE);
+    }
+
+    /**
+     * Record a value (negative values are ignored).
+     * @param value
+     */
+    public void record(final long value) {
+        if ( value < 0 ) return;
+        final int base = ( (int) Thread.currentThread().getId() & stripeMask ) * STRIPE_SIZE;
+        cells.incrementAndGet(base + bucketIndex(value));
+        cells.incrementAndGet(base + COUNT);
+        cells.addAndGet(base + SUM, value);
+        final int maxIndex = base + MAX;
+        long max;
+        while ( value > ( max = cells.get(maxIndex) ) ) {
+            if ( cells.compareAndSet(maxIndex, max, value) ) break;
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for ( int s = 0; s <= stripeMask; s++ ) {
+            count += cells.get(s * STRIPE_SIZE + COUNT);
+        }
+        return count;
+    }
+
+    /**
+     * @return a merged (point in time) view of all recorded values
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0, sum = 0, max = 0;
+        for ( int s = 0; s <= stripeMask; s++ ) {
+            final int base = s * STRIPE_SIZE;
+            for ( int i = 0; i < BUCKETS; i++ ) counts[i] += cells.get(base + i);
+            count += cells.get(base + COUNT);
+            sum += cells.get(base + SUM);
+            max = Math.max(max, cells.get(base + MAX));
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    public void reset() {
+        for ( int i = 0; i < cells.length(); i++ ) cells.set(i, 0);
+    }
+
+    static int bucketIndex(long value) {
+        if ( value < SUB_BUCKETS ) return (int) value;
+        final int bits = 64 - Long.numberOfLeadingZeros(value);
+        if ( bits > MAX_BITS ) return BUCKETS - 1;
+        final int shift = bits - SUB_BITS - 1;
+        // [ SUB_BUCKETS .. 2 * SUB_BUCKETS ) after the shift
+        return ( shift + 1 ) * SUB_BUCKETS + (int) ( ( value >>> shift ) - SUB_BUCKETS );
+    }
+
+    static long bucketValue(int index) { // highest value mapped to the bucket
+        if ( index < SUB_BUCKETS ) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long base = (long) ( index % SUB_BUCKETS + SUB_BUCKETS ) << shift;
+        return base + ( 1L << shift ) - 1;
+    }
+
+    /**
+     * An immutable (merged) histogram state.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count, sum, max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count; this.sum = sum; this.max = max;
+        }
+
+        public long getCount() { return count; }
+
+        public long getMax() { return max; }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile e.g. 99.9
+         * @return the (approximate) value at the given percentile
+         */
+        public long getValueAtPercentile(final double percentile) {
+            long total = 0;
+            for ( int i = 0; i < counts.length; i++ ) total += counts[i];
+            if ( total == 0 ) return 0;
+            long rank = (long) Math.ceil( Math.min(percentile, 100) / 100 * total );
+            if ( rank < 1 ) rank = 1;
+            long seen = 0;
+            for ( int i = 0; i < counts.length; i++ ) {
+                seen += counts[i];
+                if ( seen >= rank ) return Math.min(bucketValue(i), max);
+            }
+            return max;
+        }
+
+        public long getP50() { return getValueAtPercentile(50); }
+
+        public long getP99() { return getValueAtPercentile(99); }
+
+        public long getP999() { return getValueAtPercentile(99.9); }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + Math.round(getMean()) +
+                   " p50=" + getP50() + " p99=" + getP99() + " p999=" + getP999() + " max=" + max;
+        }
+
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * A (work-stealing) fork-join pool shared by all workers, for jobs to fan-out
+ * work into (many) small tasks e.g. <code>parallel_each</code> from Ruby.
+ *
+ * Tasks are index ranges split recursively (down to a few chunks per pool
+ * thread), idle pool threads steal chunks from busy ones. The calling thread
+ * blocks until all of it's tasks complete thus a job can not flood the pool,
+ * it stops waiting (cancelling pending tasks) when interrupted or once the
+ * pool is shut down.
+ *
+ * NOTE: requires Java 7 (loaded lazily only if used).
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class ParallelExecutor {
+
+    /**
+     * A task performed for each index.
+     */
+    public static interface Task {
+
+        void call(int index) throws Exception;
+
+    }
+
+    /**
+     * A task mapping an index to a (Ruby) result.
+     */
+    public static interface Mapper {
+
+        IRubyObject call(int index) throws Exception;
+
+    }
+
+    // how often a waiting (calling) thread checks whether the pool is shut down
+    static final long POLL_TIMEOUT = 100;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism number of pool threads
+     * @param threadName thread name prefix
+     */
+    public ParallelExecutor(final int parallelism, final String threadName) {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                final ForkJoinWorkerThread thread =
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(threadName + '-' + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+    }
+
+    /**
+     * Performs the task for all indexes (0 to size - 1) in parallel.
+     * @param size
+     * @param task
+     */
+    public void each(final int size, final Task task) throws InterruptedException {
+        if ( size <= 0 ) return;
+        perform(new EachAction(task, 0, size, threshold(size)));
+    }
+
+    /**
+     * Maps all indexes (0 to size - 1) in parallel.
+     * @param size
+     * @param mapper
+     * @return the results (in index order)
+     */
+    public Object[] map(final int size, final Mapper mapper) throws InterruptedException {
+        if ( size <= 0 ) return new Object[0];
+        return perform(new MapTask(mapper, size, threshold(size)));
+    }
+
+    private int threshold(final int size) {
+        return Math.max(1, size / ( pool.getParallelism() * 4 ));
+    }
+
+    private <T> T perform(final ForkJoinTask<T> task) throws InterruptedException {
+        if ( ForkJoinTask.getPool() == pool ) return task.invoke(); // nested fan-out
+        pool.submit(task);
+        try {
+            while ( true ) {
+                try {
+                    return task.get(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+                    if ( pool.isShutdown() ) {
+                        throw new CancellationException("parallel executor shut down");
+                    }
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            if ( cause instanceof Error ) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        finally {
+            if ( ! task.isDone() ) task.cancel(true); // not to leave tasks running
+        }
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getActiveThreadCount() {
+        return pool.getActiveThreadCount();
+    }
+
+    public long getStealCount() {
+        return pool.getStealCount();
+    }
+
+    public void shutdown(final long timeout) {
+        pool.shutdown();
+        try {
+            if ( ! pool.awaitTermination(timeout, TimeUnit.MILLISECONDS) ) pool.shutdownNow();
+        }
+        catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class EachAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Task task;
+        private final int from, to;
+        private final int threshold;
+
+        EachAction(final Task task, final int from, final int to, final int threshold) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if ( to - from <= threshold ) {
+                for ( int i = from; i < to; i++ ) {
+                    try {
+                        task.call(i);
+                    }
+                    catch (RuntimeException e) {
+                        throw e;
+                    }
+                    catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+            else {
+                final int mid = ( from + to ) >>> 1;
+                invokeAll(new EachAction(task, from, mid, threshold),
+                          new EachAction(task, mid, to, threshold));
+            }
+        }
+
+    }
+
+    private static class MapTask extends RecursiveTask<Object[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Mapper mapper;
+        private final int size;
+        private final int threshold;
+
+        MapTask(final Mapper mapper, final int size, final int threshold) {
+            this.mapper = mapper;
+            this.size = size;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object[] compute() {
+            final List<ChunkTask> chunks = new ArrayList<ChunkTask>(size / threshold + 1);
+            for ( int from = 0; from < size; from += threshold ) {
+                chunks.add(new ChunkTask(mapper, from, Math.min(from + threshold, size)));
+            }
+            invokeAll(chunks);
+            // results are collected from the (completed) chunks
+            final Object[] results = new Object[size];
+            for ( final ChunkTask chunk : chunks ) {
+                final Object[] chunkResults = chunk.join();
+                System.arraycopy(chunkResults, 0, results, chunk.from, chunkResults.length);
+            }
+            return results;
+        }
+
+    }
+
+    private static class ChunkTask extends RecursiveTask<Object[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Mapper mapper;
+        final int from, to;
+
+        ChunkTask(final Mapper mapper, final int from, final int to) {
+            this.mapper = mapper;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Object[] compute() {
+            final Object[] results = new Object[to - from];
+            for ( int i = from; i < to; i++ ) {
+                try {
+                    results[i - from] = mapper.call(i);
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return results;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps job priority bands (ranges) to (Java) thread priorities, configured
+ * as a comma separated list of <code>from..to=priority</code> entries where
+ * either bound might be omitted e.g. (with DJ a lower value runs first) :
+ *
+ *   ..9=MAX, 10..19=NORM, 20..=MIN
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class PriorityBands {
+
+    private static class Band {
+
+        final int from, to, threadPriority;
+
+        Band(int from, int to, int threadPriority) {
+            this.from = from; this.to = to; this.threadPriority = threadPriority;
+        }
+
+    }
+
+    private final Band[] bands;
+
+    /**
+     * @param spec
+     * @throws IllegalArgumentException if the specification can not be parsed
+     */
+    public PriorityBands(final String spec) {
+        final List<Band> bands = new ArrayList<Band>();
+        for ( final String entry : spec.split(",") ) {
+            final String band = entry.trim();
+            if ( band.length() == 0 ) continue;
+            final int eq = band.indexOf('=');
+            final int dots = band.indexOf("..");
+            if ( eq == -1 || dots == -1 || dots > eq ) {
+                throw new IllegalArgumentException("invalid priority band: '" + band + "' (expected from..to=priority)");
+            }
+            final String from = band.substring(0, dots).trim();
+            final String to = band.substring(dots + 2, eq).trim();
+            bands.add(new Band(
+                from.length() == 0 ? Integer.MIN_VALUE : Integer.parseInt(from),
+                to.length() == 0 ? Integer.MAX_VALUE : Integer.parseInt(to),
+                parseThreadPriority( band.substring(eq + 1).trim() )
+            ));
+        }
+        this.bands = bands.toArray(new Band[bands.size()]);
+    }
+
+    static int parseThreadPriority(final String priority) {
+        if ( "NORM".equalsIgnoreCase(priority) ) return Thread.NORM_PRIORITY;
+        if ( "MIN".equalsIgnoreCase(priority) ) return Thread.MIN_PRIORITY;
+        if ( "MAX".equalsIgnoreCase(priority) ) return Thread.MAX_PRIORITY;
+        final int value = Integer.parseInt(priority);
+        if ( value < Thread.MIN_PRIORITY || value > Thread.MAX_PRIORITY ) {
+            throw new IllegalArgumentException("invalid thread priority: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @param jobPriority
+     * @return the thread priority for the given job priority (first matching
+     * band) or -1 if there's no band for the priority
+     */
+    public int getThreadPriority(final int jobPriority) {
+        for ( final Band band : bands ) {
+            if ( jobPriority >= band.from && jobPriority <= band.to ) return band.threadPriority;
+        }
+        return -1;
+    }
+
+}
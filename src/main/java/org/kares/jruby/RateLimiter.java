@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket (implemented as a generic cell rate algorithm).
+ *
+ * Instead of counting tokens the (theoretical) arrival time of the next
+ * permit is kept, acquiring is a single compare-and-set.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class RateLimiter {
+
+    private final long interval; // nanos per permit
+    private final long tolerance; // burst * interval
+    private final AtomicLong arrival; // theoretical arrival time (nanos)
+
+    /**
+     * @param permitsPerSecond
+     * @param burst maximum permits acquired at once (bucket size)
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst) {
+        if ( permitsPerSecond <= 0 ) {
+            throw new IllegalArgumentException("rate needs to be positive: " + permitsPerSecond);
+        }
+        this.interval = (long) ( 1000000000L / permitsPerSecond );
+        this.tolerance = this.interval * Math.max(burst, 1);
+        this.arrival = new AtomicLong(System.nanoTime() - tolerance);
+    }
+
+    /**
+     * @return 0 if a permit was acquired, otherwise millis till one is available
+     */
+    public long tryAcquire() {
+        while (true) {
+            final long now = System.nanoTime();
+            final long current = arrival.get();
+            final long next = Math.max(current, now - tolerance) + interval;
+            if ( next > now ) return toMillis(next - now);
+            if ( arrival.compareAndSet(current, next) ) return 0;
+        }
+    }
+
+    /**
+     * @return 0 if a permit is available, otherwise millis till one is
+     */
+    public long getWaitTime() {
+        final long now = System.nanoTime();
+        final long next = Math.max(arrival.get(), now - tolerance) + interval;
+        return next > now ? toMillis(next - now) : 0;
+    }
+
+    /**
+     * Give back an (acquired) unused permit.
+     */
+    public void release() {
+        arrival.addAndGet(-interval);
+    }
+
+    public double getRate() {
+        return 1000000000.0 / interval;
+    }
+
+    private static long toMillis(final long nanos) {
+        return Math.max(nanos / 1000000L, 1);
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rate limiters (per queue and per job class) shared by all worker threads.
+ *
+ * Configured as a comma separated list of <code>queue:name=rate</code> or
+ * <code>class:name=rate</code> entries where rate is permits per time unit
+ * (s, m or h) optionally followed by a burst size e.g. :
+ *
+ *   queue:mails=10/s, class:GeocodeJob=100/m*20
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class RateLimits {
+
+    private final Map<String, RateLimiter> queues = new HashMap<String, RateLimiter>();
+    private final Map<String, RateLimiter> classes = new HashMap<String, RateLimiter>();
+
+    /**
+     * @param spec
+     * @throws IllegalArgumentException if the specification can not be parsed
+     */
+    public RateLimits(final String spec) {
+        for ( final String entry : spec.split(",") ) {
+            final String limit = entry.trim();
+            if ( limit.length() == 0 ) continue;
+            final int eq = limit.lastIndexOf('=');
+            if ( eq == -1 ) throw new IllegalArgumentException("invalid rate limit: '" + limit + "'");
+            final String key = limit.substring(0, eq).trim();
+            final RateLimiter limiter = parseLimiter( limit.substring(eq + 1).trim() );
+            if ( key.startsWith("queue:") ) queues.put(key.substring(6), limiter);
+            else if ( key.startsWith("class:") ) classes.put(key.substring(6), limiter);
+            else throw new IllegalArgumentException("invalid rate limit: '" + limit + "' (expected queue: or class:)");
+        }
+    }
+
+    // 10/s or 100/m*20
+    private static RateLimiter parseLimiter(String rate) {
+        int burst = 1;
+        final int star = rate.indexOf('*');
+        if ( star != -1 ) {
+            burst = Integer.parseInt( rate.substring(star + 1).trim() );
+            rate = rate.substring(0, star).trim();
+        }
+        double seconds = 1;
+        final int slash = rate.indexOf('/');
+        if ( slash != -1 ) {
+            final String unit = rate.substring(slash + 1).trim();
+            if ( "s".equals(unit) ) seconds = 1;
+            else if ( "m".equals(unit) ) seconds = 60;
+            else if ( "h".equals(unit) ) seconds = 3600;
+            else throw new IllegalArgumentException("invalid rate unit: '" + unit + "' (expected s, m or h)");
+            rate = rate.substring(0, slash).trim();
+        }
+        return new RateLimiter(Double.parseDouble(rate) / seconds, burst);
+    }
+
+    public RateLimiter getQueueLimiter(final String queue) {
+        return queue == null ? null : queues.get(queue);
+    }
+
+    public RateLimiter getClassLimiter(final String jobClass) {
+        return jobClass == null ? null : classes.get(jobClass);
+    }
+
+    public boolean hasClassLimits() {
+        return ! classes.isEmpty();
+    }
+
+    /**
+     * @return queues whose limit is (currently) exhausted
+     */
+    public String[] getLimitedQueues() {
+        return limited(queues);
+    }
+
+    /**
+     * @return job classes whose limit is (currently) exhausted
+     */
+    public String[] getLimitedClasses() {
+        return limited(classes);
+    }
+
+    private static String[] limited(final Map<String, RateLimiter> limiters) {
+        final List<String> names = new ArrayList<String>(limiters.size());
+        for ( final Map.Entry<String, RateLimiter> entry : limiters.entrySet() ) {
+            if ( entry.getValue().getWaitTime() > 0 ) names.add( entry.getKey() );
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Acquire a permit for a job (from both it's queue and class limiter).
+     * @param queue (might be null)
+     * @param jobClass (might be null)
+     * @return 0 if the job might be performed, otherwise millis to wait
+     */
+    public long tryAcquire(final String queue, final String jobClass) {
+        final RateLimiter queueLimiter = getQueueLimiter(queue);
+        final RateLimiter classLimiter = getClassLimiter(jobClass);
+        if ( queueLimiter != null ) {
+            final long wait = queueLimiter.tryAcquire();
+            if ( wait > 0 ) return wait;
+        }
+        if ( classLimiter != null ) {
+            final long wait = classLimiter.tryAcquire();
+            if ( wait > 0 ) {
+                if ( queueLimiter != null ) queueLimiter.release();
+                return wait;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param queue (might be null)
+     * @param jobClass (might be null)
+     * @return 0 if a job might be performed now, otherwise millis to wait
+     */
+    public long getWaitTime(final String queue, final String jobClass) {
+        final RateLimiter queueLimiter = getQueueLimiter(queue);
+        final RateLimiter classLimiter = getClassLimiter(jobClass);
+        final long queueWait = queueLimiter == null ? 0 : queueLimiter.getWaitTime();
+        final long classWait = classLimiter == null ? 0 : classLimiter.getWaitTime();
+        return Math.max(queueWait, classWait);
+    }
+
+}
@@ -15,7 +15,12 @@
  */
 package org.kares.jruby;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
 import org.jruby.Ruby;
+import org.jruby.runtime.Constants;
 
 /**
  * Ruby (JRuby) worker.
@@ -24,10 +29,17 @@ import org.jruby.Ruby;
  */
 public class RubyWorker implements Runnable {
 
+    /**
+     * Marks (built-in) scripts pre-compiled when the jar got built.
+     */
+    static final String COMPILED_MARKER = "jruby_rack_worker/compiled.properties";
+
     protected final Ruby runtime;
     protected final String script;
     protected final String fileName;
 
+    private volatile Runnable warmUp;
+
     public RubyWorker(final Ruby runtime, final String script) {
         this(runtime, script, null);
     }
@@ -38,19 +50,56 @@ public class RubyWorker implements Runnable {
         this.fileName = fileName;
     }
 
+    /**
+     * @param warmUp to be run (once) on the worker thread before the script
+     */
+    public void setWarmUp(final Runnable warmUp) {
+        this.warmUp = warmUp;
+    }
+
     public void run() {
+        final Runnable warmUp = this.warmUp;
+        if ( warmUp != null ) {
+            this.warmUp = null; warmUp.run();
+        }
         if ( fileName == null ) {
             runtime.evalScriptlet(script);
         }
         else if ( script == null ) {
-            // try loading the script using ruby :
-            runtime.evalScriptlet("load '" + fileName + "'");
+            // try loading the script using ruby (compiled if available) :
+            final String compiledName = getCompiledFileName();
+            runtime.evalScriptlet("load '" + ( compiledName == null ? fileName : compiledName ) + "'");
         }
         else {
             runtime.executeScript(script, fileName);
         }
     }
 
+    /**
+     * @return the pre-compiled (.class) script to load instead of the file
+     * or null if there's no compatible compiled script
+     */
+    protected String getCompiledFileName() {
+        if ( fileName == null || ! fileName.endsWith(".rb") ) return null;
+        final String compiledName = fileName.substring(0, fileName.length() - 3) + ".class";
+        final ClassLoader loader = runtime.getJRubyClassLoader();
+        if ( loader.getResource(compiledName) == null ) return null;
+        // compiled scripts only work with the JRuby version they've been compiled with
+        final InputStream marker = loader.getResourceAsStream(COMPILED_MARKER);
+        if ( marker == null ) return null;
+        try {
+            final Properties properties = new Properties();
+            properties.load(marker);
+            return Constants.VERSION.equals(properties.getProperty("jruby.version")) ? compiledName : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            try { marker.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+
     public void stop() {
         // NOTE: we did not create the runtime, thus we do not tear-down !
         // if ( true ) runtime.tearDown();
@@ -50,18 +50,26 @@ public abstract class ServletWorkerManager extends WorkerManager {
         return val;
     }
     
+    @Override
+    protected String getIsolatedRoot() {
+        final String root = getParameter(ISOLATED_ROOT_KEY);
+        if ( root != null ) return root;
+        final String webInf = context.getRealPath("/WEB-INF"); // (warbled) application root
+        return webInf == null ? super.getIsolatedRoot() : webInf;
+    }
+
     @Override
     protected InputStream openPath(String path) throws IOException {
         return context.getResourceAsStream(path);
     }
     
     @Override
-    protected void log(String message) {
+    protected void doLog(String message) {
         context.log(message);
     }
 
     @Override
-    protected void log(String message, Exception e) {
+    protected void doLog(String message, Exception e) {
         context.log(message, e);
     }
     
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.javasupport.JavaEmbedUtils;
+
+/**
+ * A manager running workers without a servlet container, the (Rails)
+ * application is booted straight from it's root directory e.g. :
+ *
+ *   java -cp jruby-complete.jar:jruby-rack-worker.jar -Djruby.worker=delayed_job
+ *     org.kares.jruby.StandaloneWorkerManager /path/to/app [worker.properties]
+ *
+ * Parameters are resolved from Java system properties first and than from
+ * the (optional) properties file. Workers are stopped (and waited for) from
+ * a JVM shutdown hook thus a SIGTERM drains them gracefully.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class StandaloneWorkerManager extends WorkerManager {
+
+    /**
+     * The application root directory (defaults to the current directory).
+     */
+    public static final String ROOT_KEY = "jruby.worker.root";
+
+    /**
+     * A properties file to read (worker) parameters from.
+     */
+    public static final String CONFIG_KEY = "jruby.worker.config";
+
+    /**
+     * The script (relative to root) booting the application, by default
+     * <code>config/environment.rb</code> is loaded (if it exists).
+     */
+    public static final String BOOT_KEY = "jruby.worker.boot";
+
+    /**
+     * Whether all worker threads share a single runtime (the default), set to
+     * false if the application is not thread-safe to boot a runtime per thread.
+     */
+    public static final String RUNTIME_SHARED_KEY = "jruby.worker.runtime.shared";
+
+    /**
+     * The application environment (sets RAILS_ENV and RACK_ENV unless set).
+     */
+    public static final String ENV_KEY = "rails.env";
+
+    private final File root;
+    private final Properties properties;
+
+    private final List<Ruby> runtimes = new ArrayList<Ruby>(4);
+
+    public StandaloneWorkerManager(final File root, final Properties properties) {
+        if (root == null) {
+            throw new IllegalArgumentException("null root");
+        }
+        this.root = root.getAbsoluteFile();
+        this.properties = properties == null ? new Properties() : properties;
+        if ( getParameter(SHUTDOWN_TIMEOUT_KEY) == null ) {
+            setShutdownTimeout(30 * 1000L); // nothing else to wait for
+        }
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    @Override
+    public String getParameter(final String key) {
+        final String val = super.getParameter(key);
+        return val == null ? properties.getProperty(key) : val;
+    }
+
+    @Override
+    protected InputStream openPath(final String path) throws IOException {
+        final File file = new File(path);
+        if ( ! file.isAbsolute() ) {
+            final File rootFile = new File(root, path);
+            if ( rootFile.isFile() ) return new FileInputStream(rootFile);
+        }
+        return super.openPath(path);
+    }
+
+    @Override
+    protected synchronized Ruby getRuntime() {
+        if ( isRuntimeShared() && ! runtimes.isEmpty() ) {
+            return runtimes.get(0);
+        }
+        final Ruby runtime = newRuntime();
+        runtimes.add(runtime);
+        return runtime;
+    }
+
+    /**
+     * Creates and boots a new application runtime.
+     * @return a runtime
+     */
+    protected Ruby newRuntime() {
+        final RubyInstanceConfig config = new RubyInstanceConfig();
+        config.setCurrentDirectory( root.getPath() );
+
+        final Ruby runtime = Ruby.newInstance(config);
+        if ( isExported() ) { // so that JRuby::Rack::Worker::ENV works while booting
+            runtime.getGlobalVariables().set("$" + EXPORTED_NAME, JavaEmbedUtils.javaToRuby(runtime, this));
+        }
+
+        final StringBuilder script = new StringBuilder(128);
+        script.append("Dir.chdir(").append( quote(root.getPath()) ).append(")\n");
+        final String env = getParameter(ENV_KEY);
+        if ( env != null ) {
+            script.append("ENV['RAILS_ENV'] ||= ").append( quote(env) ).append('\n');
+            script.append("ENV['RACK_ENV'] ||= ").append( quote(env) ).append('\n');
+        }
+        final File boot = getBootFile();
+        if ( boot != null ) {
+            script.append("require ").append( quote(boot.getPath()) ).append('\n');
+        }
+        final long start = System.currentTimeMillis();
+        runtime.evalScriptlet( script.toString() );
+        if ( boot != null ) {
+            log("[" + getClass().getName() + "] booted " + boot + " in " + ( System.currentTimeMillis() - start ) + "ms");
+        }
+        return runtime;
+    }
+
+    private File getBootFile() {
+        final String path = getParameter(BOOT_KEY);
+        if ( path == null ) {
+            final File environment = new File(root, "config/environment.rb");
+            return environment.isFile() ? environment : null;
+        }
+        final File boot = new File(path);
+        return boot.isAbsolute() ? boot : new File(root, path);
+    }
+
+    protected boolean isRuntimeShared() {
+        final String shared = getParameter(RUNTIME_SHARED_KEY);
+        return shared == null || Boolean.parseBoolean(shared);
+    }
+
+    /**
+     * Shuts down workers and tears down the runtimes (at_exit hooks run), a
+     * runtime with a worker thread still running (that did not stop even when
+     * interrupted) is left as is.
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        final List<Ruby> runtimes;
+        synchronized (this) {
+            runtimes = new ArrayList<Ruby>(this.runtimes);
+            this.runtimes.clear();
+        }
+        for ( final Ruby runtime : runtimes ) {
+            if ( isRuntimeInUse(runtime) ) {
+                log("[" + getClass().getName() + "] not tearing down runtime - a worker is still running");
+                continue;
+            }
+            try {
+                runtime.tearDown(false);
+            }
+            catch (Exception e) {
+                log("[" + getClass().getName() + "] ignoring runtime tear down exception " + e);
+            }
+        }
+    }
+
+    /**
+     * Blocks until all started worker threads complete.
+     * @throws InterruptedException
+     */
+    public void awaitWorkers() throws InterruptedException {
+        final List<Thread> threads;
+        synchronized (workers) { threads = new ArrayList<Thread>(workers.values()); }
+        for ( final Thread thread : threads ) thread.join();
+    }
+
+    private static String quote(final String str) {
+        return '\'' + str.replace("\\", "\\\\").replace("'", "\\'") + '\'';
+    }
+
+    /**
+     * Usage: StandaloneWorkerManager [root] [config.properties]
+     * @param args
+     */
+    public static void main(final String[] args) throws Exception {
+        final String root = args.length > 0 ? args[0] : System.getProperty(ROOT_KEY, ".");
+        final String config = args.length > 1 ? args[1] : System.getProperty(CONFIG_KEY);
+
+        final Properties properties = new Properties();
+        if ( config != null ) {
+            final InputStream input = new FileInputStream(config);
+            try { properties.load(input); }
+            finally { input.close(); }
+        }
+
+        final StandaloneWorkerManager manager = new StandaloneWorkerManager(new File(root), properties);
+        Runtime.getRuntime().addShutdownHook(new Thread("jruby-rack-worker-shutdown") {
+            @Override
+            public void run() { manager.shutdown(); }
+        });
+        manager.startup();
+        if ( manager.workers.isEmpty() ) System.exit( manager.isSkipStartup() ? 0 : 1 );
+        // worker threads are daemons - keep the JVM running until they're done
+        manager.awaitWorkers();
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves an (auto-sized) worker thread count e.g. <code>auto</code> or
+ * <code>cores*2</code> where cores are the available processors limited by
+ * the (container) cgroup CPU quota.
+ *
+ * The count is further capped by (if known) :
+ * <ul>
+ *   <li>the connection pool size - with a shared runtime workers use the same
+ *       pool as requests, at least one connection is left for requests</li>
+ *   <li>the (maximum) number of runtimes - with pooled runtimes each worker
+ *       takes a runtime out of the pool, at least one is left for requests</li>
+ * </ul>
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class ThreadCount {
+
+    private static final Pattern EXPRESSION =
+        Pattern.compile("(auto|cores)\\s*(?:([*/+-])\\s*(\\d+(?:\\.\\d+)?))?", Pattern.CASE_INSENSITIVE);
+
+    private final int processors;
+    private final double cpuQuota;
+    private final int connectionPool;
+    private final int maxRuntimes;
+
+    private String decision;
+
+    /**
+     * @param processors available processors
+     * @param cpuQuota the (cgroup) CPU quota or a negative value if none
+     * @param connectionPool the connection pool size or a negative value if not known
+     * @param maxRuntimes the maximum (pooled) runtimes (a value &lt;= 1 means a shared runtime)
+     */
+    public ThreadCount(final int processors, final double cpuQuota, final int connectionPool, final int maxRuntimes) {
+        this.processors = Math.max(processors, 1);
+        this.cpuQuota = cpuQuota;
+        this.connectionPool = connectionPool;
+        this.maxRuntimes = maxRuntimes;
+    }
+
+    /**
+     * @param value
+     * @return whether the value is an (auto) expression
+     */
+    public static boolean isExpression(final String value) {
+        return value != null && EXPRESSION.matcher(value.trim()).matches();
+    }
+
+    /**
+     * @return the processors (CPUs) available - limited by the CPU quota
+     */
+    public int getCores() {
+        if ( cpuQuota > 0 ) {
+            return Math.max(1, Math.min(processors, (int) Math.ceil(cpuQuota)));
+        }
+        return processors;
+    }
+
+    /**
+     * @param expression e.g. "auto" or "cores*2"
+     * @return the resolved thread count (at least 1)
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public int resolve(final String expression) {
+        final Matcher matcher = EXPRESSION.matcher(expression.trim());
+        if ( ! matcher.matches() ) {
+            throw new IllegalArgumentException("invalid thread count expression: '" + expression + "'");
+        }
+        final int cores = getCores();
+        double count = cores;
+        if ( matcher.group(2) != null ) {
+            final double operand = Double.parseDouble(matcher.group(3));
+            switch ( matcher.group(2).charAt(0) ) {
+                case '*' : count = cores * operand; break;
+                case '/' : count = operand == 0 ? cores : cores / operand; break;
+                case '+' : count = cores + operand; break;
+                case '-' : count = cores - operand; break;
+            }
+        }
+        int resolved = Math.max(1, (int) Math.round(count));
+
+        final StringBuilder decision = new StringBuilder();
+        decision.append(processors).append(" processor(s)");
+        if ( cpuQuota > 0 ) decision.append(", CPU quota ").append(cpuQuota);
+        decision.append(" = ").append(cores).append(" core(s)");
+        if ( maxRuntimes > 1 ) {
+            decision.append(", ").append(maxRuntimes).append(" pooled runtimes");
+            if ( resolved > maxRuntimes - 1 ) {
+                resolved = Math.max(1, maxRuntimes - 1);
+                decision.append(" (capped)");
+            }
+        }
+        else {
+            decision.append(", shared runtime");
+            if ( connectionPool > 0 ) {
+                decision.append(", connection pool ").append(connectionPool);
+                if ( resolved > connectionPool - 1 ) {
+                    resolved = Math.max(1, connectionPool - 1);
+                    decision.append(" (capped)");
+                }
+            }
+        }
+        this.decision = decision.toString();
+        return resolved;
+    }
+
+    /**
+     * @return how the (last) count has been resolved (for logging)
+     */
+    public String getDecision() {
+        return decision;
+    }
+
+    /**
+     * Reads the CPU quota of the (container) cgroup (v2 or v1).
+     * @param root the cgroup file-system root e.g. /sys/fs/cgroup
+     * @return the CPU quota (e.g. 1.5) or -1 if no quota is set
+     */
+    public static double readCpuQuota(final File root) {
+        try {
+            // cgroup v2 : "max 100000" or "150000 100000"
+            final String max = readLine(new File(root, "cpu.max"));
+            if ( max != null ) {
+                final String[] parts = max.trim().split("\\s+");
+                if ( parts.length < 2 || "max".equals(parts[0]) ) return -1;
+                return quota(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            }
+            // cgroup v1 : quota is -1 if not set
+            final String quota = readLine(new File(root, "cpu/cpu.cfs_quota_us"));
+            final String period = readLine(new File(root, "cpu/cpu.cfs_period_us"));
+            if ( quota != null && period != null ) {
+                return quota(Long.parseLong(quota.trim()), Long.parseLong(period.trim()));
+            }
+        }
+        catch (NumberFormatException e) { /* unknown format */ }
+        catch (IOException e) { /* not readable */ }
+        return -1;
+    }
+
+    private static double quota(final long quota, final long period) {
+        return quota > 0 && period > 0 ? (double) quota / period : -1;
+    }
+
+    private static String readLine(final File file) throws IOException {
+        if ( ! file.isFile() ) return null;
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            return reader.readLine();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+}
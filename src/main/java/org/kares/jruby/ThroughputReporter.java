@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Periodically logs a throughput summary line per (queue) pool of workers of
+ * a manager, instead of workers logging per processed job.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class ThroughputReporter implements Runnable {
+
+    private final WorkerManager manager;
+    private final long interval; // millis
+
+    private volatile Thread thread;
+    private long lastReport;
+
+    public ThroughputReporter(final WorkerManager manager, final long interval) {
+        this.manager = manager;
+        this.interval = interval;
+    }
+
+    public synchronized void start(final String name) {
+        if ( thread != null ) return;
+        lastReport = System.currentTimeMillis();
+        manager.getJobMetrics().nextInterval(); // start fresh
+        final Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        this.thread = thread;
+    }
+
+    /**
+     * Stops reporting, logs the summary of the last (unfinished) interval.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            if ( ( thread = this.thread ) == null ) return;
+            this.thread = null;
+        }
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while ( thread != null ) {
+            try {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e) {
+                if ( thread != null ) continue;
+            }
+            for ( final String summary : report() ) manager.log(summary);
+        }
+    }
+
+    /**
+     * @return summary lines (per queue) for the interval since the last report
+     */
+    List<String> report() {
+        final long now = System.currentTimeMillis();
+        final long elapsed = Math.max(now - lastReport, 1);
+        lastReport = now;
+
+        final Map<String, JobMetrics.Stats> intervals = manager.getJobMetrics().nextInterval();
+        final List<String> summary = new ArrayList<String>(intervals.size());
+        for ( final Map.Entry<String, JobMetrics.Stats> entry : intervals.entrySet() ) {
+            final JobMetrics.Stats stats = entry.getValue();
+            final long count = stats.getCount();
+            final LatencyHistogram.Snapshot latency = stats.getLatency();
+            summary.add(String.format(Locale.ENGLISH,
+                "[%s] %s: %d jobs processed (%d failed) in %.1fs at %.2f j/s, latency p50=%.1fms p99=%.1fms p999=%.1fms",
+                manager.getClass().getName(), entry.getKey(), count, stats.getFailures(), elapsed / 1000.0,
+                count * 1000.0 / elapsed, latency.getP50() / 1000.0, latency.getP99() / 1000.0, latency.getP999() / 1000.0
+            ));
+        }
+        return summary;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+/**
+ * A hierarchical timing wheel (of deadlines).
+ *
+ * Each wheel has a fixed number of buckets spanning (tick * size) millis,
+ * deadlines beyond the span go to an overflow wheel (with a tick equal to
+ * this wheel's span), created on demand. As time advances overflow buckets
+ * cascade down to the lower wheel thus scheduling as well as every tick is
+ * O(1) no matter how many (or how far) deadlines are scheduled.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class TimingWheel {
+
+    private static final class Entry {
+
+        final long deadline;
+        Entry next;
+
+        Entry(final long deadline) {
+            this.deadline = deadline;
+        }
+
+    }
+
+    private final long tick;
+    private final int size;
+    private final long span;
+    private final Entry[] buckets;
+
+    private long time; // (tick aligned) current time
+    private TimingWheel overflow;
+
+    private int pending;
+
+    /**
+     * @param tick the (lowest wheel's) tick duration in millis
+     * @param size number of buckets in each wheel
+     * @param now the current time
+     */
+    public TimingWheel(final long tick, final int size, final long now) {
+        this.tick = tick;
+        this.size = size;
+        this.span = tick * size;
+        this.buckets = new Entry[size];
+        this.time = now - ( now % tick );
+    }
+
+    /**
+     * Schedule a deadline.
+     * @param deadline time millis
+     * @return false if the deadline is already due (thus not scheduled)
+     */
+    public synchronized boolean schedule(final long deadline) {
+        if ( add( new Entry(deadline) ) ) {
+            pending++; return true;
+        }
+        return false;
+    }
+
+    private boolean add(final Entry entry) {
+        if ( entry.deadline < time + tick ) return false; // due
+        if ( entry.deadline < time + span ) {
+            final int index = (int) ( ( entry.deadline / tick ) % size );
+            entry.next = buckets[index]; buckets[index] = entry;
+            return true;
+        }
+        if ( overflow == null ) overflow = new TimingWheel(span, size, time);
+        return overflow.add(entry);
+    }
+
+    /**
+     * Advance the clock.
+     * @param now the current time
+     * @return number of deadlines that expired (are due)
+     */
+    public synchronized int advance(final long now) {
+        int expired = 0;
+        while ( time + tick <= now ) {
+            expired += advanceTo(time + tick, this);
+        }
+        pending -= expired;
+        return expired;
+    }
+
+    private int advanceTo(final long now, final TimingWheel root) {
+        if ( now < time + tick ) return 0;
+        time = now - ( now % tick );
+        // cascade (higher level) overflow buckets first :
+        int expired = overflow == null ? 0 : overflow.advanceTo(now, root);
+        final int index = (int) ( ( time / tick ) % size );
+        Entry entry = buckets[index]; buckets[index] = null;
+        while ( entry != null ) {
+            final Entry next = entry.next; entry.next = null;
+            if ( ! root.add(entry) ) expired++;
+            entry = next;
+        }
+        return expired;
+    }
+
+    /**
+     * @return number of scheduled (not yet expired) deadlines
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+}
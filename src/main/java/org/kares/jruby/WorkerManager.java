@@ -21,14 +21,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.jruby.Ruby;
 import org.jruby.javasupport.JavaEmbedUtils;
 
@@ -77,7 +98,10 @@ public abstract class WorkerManager {
     public static final String SCRIPT_PATH_KEY = "jruby.worker.script.path";
 
     /**
-     * The thread count - how many worker (daemon) threads to create.
+     * The thread count - how many worker (daemon) threads to create, besides a
+     * number an (auto-sized) expression such as <code>auto</code> or
+     * <code>cores*2</code> is accepted.
+     * @see ThreadCount
      */
     public static final String THREAD_COUNT_KEY = "jruby.worker.thread.count";
 
@@ -87,11 +111,236 @@ public abstract class WorkerManager {
      */
     public static final String THREAD_PRIORITY_KEY = "jruby.worker.thread.priority";
 
+    /**
+     * Target (p99) web request latency in millis, workers get throttled while
+     * requests (tracked by the WorkerThrottleFilter) are slower (not set by default).
+     * @see WorkerThrottle
+     */
+    public static final String THROTTLE_LATENCY_KEY = "jruby.worker.throttle.latency";
+
+    /**
+     * Maximum number of in-flight requests before workers get throttled.
+     */
+    public static final String THROTTLE_REQUESTS_KEY = "jruby.worker.throttle.requests";
+
+    /**
+     * The throttle (adjustment) window in millis (default 1000).
+     */
+    public static final String THROTTLE_WINDOW_KEY = "jruby.worker.throttle.window";
+
+    /**
+     * Maps job priorities to thread priorities, a worker (thread) adjusts it's
+     * priority for each job e.g. <code>..9=MAX, 10..19=NORM, 20..=MIN</code>.
+     * @see PriorityBands
+     */
+    public static final String THREAD_PRIORITY_BANDS_KEY = "jruby.worker.thread.priority.bands";
+
+    /**
+     * A worker backs off (to e.g. request threads) before performing a job
+     * mapped to a lower than normal thread priority, for the given millis per
+     * priority level below NORM (<code>true</code> means 10ms per level).
+     */
+    public static final String THREAD_PRIORITY_YIELD_KEY = "jruby.worker.thread.priority.yield";
+
+    /**
+     * A script (path) run on each worker runtime before workers start (e.g.
+     * to exercise the application so that lazy loading and JIT warms up).
+     */
+    public static final String WARMUP_SCRIPT_KEY = "jruby.worker.warmup.script";
+
+    /**
+     * Job classes (comma separated) to load and warm up (classes responding
+     * to <code>warm_up</code> have it called) on each worker runtime.
+     */
+    public static final String WARMUP_JOBS_KEY = "jruby.worker.warmup.jobs";
+
+    /**
+     * How many times each job class <code>warm_up</code> is called (default 1).
+     */
+    public static final String WARMUP_ITERATIONS_KEY = "jruby.worker.warmup.iterations";
+
+    /**
+     * Whether startup blocks until warm-up completes (gates application readiness).
+     */
+    public static final String WARMUP_GATE_KEY = "jruby.worker.warmup.gate";
+
+    /**
+     * Number of child (JVM) processes to perform isolated jobs in (none by default).
+     * @see IsolatedWorkerPool
+     */
+    public static final String ISOLATED_KEY = "jruby.worker.isolated";
+
+    /**
+     * The application root directory for isolated workers to boot.
+     */
+    public static final String ISOLATED_ROOT_KEY = "jruby.worker.isolated.root";
+
+    /**
+     * The class-path for isolated workers (defaults to the JRuby and worker jars).
+     */
+    public static final String ISOLATED_CLASSPATH_KEY = "jruby.worker.isolated.classpath";
+
+    /**
+     * (Space separated) JVM options for isolated workers e.g. <code>-Xmx512m</code>.
+     */
+    public static final String ISOLATED_JAVA_OPTS_KEY = "jruby.worker.isolated.java.opts";
+
+    /**
+     * Resident memory (RSS in MB) after which an isolated worker gets restarted.
+     */
+    public static final String ISOLATED_MEMORY_KEY = "jruby.worker.isolated.memory";
+
+    /**
+     * How long (millis) to wait for an isolated worker to become available (default 60000).
+     */
+    public static final String ISOLATED_TIMEOUT_KEY = "jruby.worker.isolated.timeout";
+
+    /**
+     * Whether (built-in) workers complete in-JVM job futures, for threads to
+     * {@link #await(Object, long)} jobs (by id) instead of polling.
+     */
+    public static final String COMPLETIONS_KEY = "jruby.worker.completions";
+
+    /**
+     * How long (seconds) completions no one awaited are kept (default 60).
+     */
+    public static final String COMPLETIONS_RETENTION_KEY = "jruby.worker.completions.retention";
+
     /**
      * <b></>-Djruby.worker.skip=true</b> will skip worker startup.
      */
     public static final String SKIP_KEY = "jruby.worker.skip";
 
+    /**
+     * Whether to register (JMX) MBeans e.g. for the {@link JobMetrics},
+     * set to true to enable (disabled by default).
+     */
+    public static final String JMX_KEY = "jruby.worker.jmx";
+
+    /**
+     * Asynchronous logging, when set to true manager (as well as Ruby worker)
+     * log messages are buffered and written from a separate thread.
+     */
+    public static final String LOG_ASYNC_KEY = "jruby.worker.log.async";
+
+    /**
+     * Asynchronous logging buffer size (defaults to 1024 messages).
+     */
+    public static final String LOG_ASYNC_BUFFER_KEY = "jruby.worker.log.async.buffer";
+
+    /**
+     * What to do when the asynchronous log buffer is full - supported values:
+     * "block" (the default) or "drop" the message (dropped messages are counted).
+     */
+    public static final String LOG_ASYNC_POLICY_KEY = "jruby.worker.log.async.policy";
+
+    /**
+     * Log a throughput summary line every given seconds (for all workers)
+     * instead of per processed job lines (which are logged at debug level).
+     * Disabled (0) by default.
+     */
+    public static final String LOG_SUMMARY_KEY = "jruby.worker.log.summary";
+
+    /**
+     * How long (in seconds) to wait for worker threads to finish (their current
+     * job) on shutdown, defaults to 1 second per worker thread.
+     */
+    public static final String SHUTDOWN_TIMEOUT_KEY = "jruby.worker.shutdown.timeout";
+
+    /**
+     * A directory for the (built-in) in-JVM job queue's journal, if not set
+     * the queue is not durable (jobs only live in memory).
+     * @see JobQueue
+     */
+    public static final String QUEUE_JOURNAL_KEY = "jruby.worker.queue.journal";
+
+    /**
+     * The job queue journal's segment (file) size in MB (defaults to 16).
+     */
+    public static final String QUEUE_JOURNAL_SIZE_KEY = "jruby.worker.queue.journal.size";
+
+    /**
+     * Whether to force (fsync) each journal record to disk, by default records
+     * survive a (JVM) process crash but not an OS crash.
+     */
+    public static final String QUEUE_JOURNAL_SYNC_KEY = "jruby.worker.queue.journal.sync";
+
+    /**
+     * Enables the (timing wheel) job scheduler, idle workers wait for a job to
+     * become due instead of polling their backend every sleep delay.
+     * @see JobScheduler
+     */
+    public static final String SCHEDULER_KEY = "jruby.worker.scheduler";
+
+    /**
+     * How far ahead (in seconds) the scheduler loads job run times, defaults
+     * to 60. Idle workers still poll their backend once per window.
+     */
+    public static final String SCHEDULER_WINDOW_KEY = "jruby.worker.scheduler.window";
+
+    /**
+     * Number of (fork-join) threads for jobs to fan-out work to, defaults to
+     * the number of available processors.
+     * @see ParallelExecutor
+     */
+    public static final String PARALLELISM_KEY = "jruby.worker.parallelism";
+
+    /**
+     * Whether (built-in) workers release their (ActiveRecord) connection back
+     * to the pool after each job and while idle, allows running more worker
+     * threads than connections dedicated to them.
+     */
+    public static final String CONNECTION_RELEASE_KEY = "jruby.worker.connection.release";
+
+    /**
+     * The (ActiveRecord) connection pool size, caps an auto-sized thread count
+     * (if not set the DB_POOL or RAILS_MAX_THREADS environment value is used).
+     */
+    public static final String CONNECTION_POOL_KEY = "jruby.worker.connection.pool";
+
+    /**
+     * JRuby-Rack's maximum runtimes parameter (pooled runtimes if &gt; 1).
+     */
+    static final String MAX_RUNTIMES_KEY = "jruby.max.runtimes";
+
+    /**
+     * Consecutive backend (DB/Redis) errors after which the circuit breaker
+     * opens and all workers back off together (not set or 0 disables).
+     * @see CircuitBreaker
+     */
+    public static final String BREAKER_THRESHOLD_KEY = "jruby.worker.breaker.threshold";
+
+    /**
+     * Initial circuit breaker back-off in seconds (defaults to 2), doubled on
+     * every failed probe up to a minute.
+     */
+    public static final String BREAKER_BACKOFF_KEY = "jruby.worker.breaker.backoff";
+
+    /**
+     * Rate limits per queue and/or job class shared by all workers, e.g.
+     * <code>queue:mails=10/s, class:GeocodeJob=100/m*20</code>
+     * @see RateLimits
+     */
+    public static final String RATE_LIMITS_KEY = "jruby.worker.rate.limits";
+
+    /**
+     * Whether to quarantine job classes that (mostly) fail, workers skip a
+     * quarantined class for a cool-down period.
+     * @see JobQuarantine
+     */
+    public static final String QUARANTINE_KEY = "jruby.worker.quarantine";
+
+    /**
+     * Failure rate (within a cool-down window) to quarantine a job class at,
+     * defaults to 0.9 (with at least 10 jobs performed).
+     */
+    public static final String QUARANTINE_RATE_KEY = "jruby.worker.quarantine.rate";
+
+    /**
+     * Quarantine cool-down in seconds, defaults to 60.
+     */
+    public static final String QUARANTINE_COOLDOWN_KEY = "jruby.worker.quarantine.cooldown";
+
     /**
      * By default a WorkerManager instance is exported with it's Ruby runtime.
      * This is very useful to resolve configuration keys per runtime the same
@@ -104,6 +353,50 @@ public abstract class WorkerManager {
     private boolean exported = true;
 
     protected final Map<RubyWorker, Thread> workers = new HashMap<RubyWorker, Thread>(4, 1);
+    // live worker threads - read (without locking) by workers e.g. when pruning
+    private final Map<Thread, RubyWorker> workerThreads = new ConcurrentHashMap<Thread, RubyWorker>(4);
+
+    private final JobMetrics jobMetrics = new JobMetrics();
+    private ObjectName jobMetricsName;
+
+    private volatile AsyncLogger asyncLogger;
+    private ThroughputReporter throughputReporter;
+
+    private final Map<ShutdownBatch, ShutdownBatch> shutdownBatches = new LinkedHashMap<ShutdownBatch, ShutdownBatch>(4);
+
+    private volatile boolean stopping;
+    private volatile CountDownLatch stopSignal = new CountDownLatch(1); // wakes up idle workers
+
+    private JobQueue jobQueue;
+
+    private volatile JobScheduler jobScheduler;
+
+    private ParallelExecutor parallelExecutor;
+
+    private CircuitBreaker circuitBreaker;
+    private boolean circuitBreakerResolved;
+
+    private RateLimits rateLimits;
+    private boolean rateLimitsResolved;
+
+    private JobQuarantine jobQuarantine;
+
+    // a (shared) runtime is warmed up once - other workers await the same task
+    private final Map<Ruby, FutureTask<Long>> warmUps = new HashMap<Ruby, FutureTask<Long>>(4);
+    private final AtomicInteger warmUpPending = new AtomicInteger();
+    private final AtomicLong warmUpTime = new AtomicLong();
+
+    private JobCompletions jobCompletions;
+
+    private IsolatedWorkerPool isolatedWorkerPool;
+    private boolean isolatedWorkerPoolResolved;
+
+    private WorkerThrottle workerThrottle;
+    private boolean workerThrottleResolved;
+
+    private PriorityBands priorityBands;
+    private boolean priorityBandsResolved;
+    private long priorityYield; // millis per priority level
 
     /**
      * Startup all workers.
@@ -113,6 +406,11 @@ public abstract class WorkerManager {
             log("[" + getClass().getName() + "] startup skipped"); return;
         }
 
+        if ( stopping ) stopSignal = new CountDownLatch(1);
+        stopping = false;
+
+        if ( isAsyncLogging() ) startAsyncLogger();
+
         final String[] workerScript = getWorkerScript(); // [ script, fileName ]
 
         if ( workerScript == null ) {
@@ -122,8 +420,20 @@ public abstract class WorkerManager {
             return; // throw new IllegalStateException(message);
         }
 
+        if ( isJmxEnabled() ) registerMBeans();
+
+        if ( isSummaryLogging() ) {
+            throughputReporter = new ThroughputReporter(this, getSummaryInterval() * 1000L);
+            throughputReporter.start(threadName("jruby-rack-worker-summary"));
+        }
+
         final int workersCount = getThreadCount();
 
+        if ( isSchedulerEnabled() ) {
+            jobScheduler = new JobScheduler(this, 100, getSchedulerWindow() * 1000L, workersCount);
+            jobScheduler.start(threadName("jruby-rack-worker-scheduler"));
+        }
+
         final ThreadFactory threadFactory = newThreadFactory();
         for ( int i = 0; i < workersCount; i++ ) {
             final Ruby runtime;
@@ -140,8 +450,18 @@ public abstract class WorkerManager {
             }
             try {
                 final RubyWorker worker = newRubyWorker(runtime, workerScript[0], workerScript[1]);
+                if ( isWarmUpEnabled() ) {
+                    warmUpPending.incrementAndGet();
+                    if ( isWarmUpGate() ) warmUp(runtime); // blocks startup
+                    else {
+                        worker.setWarmUp(new Runnable() {
+                            public void run() { warmUp(runtime); }
+                        });
+                    }
+                }
                 final Thread workerThread = threadFactory.newThread(worker);
-                workers.put(worker, workerThread);
+                synchronized (workers) { workers.put(worker, workerThread); }
+                workerThreads.put(workerThread, worker);
                 workerThread.start();
             }
             catch (Exception e) {
@@ -154,29 +474,56 @@ public abstract class WorkerManager {
 
     /**
      * Shutdown all (managed) workers.
+     *
+     * Workers are asked to stop (idle ones get woken up) and given the shutdown
+     * timeout to finish their current job, only threads still running after the
+     * timeout get interrupted (e.g. to abort a blocking I/O call).
      */
     public void shutdown() {
-        final Map<RubyWorker, Thread> workers = new HashMap<RubyWorker, Thread>(this.workers);
-        this.workers.clear();
-        for ( Map.Entry<RubyWorker, Thread> ent : workers.entrySet() ) {
-            final RubyWorker worker = ent.getKey();
-            if ( isExported() ) {
-                worker.runtime.getGlobalVariables().clear(GLOBAL_VAR_NAME);
-            }
-            final Thread workerThread = ent.getValue();
+        stopping = true;
+        stopSignal.countDown();
+        if ( jobScheduler != null ) { // wakes up idle workers
+            jobScheduler.stop(); jobScheduler = null;
+        }
+        final JobQueue jobQueue;
+        synchronized (this) { jobQueue = this.jobQueue; }
+        if ( jobQueue != null ) jobQueue.wakeUp(); // idle queue workers
+        final Map<RubyWorker, Thread> workers;
+        synchronized (this.workers) {
+            workers = new HashMap<RubyWorker, Thread>(this.workers);
+            this.workers.clear();
+        }
+        for ( final RubyWorker worker : workers.keySet() ) {
             try {
                 worker.stop();
-                workerThread.interrupt();
-                workerThread.join(1000);
-            }
-            catch (InterruptedException e) {
-                log("[" + getClass().getName() + "] interrupted");
-                Thread.currentThread().interrupt();
             }
             catch (Exception e) {
                 log("[" + getClass().getName() + "] ignoring exception " + e);
             }
         }
+        // wait for (busy) workers to finish with a shared deadline
+        long timeout = getShutdownTimeout();
+        if ( shutdownTimeoutPerThread ) timeout *= workers.size();
+        if ( ! joinWorkers(workers.values(), timeout) ) {
+            int interrupted = 0; // still running - interrupt those
+            for ( final Thread workerThread : workers.values() ) {
+                if ( workerThread.isAlive() ) {
+                    workerThread.interrupt(); interrupted++;
+                }
+            }
+            log("[" + getClass().getName() + "] interrupted " + interrupted + " worker(s) still running after " + timeout + "ms");
+            joinWorkers(workers.values(), INTERRUPT_TIMEOUT);
+        }
+        final Set<Ruby> runtimes = new HashSet<Ruby>(4), busyRuntimes = new HashSet<Ruby>(4);
+        for ( final Map.Entry<RubyWorker, Thread> entry : workers.entrySet() ) {
+            runtimes.add(entry.getKey().runtime);
+            if ( entry.getValue().isAlive() ) busyRuntimes.add(entry.getKey().runtime);
+            else workerThreads.remove(entry.getValue());
+        }
+        if ( isExported() ) { // not while a (lingering) worker might still use it
+            runtimes.removeAll(busyRuntimes);
+            for ( final Ruby runtime : runtimes ) runtime.getGlobalVariables().clear(GLOBAL_VAR_NAME);
+        }
         /*
         try { Thread.sleep(1000); } // Tomcat is just too fast with it's thread detection !
         catch (InterruptedException e) {
@@ -184,135 +531,418 @@ public abstract class WorkerManager {
             // but has failed to stop it. This is very likely to create a memory leak.
             context.log("[" + WorkerContextListener.class.getName() + "] ignoring interrupt " + e);
         } */
+        synchronized (warmUps) { warmUps.clear(); } // runtimes might get re-used
+        warmUpPending.set(0);
+        runShutdownBatches();
+        closeJobQueue();
+        shutdownParallelExecutor();
+        shutdownIsolatedWorkerPool();
+        if ( throughputReporter != null ) {
+            throughputReporter.stop(); throughputReporter = null;
+        }
+        unregisterMBeans();
         log("[" + getClass().getName() + "] stopped " + workers.size() + " worker(s)");
+        stopAsyncLogger();
     }
 
+    private static final long INTERRUPT_TIMEOUT = 1000;
+
     /**
-     * This shall be implemented by concrete classes and should return an
-     * (initialized) JRuby runtime ready to be used by a worker.
-     *
-     * By default this method is expected to be called as many times as the
-     * configured worker count, thus shall return the same runtime only if
-     * it's thread-safe !
-     * @return a Ruby runtime
+     * @param runtime
+     * @return whether a worker (thread) using the runtime is still alive
      */
-    protected abstract Ruby getRuntime() ;
-
-    // ----------------------------------------
-    // properties
-    // ----------------------------------------
-
-    private String threadPrefix;
-
-    public String getThreadPrefix() {
-        return threadPrefix;
-    }
-
-    public void setThreadPrefix(String threadPrefix) {
-        this.threadPrefix = threadPrefix;
+    protected boolean isRuntimeInUse(final Ruby runtime) {
+        for ( final Map.Entry<Thread, RubyWorker> entry : workerThreads.entrySet() ) {
+            if ( entry.getValue().runtime == runtime && entry.getKey().isAlive() ) return true;
+        }
+        return false;
     }
 
-    private Integer threadCount;
-
-    public Integer getThreadCount() {
-        if (threadCount == null) {
-            String count = getParameter(THREAD_COUNT_KEY);
+    /**
+     * @return true if all threads terminated (within the timeout)
+     */
+    private boolean joinWorkers(final Collection<Thread> threads, final long timeout) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        for ( final Thread thread : threads ) {
             try {
-                if ( count != null ) {
-                    return threadCount = Integer.parseInt(count);
-                }
+                thread.join( Math.max(deadline - System.currentTimeMillis(), 1) );
             }
-            catch (NumberFormatException e) {
-                log("[" + getClass().getName() + "] could not parse " + THREAD_COUNT_KEY + " parameter value = " + count, e);
+            catch (InterruptedException e) {
+                log("[" + getClass().getName() + "] interrupted");
+                Thread.currentThread().interrupt();
+                break;
             }
-            threadCount = 1;
         }
-        return threadCount;
+        for ( final Thread thread : threads ) {
+            if ( thread.isAlive() ) return false;
+        }
+        return true;
     }
 
-    public void setThreadCount(Integer threadCount) {
-        this.threadCount = threadCount;
+    /**
+     * @return a (read-only) snapshot of the live worker threads of this manager
+     */
+    public Collection<Thread> getWorkerThreads() {
+        final List<Thread> threads = new ArrayList<Thread>(workerThreads.size());
+        for ( final Thread thread : workerThreads.keySet() ) {
+            if ( thread.isAlive() ) threads.add(thread);
+        }
+        return Collections.unmodifiableList(threads);
     }
 
-    private Integer threadPriority;
+    /**
+     * @return (current) names of the live worker threads of this manager
+     * @see #getWorkerThreads()
+     */
+    public Set<String> getWorkerThreadNames() {
+        final Set<String> names = new HashSet<String>(workerThreads.size() * 2);
+        for ( final Thread thread : workerThreads.keySet() ) {
+            if ( thread.isAlive() ) names.add(thread.getName());
+        }
+        return Collections.unmodifiableSet(names);
+    }
 
-    public Integer getThreadPriority() {
-        if (threadPriority == null) {
-            String priority = getParameter(THREAD_PRIORITY_KEY);
-            try {
-                if ( priority != null ) {
-                    if ( "NORM".equalsIgnoreCase(priority) )
-                        return threadPriority = Thread.NORM_PRIORITY;
-                    if ( "MIN".equalsIgnoreCase(priority) )
-                        return threadPriority = Thread.MIN_PRIORITY;
-                    if ( "MAX".equalsIgnoreCase(priority) )
-                        return threadPriority = Thread.MAX_PRIORITY;
-                    return threadPriority = Integer.parseInt(priority);
-                }
-            }
-            catch (NumberFormatException e) {
-                log("[" + getClass().getName() + "] " +
-                    "could not parse " + THREAD_PRIORITY_KEY + " parameter value = '" + priority + "'");
-            }
-            threadPriority = Thread.NORM_PRIORITY;
+    /**
+     * Batched shutdown work for a group of workers, e.g. clearing job locks
+     * for all worker names using a single query (instead of a query per worker).
+     *
+     * @see WorkerManager#addShutdownBatch(String, String, ShutdownHandler)
+     */
+    public static interface ShutdownHandler {
+
+        /**
+         * @param names names (ids) of the workers registered with the group,
+         * except for those registered from a worker thread still running
+         * @throws Exception
+         */
+        void shutdown(String[] names) throws Exception;
+
+    }
+
+    // keyed by group and runtime (the batch is it's own key)
+    private static class ShutdownBatch {
+
+        final String group;
+        final Ruby runtime;
+        ShutdownHandler handler;
+        // name -> registering worker thread (null if not a worker thread)
+        final Map<String, Thread> names = new LinkedHashMap<String, Thread>();
+
+        ShutdownBatch(final String group, final Ruby runtime) {
+            this.group = group; this.runtime = runtime;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if ( ! ( obj instanceof ShutdownBatch ) ) return false;
+            final ShutdownBatch that = (ShutdownBatch) obj;
+            return group.equals(that.group) && runtime == that.runtime;
+        }
+
+        @Override
+        public int hashCode() {
+            return group.hashCode() ^ System.identityHashCode(runtime);
         }
-        return threadPriority;
 
     }
 
-    public void setThreadPriority(Integer threadPriority) {
-        this.threadPriority = threadPriority;
+    /**
+     * Register a worker (name) to be handled by a group's batch on shutdown.
+     * The handler is only kept from the first call (for a given group) thus
+     * workers of a group (e.g. running in the same runtime) should share it.
+     * @param group
+     * @param name
+     * @param handler
+     * @see #addShutdownBatch(String, Ruby, String, ShutdownHandler)
+     */
+    public void addShutdownBatch(final String group, final String name, final ShutdownHandler handler) {
+        addShutdownBatch(group, null, name, handler);
     }
 
     /**
-     * Get the worker script/file to execute.
-     * @param context
-     * @return a script, fileName tuple
+     * Register a worker (name) to be handled by a group's batch (of the given
+     * runtime) on shutdown.
+     * @param group
+     * @param runtime the runtime the worker (and handler) belong to
+     * @param name
+     * @param handler
      */
-    public String[] getWorkerScript() {
-        String worker = getParameter(WORKER_KEY);
-        if ( worker != null ) {
-            String script = getAvailableWorkers().get( worker.replace("::", "_").toLowerCase() );
-            if ( script != null ) {
-                return new String [] { null, script };
-            }
-            else {
-                log("[" + getClass().getName() + "] unsupported worker name: '" + worker + "' !");
+    public void addShutdownBatch(final String group, final Ruby runtime,
+        final String name, final ShutdownHandler handler) {
+        final Thread thread = Thread.currentThread();
+        final ShutdownBatch key = new ShutdownBatch(group, runtime);
+        synchronized (shutdownBatches) {
+            ShutdownBatch batch = shutdownBatches.get(key);
+            if ( batch == null ) {
+                shutdownBatches.put(key, batch = key);
+                batch.handler = handler;
             }
+            batch.names.put(name, workerThreads.containsKey(thread) ? thread : null);
         }
+    }
 
-        String script = getParameter(SCRIPT_KEY);
-        if ( script != null ) return new String [] { script, null };
+    /**
+     * Runs all registered shutdown batches (once), called from {@link #shutdown()}
+     * after worker threads have been stopped. Workers whose (registering) thread
+     * is still running are left out (e.g. to not clear the locks of it's job).
+     */
+    protected void runShutdownBatches() {
+        final List<ShutdownBatch> batches;
+        synchronized (shutdownBatches) {
+            if ( shutdownBatches.isEmpty() ) return;
+            batches = new ArrayList<ShutdownBatch>(shutdownBatches.keySet());
+            shutdownBatches.clear();
+        }
+        for ( final ShutdownBatch batch : batches ) {
+            final List<String> stopped = new ArrayList<String>(batch.names.size());
+            for ( final Map.Entry<String, Thread> entry : batch.names.entrySet() ) {
+                final Thread thread = entry.getValue();
+                if ( thread == null || ! thread.isAlive() ) stopped.add( entry.getKey() );
+            }
+            final int running = batch.names.size() - stopped.size();
+            if ( running > 0 ) {
+                log("[" + getClass().getName() + "] shutdown batch '" + batch.group + "' skipped " +
+                    running + " worker(s) still running");
+            }
+            if ( stopped.isEmpty() ) continue;
+            final String[] names = stopped.toArray(new String[stopped.size()]);
+            try {
+                final long start = System.currentTimeMillis();
+                batch.handler.shutdown(names);
+                log("[" + getClass().getName() + "] shutdown batch '" + batch.group + "' handled " +
+                    names.length + " worker(s) in " + ( System.currentTimeMillis() - start ) + "ms");
+            }
+            catch (Exception e) {
+                log("[" + getClass().getName() + "] shutdown batch '" + batch.group + "' failed", e);
+            }
+        }
+    }
 
-        String scriptPath = getParameter(SCRIPT_PATH_KEY);
-        if ( scriptPath == null ) return null;
-        // INSPIRED BY DefaultRackApplicationFactory :
+    /**
+     * The in-JVM job queue (used by the built-in "queue" worker), created on
+     * first access (replaying it's journal if configured).
+     * @return the job queue
+     * @see #QUEUE_JOURNAL_KEY
+     */
+    public synchronized JobQueue getJobQueue() {
+        if ( jobQueue == null ) {
+            final String journal = getParameter(QUEUE_JOURNAL_KEY);
+            if ( journal == null ) {
+                jobQueue = new JobQueue();
+            }
+            else {
+                int size = 16;
+                final String sizeParam = getParameter(QUEUE_JOURNAL_SIZE_KEY);
+                try {
+                    if ( sizeParam != null ) size = Integer.parseInt(sizeParam);
+                }
+                catch (NumberFormatException e) {
+                    log("[" + getClass().getName() + "] could not parse " + QUEUE_JOURNAL_SIZE_KEY + " parameter value = " + sizeParam);
+                }
+                final boolean sync = Boolean.parseBoolean( getParameter(QUEUE_JOURNAL_SYNC_KEY) );
+                try {
+                    jobQueue = new JobQueue( new JobJournal(new File(journal), size * 1024 * 1024, sync) );
+                }
+                catch (IOException e) {
+                    log("[" + getClass().getName() + "] failed to open job queue journal: " + journal, e);
+                    throw new IllegalStateException(e);
+                }
+                log("[" + getClass().getName() + "] replayed " + jobQueue.size() + " job(s) from journal: " + journal);
+            }
+        }
+        return jobQueue;
+    }
+
+    protected synchronized void closeJobQueue() {
+        final JobQueue jobQueue = this.jobQueue;
+        if ( jobQueue == null || jobQueue.getJournal() == null ) return;
+        this.jobQueue = null; // re-opened (replayed) on next access
+        jobQueue.close();
+    }
+
+    protected void startAsyncLogger() {
+        int capacity = 1024;
+        final String buffer = getParameter(LOG_ASYNC_BUFFER_KEY);
         try {
-            final InputStream scriptStream = openPath(scriptPath);
-            if ( scriptStream != null ) {
-                final StringBuilder content = new StringBuilder(256);
-                int c = scriptStream.read();
-                Reader reader; String coding = "UTF-8";
-                if ( c == '#' ) { // look for a coding: pragma
-                    content.append((char) c);
-                    while ((c = scriptStream.read()) != -1 && c != 10) {
-                        content.append((char) c);
-                    }
-                    Pattern matchCoding = Pattern.compile("coding:\\s*(\\S+)");
-                    Matcher matcher = matchCoding.matcher( content.toString() );
-                    if (matcher.find()) coding = matcher.group(1);
+            if ( buffer != null ) capacity = Integer.parseInt(buffer);
+        }
+        catch (NumberFormatException e) {
+            log("[" + getClass().getName() + "] could not parse " + LOG_ASYNC_BUFFER_KEY + " parameter value = " + buffer);
+        }
+        final boolean drop = "drop".equalsIgnoreCase( getParameter(LOG_ASYNC_POLICY_KEY) );
+        final AsyncLogger asyncLogger = new AsyncLogger(Math.max(capacity, 16), ! drop);
+        asyncLogger.start( threadName("jruby-rack-worker-log") );
+        this.asyncLogger = asyncLogger;
+    }
+
+    protected void stopAsyncLogger() {
+        final AsyncLogger asyncLogger = this.asyncLogger;
+        if ( asyncLogger == null ) return;
+        this.asyncLogger = null;
+        asyncLogger.stop(5000);
+        if ( asyncLogger.getDropped() > 0 ) {
+            log("[" + getClass().getName() + "] dropped " + asyncLogger.getDropped() + " log message(s)");
+        }
+    }
+
+    private String threadName(final String name) {
+        final String prefix = getThreadPrefix();
+        return ( prefix == null || prefix.length() == 0 ? "" : prefix + '-' ) + name;
+    }
+
+    protected void registerMBeans() {
+        final String name = getThreadPrefix();
+        try {
+            final ObjectName objectName = new ObjectName("org.kares.jruby:type=JobMetrics,name=" +
+                ObjectName.quote( name == null || name.length() == 0 ? "default" : name ));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered(objectName) ) server.unregisterMBean(objectName);
+            server.registerMBean(jobMetrics, objectName);
+            jobMetricsName = objectName;
+        }
+        catch (Exception e) {
+            log("[" + getClass().getName() + "] failed to register MBean", e);
+        }
+    }
+
+    protected void unregisterMBeans() {
+        final ObjectName objectName = jobMetricsName;
+        if ( objectName == null ) return;
+        jobMetricsName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (Exception e) {
+            log("[" + getClass().getName() + "] failed to unregister MBean: " + e);
+        }
+    }
+
+    /**
+     * This shall be implemented by concrete classes and should return an
+     * (initialized) JRuby runtime ready to be used by a worker.
+     *
+     * By default this method is expected to be called as many times as the
+     * configured worker count, thus shall return the same runtime only if
+     * it's thread-safe !
+     * @return a Ruby runtime
+     */
+    protected abstract Ruby getRuntime() ;
+
+    // ----------------------------------------
+    // properties
+    // ----------------------------------------
+
+    private String threadPrefix;
+
+    public String getThreadPrefix() {
+        return threadPrefix;
+    }
+
+    public void setThreadPrefix(String threadPrefix) {
+        this.threadPrefix = threadPrefix;
+    }
+
+    private Integer threadCount;
+
+    public Integer getThreadCount() {
+        if (threadCount == null) {
+            String count = getParameter(THREAD_COUNT_KEY);
+            try {
+                if ( ThreadCount.isExpression(count) ) {
+                    final ThreadCount auto = newThreadCount();
+                    threadCount = auto.resolve(count);
+                    log("[" + getClass().getName() + "] " + THREAD_COUNT_KEY + " = '" + count.trim() + "' " +
+                        "resolved to " + threadCount + " (" + auto.getDecision() + ")");
+                    return threadCount;
+                }
+                if ( count != null ) {
+                    return threadCount = Integer.parseInt(count);
                 }
+            }
+            catch (NumberFormatException e) {
+                log("[" + getClass().getName() + "] could not parse " + THREAD_COUNT_KEY + " parameter value = " + count, e);
+            }
+            threadCount = 1;
+        }
+        return threadCount;
+    }
 
-                content.append((char) c);
-                reader = new InputStreamReader(scriptStream, coding);
+    public void setThreadCount(Integer threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @return a thread count resolver for the current environment
+     */
+    protected ThreadCount newThreadCount() {
+        int pool = getIntParameter(CONNECTION_POOL_KEY, -1);
+        if ( pool < 0 ) {
+            String env = System.getenv("DB_POOL");
+            if ( env == null ) env = System.getenv("RAILS_MAX_THREADS");
+            try {
+                if ( env != null ) pool = Integer.parseInt(env.trim());
+            }
+            catch (NumberFormatException e) { /* ignore */ }
+        }
+        return new ThreadCount(Runtime.getRuntime().availableProcessors(),
+            ThreadCount.readCpuQuota(new File("/sys/fs/cgroup")), pool, getIntParameter(MAX_RUNTIMES_KEY, -1));
+    }
 
-                while ((c = reader.read()) != -1) {
-                    content.append((char) c);
+    private Integer threadPriority;
+
+    public Integer getThreadPriority() {
+        if (threadPriority == null) {
+            String priority = getParameter(THREAD_PRIORITY_KEY);
+            try {
+                if ( priority != null ) {
+                    if ( "NORM".equalsIgnoreCase(priority) )
+                        return threadPriority = Thread.NORM_PRIORITY;
+                    if ( "MIN".equalsIgnoreCase(priority) )
+                        return threadPriority = Thread.MIN_PRIORITY;
+                    if ( "MAX".equalsIgnoreCase(priority) )
+                        return threadPriority = Thread.MAX_PRIORITY;
+                    return threadPriority = Integer.parseInt(priority);
                 }
+            }
+            catch (NumberFormatException e) {
+                log("[" + getClass().getName() + "] " +
+                    "could not parse " + THREAD_PRIORITY_KEY + " parameter value = '" + priority + "'");
+            }
+            threadPriority = Thread.NORM_PRIORITY;
+        }
+        return threadPriority;
 
-                script = content.toString();
+    }
+
+    public void setThreadPriority(Integer threadPriority) {
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Get the worker script/file to execute.
+     * @param context
+     * @return a script, fileName tuple
+     */
+    public String[] getWorkerScript() {
+        String worker = getParameter(WORKER_KEY);
+        if ( worker != null ) {
+            String script = getAvailableWorkers().get( worker.replace("::", "_").toLowerCase() );
+            if ( script != null ) {
+                return new String [] { null, script };
+            }
+            else {
+                log("[" + getClass().getName() + "] unsupported worker name: '" + worker + "' !");
             }
         }
+
+        String script = getParameter(SCRIPT_KEY);
+        if ( script != null ) return new String [] { script, null };
+
+        String scriptPath = getParameter(SCRIPT_PATH_KEY);
+        if ( scriptPath == null ) return null;
+        try {
+            script = readScript(scriptPath);
+        }
         catch (Exception e) {
             log("[" + getClass().getName() + "] error reading script: '" + scriptPath + "'", e);
             return null;
@@ -321,6 +951,39 @@ public abstract class WorkerManager {
         return new String[] { script, scriptPath }; // one of these is != null
     }
 
+    /**
+     * Reads a script (respects a coding: pragma on the first line).
+     * @param scriptPath
+     * @return the script content or null if the path does not exist
+     * @throws IOException
+     */
+    protected String readScript(final String scriptPath) throws IOException {
+        // INSPIRED BY DefaultRackApplicationFactory :
+        final InputStream scriptStream = openPath(scriptPath);
+        if ( scriptStream == null ) return null;
+        final StringBuilder content = new StringBuilder(256);
+        int c = scriptStream.read();
+        Reader reader; String coding = "UTF-8";
+        if ( c == '#' ) { // look for a coding: pragma
+            content.append((char) c);
+            while ((c = scriptStream.read()) != -1 && c != 10) {
+                content.append((char) c);
+            }
+            Pattern matchCoding = Pattern.compile("coding:\\s*(\\S+)");
+            Matcher matcher = matchCoding.matcher( content.toString() );
+            if (matcher.find()) coding = matcher.group(1);
+        }
+
+        content.append((char) c);
+        reader = new InputStreamReader(scriptStream, coding);
+
+        while ((c = reader.read()) != -1) {
+            content.append((char) c);
+        }
+
+        return content.toString();
+    }
+
     public Map<String, String> getAvailableWorkers() {
         return new HashMap<String, String>() {
 
@@ -329,15 +992,536 @@ public abstract class WorkerManager {
                 put("delayed", "delayed/start_worker.rb"); // alias
                 put("navvy", "navvy/start_worker.rb");
                 put("resque", "resque/start_worker.rb");
+                put("queue", "jruby/rack/worker/queue/start_worker.rb");
             }
 
         };
     }
 
+    /**
+     * Workers should check this and exit their loop (after the current job).
+     * @return whether the manager is shutting down
+     */
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Idle workers wait here (instead of sleeping) to be woken up on shutdown,
+     * thus the manager does not need to interrupt them.
+     * @param timeout (millis)
+     * @return whether the manager is stopping
+     * @throws InterruptedException
+     */
+    public boolean awaitStopping(final long timeout) throws InterruptedException {
+        if ( stopping ) return true;
+        stopSignal.await(timeout, TimeUnit.MILLISECONDS);
+        return stopping;
+    }
+
+    private Long shutdownTimeout;
+    private boolean shutdownTimeoutPerThread; // not configured
+
+    /**
+     * @return how long to wait (in milliseconds) for workers to stop on shutdown
+     * (unless configured the manager waits this long per worker thread)
+     * @see #SHUTDOWN_TIMEOUT_KEY
+     */
+    public long getShutdownTimeout() {
+        if (shutdownTimeout == null) {
+            final String timeout = getParameter(SHUTDOWN_TIMEOUT_KEY);
+            try {
+                if ( timeout != null ) {
+                    return shutdownTimeout = Math.max((long) ( Double.parseDouble(timeout) * 1000 ), 0);
+                }
+            }
+            catch (NumberFormatException e) {
+                log("[" + getClass().getName() + "] could not parse " + SHUTDOWN_TIMEOUT_KEY + " parameter value = " + timeout);
+            }
+            shutdownTimeout = 1000L; shutdownTimeoutPerThread = true;
+        }
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(Long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        this.shutdownTimeoutPerThread = false;
+    }
+
+    /**
+     * The (fork-join) executor shared by all workers, created on first access.
+     * @return the parallel executor
+     * @see #PARALLELISM_KEY
+     */
+    public synchronized ParallelExecutor getParallelExecutor() {
+        if ( parallelExecutor == null ) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            final String param = getParameter(PARALLELISM_KEY);
+            try {
+                if ( param != null ) parallelism = Math.max(Integer.parseInt(param), 1);
+            }
+            catch (NumberFormatException e) {
+                log("[" + getClass().getName() + "] could not parse " + PARALLELISM_KEY + " parameter value = " + param);
+            }
+            parallelExecutor = new ParallelExecutor(parallelism, threadName("jruby-rack-worker-parallel"));
+        }
+        return parallelExecutor;
+    }
+
+    protected synchronized void shutdownParallelExecutor() {
+        final ParallelExecutor parallelExecutor = this.parallelExecutor;
+        if ( parallelExecutor == null ) return;
+        this.parallelExecutor = null;
+        parallelExecutor.shutdown( getShutdownTimeout() );
+    }
+
+    /**
+     * The circuit breaker workers consult before accessing their backend.
+     * @return the circuit breaker or null if disabled
+     * @see #BREAKER_THRESHOLD_KEY
+     */
+    public synchronized CircuitBreaker getCircuitBreaker() {
+        if ( ! circuitBreakerResolved ) {
+            circuitBreakerResolved = true;
+            final int threshold = getIntParameter(BREAKER_THRESHOLD_KEY, 0);
+            if ( threshold > 0 ) { // a probe taking longer than the (initial) back-off is lost
+                final long backoff = getIntParameter(BREAKER_BACKOFF_KEY, 2) * 1000L;
+                circuitBreaker = new CircuitBreaker(this, threshold, backoff, Math.max(backoff, 60 * 1000L), backoff);
+            }
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the (configured) rate limits or null if none
+     * @see #RATE_LIMITS_KEY
+     */
+    public synchronized RateLimits getRateLimits() {
+        if ( ! rateLimitsResolved ) {
+            rateLimitsResolved = true;
+            final String limits = getParameter(RATE_LIMITS_KEY);
+            if ( limits != null && limits.trim().length() > 0 ) {
+                try {
+                    rateLimits = new RateLimits(limits);
+                }
+                catch (IllegalArgumentException e) {
+                    log("[" + getClass().getName() + "] could not parse " + RATE_LIMITS_KEY + " parameter value = " + limits, e);
+                }
+            }
+        }
+        return rateLimits;
+    }
+
+    /**
+     * @return the job (class) quarantine or null if not enabled
+     * @see #QUARANTINE_KEY
+     */
+    public synchronized JobQuarantine getJobQuarantine() {
+        if ( jobQuarantine == null && Boolean.parseBoolean(getParameter(QUARANTINE_KEY)) ) {
+            double rate = 0.9;
+            final String rateParam = getParameter(QUARANTINE_RATE_KEY);
+            try {
+                if ( rateParam != null ) rate = Double.parseDouble(rateParam);
+            }
+            catch (NumberFormatException e) {
+                log("[" + getClass().getName() + "] could not parse " + QUARANTINE_RATE_KEY + " parameter value = " + rateParam);
+            }
+            final long cooldown = getIntParameter(QUARANTINE_COOLDOWN_KEY, 60) * 1000L;
+            jobQuarantine = new JobQuarantine(this, rate, 10, cooldown);
+        }
+        return jobQuarantine;
+    }
+
+    protected boolean isWarmUpEnabled() {
+        return getParameter(WARMUP_SCRIPT_KEY) != null || getParameter(WARMUP_JOBS_KEY) != null;
+    }
+
+    protected boolean isWarmUpGate() {
+        return Boolean.parseBoolean(getParameter(WARMUP_GATE_KEY));
+    }
+
+    /**
+     * Warms up a (worker) runtime, a shared runtime is warmed up only once.
+     * @param runtime
+     * @see #WARMUP_SCRIPT_KEY
+     * @see #WARMUP_JOBS_KEY
+     */
+    protected void warmUp(final Ruby runtime) {
+        try {
+            final FutureTask<Long> warmUp; final boolean run;
+            synchronized (warmUps) {
+                FutureTask<Long> task = warmUps.get(runtime);
+                if ( run = ( task == null ) ) {
+                    task = new FutureTask<Long>(new Callable<Long>() {
+                        public Long call() { return doWarmUp(runtime); }
+                    });
+                    warmUps.put(runtime, task);
+                }
+                warmUp = task;
+            }
+            if ( run ) warmUp.run();
+            try {
+                warmUp.get(); // (another worker's) warm-up done
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                log("[" + getClass().getName() + "] warm-up failed", e);
+            }
+        }
+        finally {
+            warmUpPending.decrementAndGet();
+        }
+    }
+
+    private long doWarmUp(final Ruby runtime) {
+        final long start = System.currentTimeMillis();
+        final String scriptPath = getParameter(WARMUP_SCRIPT_KEY);
+        try {
+            if ( scriptPath != null ) {
+                final String script = readScript(scriptPath);
+                if ( script == null ) {
+                    log("[" + getClass().getName() + "] warm-up script not found: '" + scriptPath + "'");
+                }
+                else {
+                    runtime.executeScript(script, scriptPath);
+                }
+            }
+            if ( getParameter(WARMUP_JOBS_KEY) != null ) {
+                runtime.evalScriptlet("require 'jruby/rack/worker/warmup'; JRuby::Rack::Worker.warm_up");
+            }
+        }
+        catch (Exception e) { // workers start anyway
+            log("[" + getClass().getName() + "] warm-up failed", e);
+        }
+        final long time = System.currentTimeMillis() - start;
+        long max; // keep the longest
+        while ( time > ( max = warmUpTime.get() ) && ! warmUpTime.compareAndSet(max, time) ) continue;
+        log("[" + getClass().getName() + "] warmed up runtime in " + time + "ms");
+        return time;
+    }
+
+    /**
+     * @return true unless workers are still warming up
+     */
+    public boolean isWarmedUp() {
+        return warmUpPending.get() <= 0;
+    }
+
+    /**
+     * @return the (longest) runtime warm-up time in millis
+     */
+    public long getWarmUpTime() {
+        return warmUpTime.get();
+    }
+
+    /**
+     * @return the job completions or null if not enabled
+     * @see #COMPLETIONS_KEY
+     */
+    public synchronized JobCompletions getJobCompletions() {
+        if ( jobCompletions == null && Boolean.parseBoolean(getParameter(COMPLETIONS_KEY)) ) {
+            jobCompletions = new JobCompletions(getIntParameter(COMPLETIONS_RETENTION_KEY, 60) * 1000L);
+        }
+        return jobCompletions;
+    }
+
+    /**
+     * Awaits a job (performed by a worker in this JVM) to complete.
+     * @param jobId
+     * @param timeout in millis
+     * @return the completion or null if the job did not complete in time
+     * @throws InterruptedException
+     * @throws IllegalStateException if completions are not enabled
+     * @see #COMPLETIONS_KEY
+     */
+    public JobCompletions.Completion await(final Object jobId, final long timeout) throws InterruptedException {
+        final JobCompletions completions = getJobCompletions();
+        if ( completions == null ) {
+            throw new IllegalStateException("job completions not enabled (set " + COMPLETIONS_KEY + "=true)");
+        }
+        return completions.await(jobId, timeout);
+    }
+
+    /**
+     * The pool of child processes to perform isolated jobs in, started on
+     * first access.
+     * @return the isolated worker pool or null if not configured
+     * @see #ISOLATED_KEY
+     */
+    public synchronized IsolatedWorkerPool getIsolatedWorkerPool() {
+        if ( ! isolatedWorkerPoolResolved ) {
+            isolatedWorkerPoolResolved = true;
+            final int size = getIntParameter(ISOLATED_KEY, 0);
+            if ( size <= 0 ) return null;
+            final List<String> command = new ArrayList<String>();
+            command.add( new File(System.getProperty("java.home"), "bin/java").getPath() );
+            final String javaOpts = getParameter(ISOLATED_JAVA_OPTS_KEY);
+            if ( javaOpts != null && javaOpts.trim().length() > 0 ) {
+                command.addAll( Arrays.asList(javaOpts.trim().split("\\s+")) );
+            }
+            final String env = getParameter("rails.env");
+            if ( env != null ) command.add("-Drails.env=" + env);
+            command.add("-cp"); command.add( getIsolatedClassPath() );
+            command.add( IsolatedWorker.class.getName() );
+            command.add( getIsolatedRoot() );
+            final long maxMemory = getIntParameter(ISOLATED_MEMORY_KEY, 0) * 1024L * 1024L;
+            final IsolatedWorkerPool pool = new IsolatedWorkerPool(this, size, command, maxMemory);
+            try {
+                pool.start(threadName("jruby-rack-worker-isolated"));
+                isolatedWorkerPool = pool;
+                log("[" + getClass().getName() + "] started " + size + " isolated worker process(es)");
+            }
+            catch (IOException e) {
+                log("[" + getClass().getName() + "] failed to start isolated workers", e);
+            }
+        }
+        return isolatedWorkerPool;
+    }
+
+    protected synchronized void shutdownIsolatedWorkerPool() {
+        if ( isolatedWorkerPool != null ) {
+            isolatedWorkerPool.stop(); isolatedWorkerPool = null;
+        }
+        isolatedWorkerPoolResolved = false;
+    }
+
+    /**
+     * @return the application root (directory) isolated workers boot from
+     */
+    protected String getIsolatedRoot() {
+        final String root = getParameter(ISOLATED_ROOT_KEY);
+        return root == null ? new File(".").getAbsolutePath() : root;
+    }
+
+    /**
+     * @return the class-path isolated workers run with
+     */
+    protected String getIsolatedClassPath() {
+        final String classPath = getParameter(ISOLATED_CLASSPATH_KEY);
+        if ( classPath != null ) return classPath;
+        final Set<String> paths = new LinkedHashSet<String>(4);
+        for ( final Class<?> klass : new Class<?>[] { IsolatedWorker.class, Ruby.class } ) {
+            try {
+                paths.add( new File( klass.getProtectionDomain().getCodeSource().getLocation().toURI() ).getPath() );
+            }
+            catch (Exception e) { // no code source (or not a file)
+                log("[" + getClass().getName() + "] could not resolve class-path for " + klass.getName() + " : " + e);
+            }
+        }
+        final StringBuilder path = new StringBuilder();
+        for ( final String entry : paths ) {
+            if ( path.length() > 0 ) path.append(File.pathSeparatorChar);
+            path.append(entry);
+        }
+        return path.toString();
+    }
+
+    /**
+     * The throttle workers consult before performing a job (backs off workers
+     * while the web request latency is above target).
+     * @return the worker throttle or null if not configured
+     * @see #THROTTLE_LATENCY_KEY
+     */
+    public synchronized WorkerThrottle getWorkerThrottle() {
+        if ( ! workerThrottleResolved ) {
+            workerThrottleResolved = true;
+            final int latency = getIntParameter(THROTTLE_LATENCY_KEY, 0);
+            if ( latency > 0 ) {
+                workerThrottle = new WorkerThrottle(this, latency,
+                    getIntParameter(THROTTLE_REQUESTS_KEY, 0),
+                    getIntParameter(THROTTLE_WINDOW_KEY, 1000), getThreadCount());
+            }
+        }
+        return workerThrottle;
+    }
+
+    /**
+     * @return the job to thread priority mapping or null if not configured
+     * @see #THREAD_PRIORITY_BANDS_KEY
+     */
+    public synchronized PriorityBands getPriorityBands() {
+        if ( ! priorityBandsResolved ) {
+            priorityBandsResolved = true;
+            final String bands = getParameter(THREAD_PRIORITY_BANDS_KEY);
+            if ( bands != null && bands.trim().length() > 0 ) {
+                try {
+                    priorityBands = new PriorityBands(bands);
+                }
+                catch (IllegalArgumentException e) {
+                    log("[" + getClass().getName() + "] could not parse " + THREAD_PRIORITY_BANDS_KEY + " parameter value = " + bands, e);
+                }
+            }
+            final String yield = getParameter(THREAD_PRIORITY_YIELD_KEY);
+            if ( "true".equalsIgnoreCase(yield) ) priorityYield = DEFAULT_PRIORITY_YIELD;
+            else if ( yield != null && ! "false".equalsIgnoreCase(yield) ) {
+                try {
+                    priorityYield = Math.max(Long.parseLong(yield.trim()), 0);
+                }
+                catch (NumberFormatException e) {
+                    log("[" + getClass().getName() + "] could not parse " + THREAD_PRIORITY_YIELD_KEY + " parameter value = " + yield);
+                }
+            }
+        }
+        return priorityBands;
+    }
+
+    static final long DEFAULT_PRIORITY_YIELD = 10;
+
+    /**
+     * @param threadPriority
+     * @return the back-off (millis) before a job of the given thread priority
+     */
+    long getPriorityBackoff(final int threadPriority) {
+        if ( priorityYield <= 0 || threadPriority >= Thread.NORM_PRIORITY ) return 0;
+        return priorityYield * ( Thread.NORM_PRIORITY - threadPriority );
+    }
+
+    /**
+     * Adjusts the current (worker) thread's priority for a job.
+     * @param jobPriority
+     * @return the previous thread priority (to be restored after the job)
+     * or -1 if the priority has not been changed
+     */
+    public int applyJobPriority(final int jobPriority) {
+        final PriorityBands bands = getPriorityBands();
+        if ( bands == null ) return -1;
+        final int threadPriority = bands.getThreadPriority(jobPriority);
+        if ( threadPriority == -1 ) return -1;
+        final Thread thread = Thread.currentThread();
+        final int previous = thread.getPriority();
+        if ( previous != threadPriority ) thread.setPriority(threadPriority);
+        // NOTE: thread priorities are ignored by the JVM on Linux by default
+        final long backoff = getPriorityBackoff(threadPriority);
+        if ( backoff > 0 ) {
+            try {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) { // shutting down
+                thread.interrupt();
+            }
+        }
+        return previous;
+    }
+
+    private int getIntParameter(final String key, final int defaultValue) {
+        final String value = getParameter(key);
+        try {
+            if ( value != null ) return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            log("[" + getClass().getName() + "] could not parse " + key + " parameter value = " + value);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return whether workers should release connections between jobs
+     * @see #CONNECTION_RELEASE_KEY
+     */
+    public boolean isConnectionRelease() {
+        return Boolean.parseBoolean(getParameter(CONNECTION_RELEASE_KEY));
+    }
+
+    /**
+     * @param runtime
+     * @return number of (started) workers sharing the given runtime
+     */
+    public int getWorkerCount(final Ruby runtime) {
+        int count = 0;
+        synchronized (workers) {
+            for ( final RubyWorker worker : workers.keySet() ) {
+                if ( worker.runtime == runtime ) count++;
+            }
+        }
+        return count;
+    }
+
+    protected boolean isSchedulerEnabled() {
+        return Boolean.parseBoolean(getParameter(SCHEDULER_KEY));
+    }
+
+    protected int getSchedulerWindow() {
+        final String window = getParameter(SCHEDULER_WINDOW_KEY);
+        try {
+            if ( window != null ) return Math.max(Integer.parseInt(window), 1);
+        }
+        catch (NumberFormatException e) {
+            log("[" + getClass().getName() + "] could not parse " + SCHEDULER_WINDOW_KEY + " parameter value = " + window);
+        }
+        return 60;
+    }
+
+    /**
+     * @return the job scheduler (if enabled and started) or null
+     * @see #SCHEDULER_KEY
+     */
+    public JobScheduler getJobScheduler() {
+        return jobScheduler;
+    }
+
     protected boolean isSkipStartup() {
         return Boolean.parseBoolean(getParameter(SKIP_KEY));
     }
 
+    protected boolean isAsyncLogging() {
+        return Boolean.parseBoolean(getParameter(LOG_ASYNC_KEY));
+    }
+
+    /**
+     * @return the asynchronous logger (if configured) or null
+     * @see #LOG_ASYNC_KEY
+     */
+    public AsyncLogger getAsyncLogger() {
+        return asyncLogger;
+    }
+
+    private Integer summaryInterval;
+
+    /**
+     * @return throughput summary interval in seconds (0 when disabled)
+     * @see #LOG_SUMMARY_KEY
+     */
+    public int getSummaryInterval() {
+        if (summaryInterval == null) {
+            final String interval = getParameter(LOG_SUMMARY_KEY);
+            try {
+                if ( interval != null ) {
+                    return summaryInterval = Math.max(Integer.parseInt(interval), 0);
+                }
+            }
+            catch (NumberFormatException e) {
+                log("[" + getClass().getName() + "] could not parse " + LOG_SUMMARY_KEY + " parameter value = " + interval);
+            }
+            summaryInterval = 0;
+        }
+        return summaryInterval;
+    }
+
+    public void setSummaryInterval(Integer summaryInterval) {
+        this.summaryInterval = summaryInterval;
+    }
+
+    /**
+     * @return whether workers should only log per-job messages at debug level
+     */
+    public boolean isSummaryLogging() {
+        return getSummaryInterval() > 0;
+    }
+
+    protected boolean isJmxEnabled() {
+        return Boolean.parseBoolean(getParameter(JMX_KEY));
+    }
+
+    /**
+     * Job latency (and queue wait-time) metrics recorded by workers.
+     * @return job metrics (never null)
+     */
+    public JobMetrics getJobMetrics() {
+        return jobMetrics;
+    }
+
     /**
      * @return whether to export this manager instance to the Ruby runtime
      */
@@ -384,10 +1568,44 @@ public abstract class WorkerManager {
     }
 
     protected void log(final String message) {
-        System.out.println(message);
+        final AsyncLogger asyncLogger = this.asyncLogger;
+        if ( asyncLogger == null || ! asyncLogger.log(logSink, 0, message, null) ) {
+            doLog(message);
+        }
     }
 
     protected void log(final String message, final Exception e) {
+        final AsyncLogger asyncLogger = this.asyncLogger;
+        if ( asyncLogger == null || ! asyncLogger.log(logSink, 0, message, e) ) {
+            doLog(message, e);
+        }
+    }
+
+    private final AsyncLogger.Sink logSink = new AsyncLogger.Sink() {
+
+        public void write(final List<AsyncLogger.Entry> entries) {
+            for ( final AsyncLogger.Entry entry : entries ) {
+                if ( entry.getError() == null ) doLog( entry.getMessage() );
+                else doLog( entry.getMessage(), (Exception) entry.getError() );
+            }
+        }
+
+    };
+
+    /**
+     * Does the actual (synchronous) logging.
+     * @param message
+     */
+    protected void doLog(final String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * Does the actual (synchronous) logging.
+     * @param message
+     * @param e
+     */
+    protected void doLog(final String message, final Exception e) {
         System.err.println(message);
         e.printStackTrace(System.err);
     }
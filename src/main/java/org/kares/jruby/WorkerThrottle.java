@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throttles (background) workers based on web (request) load of the same JVM.
+ *
+ * Requests are tracked (e.g. by {@link org.kares.jruby.rack.WorkerThrottleFilter})
+ * in (tumbling) windows, at the end of a window the number of workers allowed
+ * to perform jobs concurrently is adjusted : halved if the request latency (p99)
+ * was above target (or too many requests were in-flight) down to none (workers
+ * pause), otherwise increased by one up to all workers.
+ *
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class WorkerThrottle {
+
+    private final WorkerManager manager;
+    private final long targetLatency;
+    private final int maxInFlight;
+    private final long window;
+    private final int maxPermits;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private volatile long windowEnd;
+    private volatile int permits;
+    private int active;
+
+    /**
+     * @param manager (used for logging)
+     * @param targetLatency target (p99) request latency in millis
+     * @param maxInFlight maximum requests in-flight (0 for no limit)
+     * @param window (adjustment) window in millis
+     * @param maxPermits maximum concurrent jobs (the worker count)
+     */
+    public WorkerThrottle(final WorkerManager manager, final long targetLatency,
+        final int maxInFlight, final long window, final int maxPermits) {
+        this.manager = manager;
+        this.targetLatency = targetLatency * 1000; // micros
+        this.maxInFlight = maxInFlight;
+        this.window = window;
+        this.maxPermits = Math.max(maxPermits, 1);
+        this.permits = this.maxPermits;
+        this.windowEnd = System.currentTimeMillis() + window;
+    }
+
+    /**
+     * Record a request start.
+     * @return the start time (to be passed to {@link #requestCompleted(long)})
+     */
+    public long requestStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a request completion.
+     * @param started the value returned from {@link #requestStarted()}
+     */
+    public void requestCompleted(final long started) {
+        inFlight.decrementAndGet();
+        latency.record( ( System.nanoTime() - started ) / 1000 );
+        roll(System.currentTimeMillis());
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return number of jobs allowed to be performed concurrently
+     */
+    public int getPermits() {
+        return permits;
+    }
+
+    public boolean isThrottled() {
+        return permits < maxPermits;
+    }
+
+    /**
+     * Waits (while throttled) for a worker to be allowed to perform a job.
+     * @param timeout maximum wait time in millis
+     * @return true if acquired (must {@link #release()} once done)
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while ( true ) {
+            final long now = System.currentTimeMillis();
+            roll(now); // web might have gone idle (no completions)
+            if ( active < permits ) {
+                active++; return true;
+            }
+            final long wait = Math.min(deadline, windowEnd) - now;
+            if ( now >= deadline ) return false;
+            wait(Math.max(wait, 1));
+        }
+    }
+
+    public synchronized void release() {
+        if ( active > 0 ) active--;
+        notifyAll();
+    }
+
+    private void roll(final long now) {
+        if ( now < windowEnd ) return;
+        synchronized (this) {
+            if ( now < windowEnd ) return;
+            windowEnd = now + window;
+            final LatencyHistogram.Snapshot snapshot = latency.snapshot();
+            latency.reset();
+            final long p99 = snapshot.getCount() > 0 ? snapshot.getP99() : 0;
+            final int requests = inFlight.get();
+            final int previous = permits;
+            if ( p99 > targetLatency || ( maxInFlight > 0 && requests > maxInFlight ) ) {
+                permits = previous / 2;
+            }
+            else if ( previous < maxPermits ) {
+                permits = previous + 1;
+                notifyAll();
+            }
+            if ( permits != previous && ( previous == maxPermits || permits == maxPermits || permits == 0 ) ) {
+                log("throttled to " + permits + " of " + maxPermits + " worker(s)" +
+                    " (p99 = " + ( p99 / 1000 ) + "ms, in-flight = " + requests + ")");
+            }
+        }
+    }
+
+    private void log(final String message) {
+        if ( manager != null ) {
+            manager.log("[" + getClass().getName() + "] " + message);
+        }
+    }
+
+}
@@ -92,24 +92,24 @@ public class DefaultWorkerManager extends ServletWorkerManager {
     }
     
     @Override
-    protected void log(String message) {
+    protected void doLog(String message) {
         final RackLogger logger = getLogger();
         if (logger != null) {
             logger.log(RackLogger.INFO, message);
         }
         else {
-            super.log(message);
+            super.doLog(message);
         }
     }
 
     @Override
-    protected void log(String message, Exception e) {
+    protected void doLog(String message, Exception e) {
         final RackLogger logger = getLogger();
         if (logger != null) {
             logger.log(RackLogger.ERROR, message, e);
         }
         else {
-            super.log(message, e);
+            super.doLog(message, e);
         }
     }
     
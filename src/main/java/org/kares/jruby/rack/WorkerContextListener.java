@@ -27,14 +27,22 @@ import org.kares.jruby.WorkerManager;
  * @author kares <self_AT_kares_DOT_org>
  */
 public class WorkerContextListener implements ServletContextListener {
-    
+
+    /**
+     * The (servlet context) attribute the worker manager is available as.
+     */
+    public static final String MANAGER_ATTRIBUTE = WorkerManager.class.getName();
+
     private WorkerManager workerManager;
 
     /**
      * @param event
      */
     public void contextInitialized(final ServletContextEvent event) {
-        getWorkerManager( event.getServletContext() ).startup();
+        final ServletContext context = event.getServletContext();
+        final WorkerManager workerManager = getWorkerManager(context);
+        context.setAttribute(MANAGER_ATTRIBUTE, workerManager);
+        workerManager.startup();
     }
 
     /**
@@ -42,6 +50,7 @@ public class WorkerContextListener implements ServletContextListener {
      */
     public void contextDestroyed(final ServletContextEvent event) {
         final WorkerManager workerManager = this.workerManager;
+        event.getServletContext().removeAttribute(MANAGER_ATTRIBUTE);
         if (workerManager != null) workerManager.shutdown();
     }
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby.rack;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.kares.jruby.WorkerManager;
+import org.kares.jruby.WorkerThrottle;
+
+/**
+ * A filter that tracks requests for the worker throttle, thus (background)
+ * workers back off while the web (request) latency is above target.
+ *
+ * Map it before the (JRuby-Rack) RackFilter :
+ *
+ * <pre>
+ * &lt;filter&gt;
+ *   &lt;filter-name&gt;WorkerThrottleFilter&lt;/filter-name&gt;
+ *   &lt;filter-class&gt;org.kares.jruby.rack.WorkerThrottleFilter&lt;/filter-class&gt;
+ * &lt;/filter&gt;
+ * </pre>
+ *
+ * @see WorkerManager#THROTTLE_LATENCY_KEY
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class WorkerThrottleFilter implements Filter {
+
+    private WorkerThrottle throttle;
+
+    /**
+     * @param config
+     */
+    public void init(final FilterConfig config) {
+        final WorkerManager workerManager = (WorkerManager)
+            config.getServletContext().getAttribute(WorkerContextListener.MANAGER_ATTRIBUTE);
+        if ( workerManager != null ) throttle = workerManager.getWorkerThrottle();
+        if ( throttle == null ) {
+            config.getServletContext().log("[" + getClass().getName() + "] worker throttle not configured " +
+                "(see " + WorkerManager.THROTTLE_LATENCY_KEY + " parameter) requests won't be tracked");
+        }
+    }
+
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        throws IOException, ServletException {
+        final WorkerThrottle throttle = this.throttle;
+        if ( throttle == null ) {
+            chain.doFilter(request, response); return;
+        }
+        final long started = throttle.requestStarted();
+        try {
+            chain.doFilter(request, response);
+        }
+        finally {
+            throttle.requestCompleted(started);
+        }
+    }
+
+    public void destroy() {
+        throttle = null;
+    }
+
+    void setThrottle(WorkerThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+}
@@ -0,0 +1,158 @@
+module Delayed
+  class JRubyWorker
+    # Idle workers wait on the manager's (timing wheel) job scheduler to be woken
+    # up once a job becomes due, polling the backend (at most) every sleep delay.
+    # Job run times are loaded incrementally (for a time window ahead) from a
+    # single thread, locally enqueued and re-scheduled jobs are added directly.
+    # @see org.kares.jruby.JobScheduler
+    module Scheduling
+
+      # Loads run times of (unlocked) jobs due within a time window, matching the
+      # (registered) workers' priority and queue filters. A load queries the run
+      # time range the window advanced by and an id range for jobs created since
+      # the last load (those might be due before the window start).
+      # Jobs re-scheduled by other processes (within an already loaded window)
+      # are not noticed but workers still poll their backend every sleep delay.
+      class Loader # :nodoc
+
+        def initialize(job_class = nil)
+          @job_class = job_class; @last_id = nil; @filter = nil
+        end
+
+        # Adds a worker's filter, jobs matching any of the workers' filters load.
+        # @param filter [ min_priority, max_priority, queues ]
+        def add_filter(filter)
+          min, max, queues = filter
+          queues = nil if queues && queues.empty?
+          if prev = @filter # widen to cover both (nil - not filtering)
+            min = min && prev[0] && [ min, prev[0] ].min
+            max = max && prev[1] && [ max, prev[1] ].max
+            queues = queues && prev[2] && ( prev[2] | queues )
+          end
+          @filter = [ min, max, queues ].freeze
+        end
+
+        # @param from window start (millis, exclusive)
+        # @param to window end (millis, inclusive)
+        # @return [Java::long[]] run times (millis)
+        def load(from, to)
+          job = @job_class || Delayed::Job
+          job.connection_pool.with_connection do
+            from_time = Time.at(from / 1000.0)
+            # the id range is resolved first - jobs created meanwhile load next time
+            if @last_id
+              max_id = job.where('id > ?', @last_id).maximum(:id)
+            else
+              @last_id = job.maximum(:id) || 0
+            end
+            scope = filtered(job, job.where(:locked_at => nil, :failed_at => nil))
+            run_ats = run_times scope.where('run_at > ? AND run_at <= ?', from_time, Time.at(to / 1000.0))
+            if max_id # created since the last load, due before the window start
+              run_ats.concat run_times scope.where('id > ? AND id <= ?', @last_id, max_id).where('run_at <= ?', from_time)
+              @last_id = max_id
+            end
+            run_ats.to_java(:long)
+          end
+        end
+
+        private
+
+        def filtered(job, scope)
+          min, max, queues = @filter
+          scope = scope.where('priority >= ?', min) if min
+          scope = scope.where('priority <= ?', max) if max
+          scope = scope.where(:queue => queues) if queues && job.column_names.include?('queue')
+          scope
+        end
+
+        def run_times(scope)
+          scope.select('run_at').map { |j| ( j.run_at.to_f * 1000 ).to_i }
+        end
+
+      end
+
+      def self.supported?
+        job = Delayed::Job
+        defined?(::ActiveRecord::Base) && job.is_a?(Class) && job < ::ActiveRecord::Base
+      rescue NameError
+        false
+      end
+
+      LOCK = Mutex.new
+      private_constant :LOCK if respond_to?(:private_constant)
+
+      # loaders by (weakly held) scheduler - a restarted manager has a new one
+      LOADERS = java.util.WeakHashMap.new
+      private_constant :LOADERS if respond_to?(:private_constant)
+
+      # Registers the loader (once per scheduler) and an enqueue hook (once per runtime).
+      # @param load_interval (incremental) load interval in seconds e.g. the sleep delay
+      # @param filter the worker's [ min_priority, max_priority, queues ]
+      def self.register(scheduler, load_interval = nil, filter = nil)
+        return false unless supported?
+        LOCK.synchronize do
+          unless loader = LOADERS.get(scheduler)
+            loader = Loader.new
+            # NOTE: another runtime might have set its loader (filtering for its workers)
+            scheduler.setLoader { |from, to| loader.load(from, to) }
+            LOADERS.put(scheduler, loader)
+          end
+          loader.add_filter(filter || [])
+          scheduler.setLoadInterval( ( load_interval.to_f * 1000 ).to_i ) if load_interval
+          if ! @enqueue_hook && Delayed.const_defined?(:Lifecycle) # DJ >= 3.0
+            # the scheduler is looked up as the manager might have been restarted
+            Worker.lifecycle.after(:enqueue) do |job|
+              scheduler = current_scheduler
+              schedule_job(scheduler, job) if scheduler
+            end
+            @enqueue_hook = true
+          end
+        end
+        true
+      end
+
+      # @return the (current) manager's scheduler (if any)
+      def self.current_scheduler
+        manager = JRuby::Rack::Worker.manager
+        manager && manager.respond_to?(:getJobScheduler) ? manager.getJobScheduler : nil
+      end
+
+      def self.schedule_job(scheduler, job)
+        run_at = job.run_at || Time.now
+        scheduler.schedule( ( run_at.to_f * 1000 ).to_i )
+      end
+
+      # @override waits till a job is due (or the sleep delay elapses)
+      def sleep(time)
+        return super unless scheduler = job_scheduler
+        begin
+          scheduler.await( ( time * 1000 ).to_i )
+        rescue java.lang.InterruptedException
+          nil # shutting down
+        end
+      end
+
+      # @override schedules the job's next run (a retry or a recurring job)
+      def run(job)
+        success = super
+        if scheduler = job_scheduler
+          run_at = job.run_at
+          if run_at && run_at > Time.now && ! job.destroyed?
+            Scheduling.schedule_job(scheduler, job)
+          end
+        end
+        success
+      end
+
+      protected
+
+      def job_scheduler
+        return @job_scheduler if defined? @job_scheduler
+        manager = worker_manager
+        scheduler = manager && manager.respond_to?(:getJobScheduler) && manager.getJobScheduler
+        @job_scheduler = scheduler && Scheduling.register(scheduler, sleep_delay, [ min_priority, max_priority, queues ]) ? scheduler : nil
+      end
+
+    end
+  end
+end
@@ -1,4 +1,5 @@
 require 'java'
+require 'jruby'
 require 'delayed_job' unless defined?(Delayed::Worker)
 
 module Delayed
@@ -11,6 +12,10 @@ module Delayed
 
     require 'delayed/sleep_calculator'
     include SleepCalculator
+    require 'delayed/job_scheduling'
+    require 'delayed/payload_codec'
+    require 'delayed/reserve_filter'
+    include Scheduling # NOTE: after SleepCalculator (overrides #sleep)
 
     # @override to return the same as Delayed::Worker.lifecycle (uses class instance state)
     def self.lifecycle; Worker.lifecycle end
@@ -45,38 +50,76 @@ module Delayed
     #   self.class.send("#{option}=", options[option]) if options.key?(option)
     # end
 
+    # An immutable (frozen) set of options, a nil value means not set unless
+    # the config is resolved (a worker's snapshot holds all the option values).
+    # Class level setters replace the thread's config with an updated copy.
     class Config
-      attr_accessor *THREAD_LOCAL_ACCESSORS
-      def key?(name); ! instance_variable_get(:"@#{name}").nil? end
+      attr_reader *THREAD_LOCAL_ACCESSORS
+
+      def initialize(values = nil, resolved = false)
+        values.each { |name, val| instance_variable_set(:"@#{name}", val) } if values
+        @resolved = resolved
+        freeze
+      end
+
+      def resolved?; @resolved end
+
+      def key?(name); ! send(name).nil? end
+
+      # @return a new config with the given option (value) replaced
+      def merge(name, val)
+        values = { name => val }
+        THREAD_LOCAL_ACCESSORS.each { |n| values[n] = send(n) unless n == name }
+        Config.new(values, @resolved)
+      end
     end
 
     THREAD_LOCAL_ACCESSORS.each do |name|
       class_eval(<<-EOS, __FILE__, __LINE__ + 1)
         def self.#{name}=(val)
-          (Thread.current[:delayed_jruby_worker_config] ||= Config.new).#{name} = val
+          config = Thread.current[:delayed_jruby_worker_config] || EMPTY_CONFIG
+          Thread.current[:delayed_jruby_worker_config] = config.merge(:#{name}, val)
         end
         def self.#{name}
-          if (config = Thread.current[:delayed_jruby_worker_config]) && config.key?(:#{name})
-            config.#{name}
-          else
-            superclass.#{name}
-          end
+          config = Thread.current[:delayed_jruby_worker_config]
+          return superclass.#{name} unless config
+          val = config.#{name}
+          val.nil? && ! config.resolved? ? superclass.#{name} : val
         end
+        def #{name}; @config.#{name} end
       EOS
     end
     # e.g. :
     #
     #  def self.min_priority=(value)
-    #    (Thread.current[:delayed_jruby_worker_config] ||= Config.new).min_priority = value
+    #    config = Thread.current[:delayed_jruby_worker_config] || EMPTY_CONFIG
+    #    Thread.current[:delayed_jruby_worker_config] = config.merge(:min_priority, value)
     #  end
     #
     #  def self.min_priority
-    #    if (config = Thread.current[:delayed_jruby_worker_config]) && config.key?(:min_priority)
-    #      config.min_priority
-    #    else
-    #      Worker.min_priority
-    #    end
+    #    config = Thread.current[:delayed_jruby_worker_config]
+    #    return Worker.min_priority unless config
+    #    val = config.min_priority
+    #    val.nil? && ! config.resolved? ? Worker.min_priority : val
     #  end
+    #
+    #  def min_priority; @config.min_priority end
+
+    EMPTY_CONFIG = Config.new
+    private_constant :EMPTY_CONFIG if respond_to?(:private_constant)
+
+    def initialize(options = {})
+      super
+      PayloadCodec.install
+      ReserveFilter.install
+      # options are resolved once - a worker reads them from a frozen snapshot
+      values = {}
+      THREAD_LOCAL_ACCESSORS.each { |name| values[name] = self.class.send(name) }
+      @config = Config.new(values, true)
+      # DJ internals read e.g. `self.class.sleep_delay` - make the class level
+      # readers (of the worker's thread) return the same (resolved) snapshot
+      Thread.current[:delayed_jruby_worker_config] = @config
+    end
 
     def name
       if (@name ||= nil).nil?
@@ -113,7 +156,128 @@ module Delayed
       end
     end
 
-    unless defined? Delayed::Lifecycle # DJ 2.x (< 3.0)
+    # Clears job locks for all given worker names (using a single UPDATE query
+    # with the ActiveRecord backend).
+    def self.clear_all_locks!(names)
+      return if names.empty?
+      job = Delayed::Job
+      if defined?(::ActiveRecord::Base) && job.is_a?(Class) && job < ::ActiveRecord::Base && job.respond_to?(:where)
+        job.connection_pool.with_connection do
+          job.where(:locked_by => names).update_all(:locked_by => nil, :locked_at => nil)
+        end
+      else
+        names.each { |name| job.clear_locks!(name) }
+      end
+    end
+
+    # Workers (of a runtime) register here so that the manager stops them and
+    # clears all of their locks at once on shutdown (instead of each #exit!).
+    # @see org.kares.jruby.WorkerManager#addShutdownBatch
+    class ShutdownBatch # :nodoc
+
+      def initialize; @workers = {}; @lock = Mutex.new end
+
+      def add(worker)
+        @lock.synchronize { @workers[worker.name] = worker }
+      end
+
+      def shutdown(names)
+        workers = @lock.synchronize { @workers.values_at(*names).compact }
+        workers.each(&:stop) # #exit! won't clear locks once stopped
+        JRubyWorker.clear_all_locks!(names)
+      end
+
+    end
+    SHUTDOWN_BATCH = ShutdownBatch.new
+
+    require 'jruby/rack/worker/metrics'
+    require 'jruby/rack/worker/connections'
+    require 'jruby/rack/worker/limits'
+    require 'jruby/rack/worker/completions'
+
+    # @override records job latency (and queue wait-time) metrics
+    # and releases the connection (if configured) after the job,
+    # the thread's priority is adjusted to the job's priority (band),
+    # jobs wait (or get deferred) while workers are throttled due web load
+    # @see JRuby::Rack::Worker.job_metrics
+    def run(job)
+      quarantine = job_quarantine
+      if quarantine && ( wait = quarantine.getQuarantineTime(job_class_name(job)) ) > 0
+        return defer(job, wait, 'quarantined')
+      end
+      if ( limits = rate_limits ) &&
+          ( wait = limits.tryAcquire(job_queue(job), job_class_name(job)) ) > 0
+        return defer(job, wait)
+      end
+      if throttle = worker_throttle
+        if @throttle_permit # acquired (waiting) by #reserve_and_run_one_job
+          @throttle_permit = false
+        elsif ! JRuby::Rack::Worker.acquire_throttle(throttle, sleep_delay)
+          return defer(job, ( [ sleep_delay.to_f, 1 ].max * 1000 ).to_i, 'throttled')
+        end
+      end
+      if metrics = job_metrics
+        started = metrics.start; wait = job_wait_time(job)
+      end
+      priority = apply_job_priority(job)
+      success = nil
+      begin
+        success = super
+      ensure
+        java.lang.Thread.currentThread.setPriority(priority) if priority >= 0
+        throttle.release if throttle
+        complete_job(job, success) if job_completions
+        metrics.recordSince(job_class_name(job), job_queue(job), started, wait, ! success) if metrics
+        quarantine.record(job_class_name(job), ! success) if quarantine
+        JRuby::Rack::Worker.release_connections if release_connections?
+      end
+    end
+
+    # @override to not hold a connection (if configured) while idle
+    # and to back off (with all other workers) while the backend is down
+    # @see JRuby::Rack::Worker.release_connections?
+    # @see JRuby::Rack::Worker.circuit_breaker
+    def work_off(num = 100)
+      return super unless breaker = circuit_breaker
+      begin
+        return [ 0, 0 ] unless breaker.await( ( [ sleep_delay.to_f, 1 ].max * 1000 ).to_i )
+      rescue java.lang.InterruptedException
+        return [ 0, 0 ]
+      end
+      failed_reserve_count = @failed_reserve_count || 0
+      begin
+        result = super
+      rescue StandardError => e # DJ < 4.1 does not rescue reserve errors
+        breaker.recordFailure("#{e.class}: #{e.message}")
+        return [ 0, 0 ]
+      end
+      if ( @failed_reserve_count || 0 ) > failed_reserve_count
+        @failed_reserve_count = 0 # backing off instead of a FatalBackendError
+        breaker.recordFailure('error while reserving job')
+      else
+        breaker.recordSuccess
+      end
+      result
+    ensure
+      JRuby::Rack::Worker.release_connections if release_connections?
+    end
+
+    PER_JOB_MESSAGE = /jobs processed at|\bRUNNING\b|\bCOMPLETED after/
+    private_constant :PER_JOB_MESSAGE if respond_to?(:private_constant)
+
+    # @override to log (per job) messages at debug level with summary logging
+    # @see JRuby::Rack::Worker.summary_logging?
+    def say(text, level = nil)
+      level = Logger::DEBUG if summary_logging? && PER_JOB_MESSAGE =~ text
+      level ? super(text, level) : super(text)
+    end
+
+    if defined? Delayed::Lifecycle # DJ >= 3.0
+
+      # @override to also stop (after the current job) when the manager shuts down
+      def stop?; super || manager_stopping? end
+
+    else # DJ 2.x (< 3.0)
       require 'benchmark'
       # in case DJ 2.1 loads AS 3.x we're need `[1,2].sum` :
       require 'active_support/core_ext/enumerable' rescue nil
@@ -131,28 +295,177 @@ module Delayed
 
           count = result.sum
 
-          break if @exit
+          break if stop?
 
           if count.zero?
-            sleep(self.class.sleep_delay)
+            sleep(sleep_delay)
           else
-            say "#{count} jobs processed at %.4f j/s, %d failed ..." % [count / realtime, result.last]
+            say "#{count} jobs processed at %.4f j/s, %d failed ..." % [count / realtime, result.last],
+                summary_logging? ? Logger::DEBUG : Logger::INFO
           end
 
-          break if @exit
+          break if stop?
         end
       end
 
-      def stop?; !!@exit; end
+      def stop?; !!@exit || manager_stopping?; end
       def stop; @exit = true; end
 
     end
 
     protected
 
+    # @override to wait while throttled before reserving a job (instead of
+    # reserving one just to defer it), the permit is released by #run
+    # and to not reserve jobs of queues (or classes) over their rate limit
+    # nor jobs of quarantined classes
+    # @see JRuby::Rack::Worker.worker_throttle
+    # @see Delayed::ReserveFilter
+    def reserve_and_run_one_job(*args)
+      @connection_pool_checked ||= JRuby::Rack::Worker.check_connection_pool!
+      if throttle = worker_throttle
+        until JRuby::Rack::Worker.acquire_throttle(throttle, sleep_delay)
+          return nil if stop?
+        end
+        @throttle_permit = true
+      end
+      begin
+        limits = rate_limits; quarantine = job_quarantine
+        if limits || quarantine
+          classes = limits ? limits.getLimitedClasses.to_a : []
+          classes.concat quarantine.getQuarantined.to_a if quarantine
+          ReserveFilter.excluding(limits && limits.getLimitedQueues.to_a, classes) { super }
+        else
+          super
+        end
+      ensure
+        if @throttle_permit # no job got reserved (or run)
+          @throttle_permit = false; throttle.release
+        end
+      end
+    end
+
+    # Puts back a (reserved) job to be run later, without counting an attempt.
+    # @return nil so that #work_off stops (not pulling more of such jobs)
+    def defer(job, wait, reason = 'rate limited')
+      say "#{job.name} deferred for #{wait}ms (#{reason})", Logger::DEBUG
+      job.run_at = Time.now + wait / 1000.0
+      job.locked_at = nil; job.locked_by = nil
+      job.save!
+      Scheduling.schedule_job(job_scheduler, job) if job_scheduler
+      nil
+    ensure
+      JRuby::Rack::Worker.release_connections if release_connections?
+    end
+
+    def rate_limits
+      return @rate_limits if defined? @rate_limits
+      @rate_limits = JRuby::Rack::Worker.rate_limits
+    end
+
+    def job_quarantine
+      return @job_quarantine if defined? @job_quarantine
+      @job_quarantine = JRuby::Rack::Worker.job_quarantine
+    end
+
+    def job_completions
+      return @job_completions if defined? @job_completions
+      @job_completions = JRuby::Rack::Worker.job_completions
+    end
+
+    def worker_throttle
+      return @worker_throttle if defined? @worker_throttle
+      @worker_throttle = JRuby::Rack::Worker.worker_throttle
+    end
+
+    def job_metrics
+      return @job_metrics if defined? @job_metrics
+      @job_metrics = JRuby::Rack::Worker.job_metrics
+    end
+
+    def summary_logging?
+      return @summary_logging if defined? @summary_logging
+      @summary_logging = JRuby::Rack::Worker.summary_logging?
+    end
+
+    def release_connections?
+      return @release_connections if defined? @release_connections
+      @release_connections = JRuby::Rack::Worker.release_connections?
+    end
+
+    def circuit_breaker
+      return @circuit_breaker if defined? @circuit_breaker
+      @circuit_breaker = JRuby::Rack::Worker.circuit_breaker
+    end
+
+    def manager_stopping?
+      return false unless manager = worker_manager
+      manager.isStopping
+    end
+
+    # NOTE: memoized since the manager un-exports itself on shutdown
+    def worker_manager
+      return @worker_manager if defined? @worker_manager
+      manager = JRuby::Rack::Worker.manager
+      @worker_manager = manager && manager.respond_to?(:isStopping) ? manager : nil
+    end
+
+    # Completes the job's (in-JVM) future once it succeeded or failed for good.
+    # @see JRuby::Rack::Worker.await_job
+    def complete_job(job, success)
+      if success
+        JRuby::Rack::Worker.complete_job(job_completions, job.id)
+      elsif ( job.failed_at rescue nil ) || ( job.destroyed? rescue false ) # no more attempts
+        JRuby::Rack::Worker.complete_job(job_completions, job.id, ( job.last_error rescue nil ) || 'failed')
+      end
+    end
+
+    # @return the previous thread priority or -1 if not changed
+    # @see org.kares.jruby.WorkerManager#applyJobPriority
+    def apply_job_priority(job)
+      manager = worker_manager
+      return -1 unless manager && manager.respond_to?(:applyJobPriority)
+      return -1 unless ( priority = job.priority rescue nil )
+      manager.applyJobPriority(priority.to_i)
+    end
+
+    # @return the job class name (e.g. "Mailer#deliver" for a performable method)
+    def job_class_name(job)
+      payload = job.payload_object
+      if payload.respond_to?(:job_data) && ( data = payload.job_data ).is_a?(Hash)
+        data['job_class'] || job.name # ActiveJob's JobWrapper
+      else
+        job.name
+      end
+    rescue
+      job.class.name
+    end
+
+    def job_queue(job)
+      job.respond_to?(:queue) ? job.queue : nil
+    end
+
+    # @return queue wait-time (micro-seconds) or -1 if not known
+    def job_wait_time(job)
+      return -1 unless run_at = ( job.run_at rescue nil )
+      wait = ( ( Time.now - run_at ) * 1_000_000 ).to_i
+      wait < 0 ? -1 : wait
+    end
+
     def trap(name = nil)
       # catch invocations from #start traps TERM and INT
-      at_exit { exit! } if ! name || name.to_s == 'TERM'
+      if ! name || name.to_s == 'TERM'
+        at_exit { exit! }
+        register_shutdown_batch
+      end
+    end
+
+    def register_shutdown_batch
+      manager = JRuby::Rack::Worker.manager
+      return unless manager && manager.respond_to?(:addShutdownBatch)
+      SHUTDOWN_BATCH.add(self)
+      # the batch is per runtime, workers still running (their job) are left out
+      manager.addShutdownBatch('delayed_job', JRuby.runtime, name) { |names| SHUTDOWN_BATCH.shutdown(names.to_a) }
     end
 
   end
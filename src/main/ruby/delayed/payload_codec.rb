@@ -0,0 +1,227 @@
+require 'yaml'
+require 'json'
+
+module Delayed
+  # Pluggable job (handler) payload encoding, the format is detected from a
+  # prefix e.g. "marshal:..." with YAML (DJ's default) as the fallback.
+  #
+  # Decoding YAML is the most expensive part of running a (small) job, thus
+  # parsed YAML payloads are kept (Marshal-ed) in a LRU cache, repeated
+  # identical handlers (e.g. mailer jobs) are re-created from it. Handlers
+  # referring to (ORM) records are not cached as those get re-loaded.
+  #
+  # To write handlers using Marshal (or JSON) set the format in an initializer
+  # (worker processes need to understand the format - any version reads YAML) :
+  #
+  #   Delayed::PayloadCodec.install
+  #   Delayed::PayloadCodec.format = :marshal
+  #
+  module PayloadCodec
+
+    # Marshal (base64) encoded payload, for objects not referring to (ORM)
+    # records e.g. a PerformableMethod of a record - those get re-loaded (YAML).
+    module MarshalFormat
+      PREFIX = 'marshal:'.freeze
+
+      def self.dump(object)
+        return nil if PayloadCodec.record?(object, PayloadCodec.record_types)
+        "#{PREFIX}#{[ Marshal.dump(object) ].pack('m')}"
+      end
+      def self.load(handler); Marshal.load( handler[PREFIX.size..-1].unpack('m').first ) end
+    end
+
+    # JSON payload, for (plain) objects with JSON-native instance variables.
+    module JSONFormat
+      PREFIX = 'json:'.freeze
+
+      def self.dump(object)
+        return nil unless object.class.name && object.instance_variables.all? do |name|
+          native? object.instance_variable_get(name)
+        end
+        ivars = {}
+        object.instance_variables.each { |name| ivars[name.to_s] = object.instance_variable_get(name) }
+        "#{PREFIX}#{::JSON.generate('class' => object.class.name, 'ivars' => ivars)}"
+      end
+
+      def self.load(handler)
+        data = ::JSON.parse(handler[PREFIX.size..-1])
+        object = PayloadCodec.constantize(data['class']).allocate
+        data['ivars'].each { |name, val| object.instance_variable_set(name, val) }
+        object
+      end
+
+      def self.native?(val)
+        case val
+        when String, Numeric, true, false, nil then true
+        when Array then val.all? { |v| native?(v) }
+        when Hash then val.all? { |k, v| k.is_a?(String) && native?(v) }
+        else false
+        end
+      end
+      private_class_method :native? if respond_to?(:private_class_method)
+    end
+
+    # YAML payload (parsed handlers are cached).
+    module YAMLFormat
+      # records are fetched (from the DB) when a handler is loaded
+      RECORD = /!ruby\/(ActiveRecord|Mongoid|MongoMapper|DataMapper|Sequel)|\bLOAD;/
+
+      def self.dump(object); object.to_yaml end
+
+      def self.load(handler)
+        cacheable = handler !~ RECORD
+        if cacheable && ( template = PayloadCodec.cache.get(handler) )
+          return Marshal.load(template) # a fresh copy
+        end
+        object = YAML.respond_to?(:load_dj) ? YAML.load_dj(handler) : YAML.load(handler)
+        PayloadCodec.cache.put(handler, object) if cacheable
+        object
+      end
+    end
+
+    # A (thread-safe) LRU cache of Marshal-ed objects keyed by handler.
+    class Cache
+
+      attr_reader :max_size, :hits, :misses
+
+      def initialize(max_size = 512, max_key_size = 4096)
+        @max_size = max_size; @max_key_size = max_key_size
+        @entries = {}; @lock = Mutex.new
+        @hits = @misses = 0
+      end
+
+      def get(key)
+        return nil if @max_size <= 0 || key.size > @max_key_size
+        @lock.synchronize do
+          if template = @entries.delete(key)
+            @entries[key] = template # most recently used is last
+            @hits += 1
+          else
+            @misses += 1
+          end
+          template
+        end
+      end
+
+      def put(key, object)
+        return if @max_size <= 0 || key.size > @max_key_size
+        template = begin
+          Marshal.dump(object)
+        rescue TypeError # e.g. singleton or IO objects
+          return
+        end
+        @lock.synchronize do
+          @entries.delete(key)
+          @entries[key.dup.freeze] = template
+          @entries.delete(@entries.keys.first) while @entries.size > @max_size
+        end
+      end
+
+      def size; @lock.synchronize { @entries.size } end
+
+      def clear
+        @lock.synchronize { @entries.clear; @hits = @misses = 0 }
+      end
+
+    end
+
+    FORMATS = { :marshal => MarshalFormat, :json => JSONFormat, :yaml => YAMLFormat }
+
+    @@format = :yaml
+    @@cache = Cache.new
+
+    # @return the format used for writing handlers (:yaml by default)
+    def self.format; @@format end
+
+    def self.format=(format)
+      format = format.to_sym
+      raise ArgumentError, "unknown payload format: #{format.inspect}" unless FORMATS[format]
+      @@format = format
+    end
+
+    def self.cache; @@cache end
+
+    def self.cache=(cache); @@cache = cache end
+
+    # Register a custom format (responding to dump/load), handlers are
+    # detected by their prefix.
+    def self.register(name, prefix, format)
+      FORMATS[name.to_sym] = format
+      PREFIXES[prefix.to_s.freeze] = format
+    end
+
+    PREFIXES = { MarshalFormat::PREFIX => MarshalFormat, JSONFormat::PREFIX => JSONFormat }
+
+    def self.dump(object)
+      handler = FORMATS[@@format].dump(object)
+      handler || YAMLFormat.dump(object) # format could not dump object
+    end
+
+    def self.load(handler)
+      PREFIXES.each do |prefix, format|
+        return format.load(handler) if handler.start_with?(prefix)
+      end
+      YAMLFormat.load(handler)
+    end
+
+    RECORD_TYPES = [ 'ActiveRecord::Base', 'Mongoid::Document', 'MongoMapper::Document',
+                     'DataMapper::Resource', 'Sequel::Model' ]
+
+    # @return (ORM) record types (classes or modules) currently loaded
+    def self.record_types
+      RECORD_TYPES.map do |name|
+        name.split('::').inject(Object) { |mod, const| mod && mod.const_defined?(const) ? mod.const_get(const) : nil }
+      end.compact
+    end
+
+    # @return whether the object (or it's instance variables, arrays and hashes
+    # up to the given depth) refers to a record (of the given types)
+    def self.record?(object, types, depth = 4)
+      return false if types.empty?
+      case object
+      when String, Symbol, Numeric, true, false, nil then return false
+      when Array then return depth > 0 && object.any? { |val| record?(val, types, depth - 1) }
+      when Hash
+        return depth > 0 && object.any? { |key, val| record?(key, types, depth - 1) || record?(val, types, depth - 1) }
+      end
+      return true if types.any? { |type| object.is_a?(type) }
+      depth > 0 && object.instance_variables.any? do |name|
+        record?(object.instance_variable_get(name), types, depth - 1)
+      end
+    end
+
+    def self.constantize(name)
+      name.split('::').inject(Object) { |mod, const| mod.const_get(const) }
+    end
+
+    # Decoding errors same as DJ's Backend::Base#payload_object handles.
+    DESERIALIZATION_ERRORS = [ TypeError, LoadError, NameError, ArgumentError, SyntaxError ]
+    DESERIALIZATION_ERRORS << Psych::SyntaxError if defined? Psych::SyntaxError
+    DESERIALIZATION_ERRORS << JSON::ParserError
+
+    # Overrides payload (handler) methods of a DJ backend job class.
+    module Job
+
+      def payload_object=(object)
+        @payload_object = object
+        self.handler = PayloadCodec.dump(object)
+      end
+
+      def payload_object
+        @payload_object ||= PayloadCodec.load(handler)
+      rescue *DESERIALIZATION_ERRORS => e
+        raise Delayed::DeserializationError, "Job failed to load: #{e.message}. Handler: #{handler.inspect}"
+      end
+
+    end
+
+    # Installs the codec into the (backend) job class (once).
+    def self.install(job_class = nil)
+      job_class ||= ( Delayed::Job if Delayed.const_defined?(:Job) )
+      return false unless job_class.is_a?(Class)
+      job_class.send(:include, Job) unless job_class < Job
+      true
+    end
+
+  end
+end
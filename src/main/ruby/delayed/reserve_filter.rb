@@ -0,0 +1,64 @@
+module Delayed
+  # Excludes jobs of given queues and job classes from the reserve query of
+  # the (ActiveRecord) backend, e.g. of queues and classes that are (currently)
+  # over their rate limit or quarantined - not reserved just to be put back.
+  #
+  # Job classes are matched by their serialized (YAML or JSON) handler, thus
+  # classes of e.g. (Marshal-ed) or PerformableMethod payloads are not excluded.
+  module ReserveFilter
+
+    # Installs the filter into the (backend) job class (once).
+    def self.install(job_class = nil)
+      job_class ||= ( Delayed::Job if Delayed.const_defined?(:Job) )
+      return false unless job_class.is_a?(Class) && job_class.respond_to?(:ready_to_run)
+      job_class.extend(self) unless job_class.singleton_class.include?(self)
+      true
+    end
+
+    def self.extended(base)
+      klass = base.singleton_class
+      klass.send :alias_method, :ready_to_run_unfiltered, :ready_to_run
+      klass.send :alias_method, :ready_to_run, :ready_to_run_filtered
+    end
+
+    # Reserves (yields) excluding jobs of the given queues and classes.
+    def self.excluding(queues, classes)
+      queues = nil if queues && queues.empty?
+      classes = nil if classes && classes.empty?
+      return yield unless queues || classes
+      Thread.current[:delayed_reserve_filter] = [ queues, classes ]
+      begin
+        yield
+      ensure
+        Thread.current[:delayed_reserve_filter] = nil
+      end
+    end
+
+    # @return (LIKE) patterns matching handlers of jobs of the given classes
+    def self.handler_patterns(classes)
+      patterns = []
+      classes.each do |name|
+        next unless name =~ /\A[\w:]+\z/ # not e.g. 'User#notify' (PerformableMethod)
+        patterns << "--- !ruby/object:#{name}\n%" << "--- !ruby/struct:#{name}\n%"
+        patterns << "%job_class: #{name}\n%" # ActiveJob (JobWrapper)
+        patterns << "#{PayloadCodec::JSONFormat::PREFIX}{\"class\":\"#{name}\"%" if defined? PayloadCodec
+      end
+      patterns
+    end
+
+    def ready_to_run_filtered(*args)
+      scope = ready_to_run_unfiltered(*args)
+      filter = Thread.current[:delayed_reserve_filter]
+      return scope unless filter && scope.respond_to?(:where)
+      queues, classes = filter
+      if queues && column_names.include?('queue')
+        scope = scope.where('queue IS NULL OR queue NOT IN (?)', queues)
+      end
+      ReserveFilter.handler_patterns(classes).each do |pattern|
+        scope = scope.where('handler NOT LIKE ?', pattern)
+      end if classes
+      scope
+    end
+
+  end
+end
@@ -1,9 +1,12 @@
+require 'jruby/rack/worker/env'
+
 module Delayed
   class JRubyWorker
     module SleepCalculator
 
+      # NOTE: idle workers get woken up on shutdown
       def sleep(time)
-        Kernel.sleep calc_sleep_time(time)
+        JRuby::Rack::Worker.idle calc_sleep_time(time), worker_manager
       end
 
       private
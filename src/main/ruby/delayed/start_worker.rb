@@ -18,6 +18,7 @@ begin
     options[:sleep_delay] = sleep_delay.to_f
   end
   worker = Delayed::JRubyWorker.new(options)
+  Delayed::Worker.logger = JRuby::Rack::Worker.async_logger(Delayed::Worker.logger)
   worker.start
 rescue Exception => e
   if defined? JRuby::Rack::Worker.log_error
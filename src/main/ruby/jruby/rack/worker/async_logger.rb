@@ -0,0 +1,107 @@
+require 'java'
+require 'logger'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # A logger that only filters (and formats) messages on the calling
+      # (worker) thread, the actual writing to the target logger happens from
+      # the manager's asynchronous logger thread (in batches). The level is the
+      # target's (e.g. Rails.logger) level unless set, setting the level filters
+      # in this logger only, the target keeps its own level.
+      #
+      # @see JRuby::Rack::Worker.async_logger
+      # @see org.kares.jruby.AsyncLogger
+      class AsyncLogger < ::Logger
+
+        class Sink # :nodoc
+          include Java::OrgKaresJruby::AsyncLogger::Sink
+
+          def initialize(target); @target = target end
+
+          # called from the (single) log writer thread
+          def write(entries)
+            entries.each do |entry|
+              if ( level = entry.getLevel ) < 0
+                @target << entry.getMessage
+              else
+                @target.add(level, entry.getMessage)
+              end
+            end
+          end
+
+        end
+
+        attr_reader :target
+
+        def initialize(target, async)
+          super(nil)
+          @target = target; @async = async
+          @sink = Sink.new(target)
+          @level_set = false
+        end
+
+        # @return the target's level unless a level has been set
+        def level
+          return super if @level_set || ! @target.respond_to?(:level)
+          @target.level
+        end
+
+        def level=(severity)
+          super; @level_set = true
+        end
+
+        def add(severity, message = nil, progname = nil)
+          severity ||= UNKNOWN
+          return true if severity < level
+          progname ||= target_progname
+          if message.nil?
+            if block_given?
+              message = yield
+            else
+              message = progname; progname = target_progname
+            end
+          end
+          if @target.is_a?(::Logger) # formatted now - with the time of the call
+            line = @target.send(:format_message, format_severity(severity), Time.now, progname, message)
+            @async.log(@sink, -1, line, nil) || @target << line
+          else
+            message = message_to_s(message)
+            @async.log(@sink, severity, message, nil) || @target.add(severity, message, progname)
+          end
+          true
+        end
+        alias_method :log, :add
+
+        def <<(message)
+          @async.log(@sink, -1, message.to_s, nil) || @target << message
+        end
+
+        # @return number of messages dropped (due a full buffer)
+        def dropped; @async.getDropped end
+
+        private
+
+        def target_progname
+          @target.respond_to?(:progname) ? @target.progname : nil
+        end
+
+        def message_to_s(message)
+          case message
+          when ::String then message
+          when ::Exception
+            msg = "#{message.message} (#{message.class})"
+            if backtrace = message.backtrace
+              msg << "\n" << backtrace.join("\n")
+            end
+            msg
+          else message.inspect
+          end
+        end
+
+      end
+
+    end
+  end
+end
@@ -0,0 +1,39 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # @return the (Java) in-JVM job completions (if enabled)
+      # @see org.kares.jruby.WorkerManager#COMPLETIONS_KEY
+      def self.job_completions
+        manager = self.manager
+        manager && manager.respond_to?(:getJobCompletions) ? manager.getJobCompletions : nil
+      end
+
+      # Waits for a job (performed by a worker in the same JVM) to complete e.g.
+      #
+      #   job = Delayed::Job.enqueue ReportJob.new(params[:id])
+      #   if completion = JRuby::Rack::Worker.await_job(job.id, 30)
+      #     completion.success? ? send_report : render_error(completion.error)
+      #   end
+      #
+      # @param timeout in seconds
+      # @return the completion (responds to `success?` and `error`) or nil
+      # if the job did not complete in time
+      def self.await_job(job_id, timeout)
+        unless completions = job_completions
+          raise "job completions not enabled (set jruby.worker.completions=true)"
+        end
+        completions.await(job_id.to_s, ( timeout.to_f * 1000 ).to_i)
+      end
+
+      # @private completes a job (if completions are enabled)
+      def self.complete_job(completions, job_id, error = nil)
+        return unless completions && job_id
+        completions.complete(job_id.to_s, error && error.to_s)
+      end
+
+    end
+  end
+end
@@ -0,0 +1,77 @@
+require 'jruby/rack/worker/env'
+require 'jruby/rack/worker/logger'
+require 'jruby'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # Whether workers should release their (ActiveRecord) connection after
+      # each job and while idle.
+      # @see org.kares.jruby.WorkerManager#CONNECTION_RELEASE_KEY
+      def self.release_connections?
+        manager = self.manager
+        !! ( manager && manager.respond_to?(:isConnectionRelease) && manager.isConnectionRelease )
+      end
+
+      # Returns connections held by the current thread back to their pool(s).
+      def self.release_connections
+        return unless defined?(::ActiveRecord::Base)
+        ::ActiveRecord::Base.clear_active_connections!
+      end
+
+      # @return the (Java) circuit breaker workers share (unless disabled)
+      # @see org.kares.jruby.CircuitBreaker
+      def self.circuit_breaker
+        manager = self.manager
+        manager && manager.respond_to?(:getCircuitBreaker) ? manager.getCircuitBreaker : nil
+      end
+
+      @@connection_pool_checked = nil; CONNECTION_CHECK_LOCK = Mutex.new # :nodoc
+
+      # Checks the connection pool (once per runtime and manager) as soon as
+      # ActiveRecord is up e.g. from a worker about to reserve a job, counting
+      # the manager's worker threads that share the (current) runtime.
+      # @return true if checked, false if there's no pool (or manager) yet
+      # @see #check_connection_pool
+      def self.check_connection_pool!(logger = self.logger)
+        manager = self.manager
+        return false unless manager && manager.respond_to?(:getWorkerCount)
+        return true if @@connection_pool_checked == manager
+        return false unless connection_pool # ActiveRecord not (yet) loaded
+        CONNECTION_CHECK_LOCK.synchronize do
+          return true if @@connection_pool_checked == manager
+          check_connection_pool(manager.getWorkerCount(JRuby.runtime), logger)
+          @@connection_pool_checked = manager
+        end
+        true
+      end
+
+      # Warns if worker threads might starve the connection pool, every worker
+      # holds a connection unless connections are released.
+      # @param count the number of worker threads (sharing the runtime)
+      def self.check_connection_pool(count, logger = self.logger)
+        return unless pool = connection_pool
+        return unless pool.respond_to?(:size) && ( size = pool.size )
+
+        if release_connections?
+          if count > size && logger
+            logger.info "#{count} worker threads share a connection pool of #{size}" +
+              " (connections are released between jobs)"
+          end
+        elsif count >= size && logger
+          logger.warn "#{count} worker thread(s) hold a connection each but the connection" +
+            " pool size is #{size} - other threads will time out waiting for a connection," +
+            " increase the pool size or set jruby.worker.connection.release = true"
+        end
+      end
+
+      def self.connection_pool
+        return nil unless defined?(::ActiveRecord::Base) && ::ActiveRecord::Base.respond_to?(:connection_pool)
+        ::ActiveRecord::Base.connection_pool rescue nil # not (yet) established
+      end
+      private_class_method :connection_pool
+
+    end
+  end
+end
@@ -4,6 +4,21 @@ module JRuby
 
       def self.manager; $worker_manager; end
 
+      # Sleeps (an idle worker) for the given seconds, returns early once the
+      # manager is stopping (thus idle workers need not be interrupted).
+      # @return true if the manager is stopping
+      def self.idle(seconds, manager = self.manager)
+        if manager && manager.respond_to?(:awaitStopping)
+          begin
+            manager.awaitStopping( ( seconds * 1000 ).to_i )
+          rescue java.lang.InterruptedException
+            true
+          end
+        else
+          Kernel.sleep(seconds); false
+        end
+      end
+
       ENV = Hash.new do |hash, key|
         if hash.key? key = key.to_s
           hash[key]
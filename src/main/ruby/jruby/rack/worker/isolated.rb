@@ -0,0 +1,60 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # Performs (heavy or thread-unsafe) jobs in child JVM processes, isolated
+      # from the (web) JVM e.g. from within a worker (or a request) :
+      #
+      #   JRuby::Rack::Worker::Isolated.perform PdfRenderJob.new(42)
+      #   JRuby::Rack::Worker::Isolated.perform ImageJob, 'image.png' # ImageJob.perform(...)
+      #
+      # The job (and it's arguments) are Marshal-ed, the (Marshal-ed) result
+      # of `perform` is returned. Raises an Isolated::Error if the job failed.
+      #
+      # @see org.kares.jruby.IsolatedWorkerPool
+      module Isolated
+
+        class Error < StandardError; end
+
+        # @return the (Java) isolated worker (process) pool if configured
+        # @see org.kares.jruby.WorkerManager#ISOLATED_KEY
+        def self.pool
+          manager = JRuby::Rack::Worker.manager
+          manager && manager.respond_to?(:getIsolatedWorkerPool) ? manager.getIsolatedWorkerPool : nil
+        end
+
+        # @param job to perform (in a child process)
+        # @param args passed to `job.perform`
+        # @return the job's result
+        def self.perform(job, *args)
+          raise ArgumentError, "job does not respond to :perform" unless job.respond_to?(:perform)
+          unless pool = self.pool
+            raise Error, "isolated workers not available (not configured ?)"
+          end
+          timeout = ( JRuby::Rack::Worker::ENV['jruby.worker.isolated.timeout'] || 60_000 ).to_i
+          begin
+            result = pool.submit(Marshal.dump([ job, args ]).to_java_bytes, timeout)
+          rescue java.lang.IllegalStateException => e
+            raise Error, e.message
+          end
+          Marshal.load String.from_java_bytes(result)
+        end
+
+        # @private performs a job payload (in the child process)
+        def self.perform_payload(payload)
+          job, args = Marshal.load String.from_java_bytes(payload)
+          result = job.perform(*args)
+          begin
+            Marshal.dump(result).to_java_bytes
+          rescue TypeError # result can not be marshaled
+            Marshal.dump(nil).to_java_bytes
+          end
+        end
+
+      end
+
+    end
+  end
+end
@@ -0,0 +1,38 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # @return the (Java) rate limits shared by workers (if configured)
+      # @see org.kares.jruby.WorkerManager#RATE_LIMITS_KEY
+      def self.rate_limits
+        manager = self.manager
+        manager && manager.respond_to?(:getRateLimits) ? manager.getRateLimits : nil
+      end
+
+      # @return the (Java) failing job class quarantine (if enabled)
+      # @see org.kares.jruby.WorkerManager#QUARANTINE_KEY
+      def self.job_quarantine
+        manager = self.manager
+        manager && manager.respond_to?(:getJobQuarantine) ? manager.getJobQuarantine : nil
+      end
+
+      # @return the (Java) web-load aware worker throttle (if configured)
+      # @see org.kares.jruby.WorkerManager#THROTTLE_LATENCY_KEY
+      def self.worker_throttle
+        manager = self.manager
+        manager && manager.respond_to?(:getWorkerThrottle) ? manager.getWorkerThrottle : nil
+      end
+
+      # Waits (up to timeout seconds) while workers are throttled.
+      # @return true if the job might be performed (release the throttle once done)
+      def self.acquire_throttle(throttle, timeout)
+        throttle.acquire( ( [ timeout.to_f, 0.1 ].max * 1000 ).to_i )
+      rescue java.lang.InterruptedException
+        false
+      end
+
+    end
+  end
+end
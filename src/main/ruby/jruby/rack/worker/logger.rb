@@ -1,3 +1,5 @@
+require 'jruby/rack/worker/env'
+
 module JRuby
   module Rack
     module Worker
@@ -14,7 +16,7 @@ module JRuby
 
       @@logger = nil
       def self.logger
-        @@logger ||= begin
+        @@logger ||= async_logger begin
           if defined? Rails.logger # NOTE: move out
             Rails.logger
           elsif defined? JRuby::Rack.logger
@@ -25,6 +27,24 @@ module JRuby
         end
       end
 
+      # Wraps the given logger so that messages get written asynchronously,
+      # only if the worker manager has been configured to do so (otherwise
+      # returns the passed logger) e.g. using :
+      #
+      #   <context-param>
+      #     <param-name>jruby.worker.log.async</param-name>
+      #     <param-value>true</param-value>
+      #   </context-param>
+      #
+      def self.async_logger(logger)
+        return logger if logger.nil? || ( defined?(AsyncLogger) && logger.is_a?(AsyncLogger) )
+        manager = self.manager
+        async = manager && manager.respond_to?(:getAsyncLogger) && manager.getAsyncLogger
+        return logger unless async
+        require 'jruby/rack/worker/async_logger'
+        AsyncLogger.new(logger, async)
+      end
+
       def self.logger=(logger)
         if @@logger == false
           require 'logger'
@@ -0,0 +1,52 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # @return the (Java) job metrics recorder if running with a manager
+      # @see org.kares.jruby.JobMetrics
+      def self.job_metrics
+        manager = self.manager
+        manager && manager.respond_to?(:getJobMetrics) ? manager.getJobMetrics : nil
+      end
+
+      # Whether the manager logs periodic throughput summaries, in which case
+      # workers should only log per job messages at the debug level.
+      # @see org.kares.jruby.WorkerManager#LOG_SUMMARY_KEY
+      def self.summary_logging?
+        manager = self.manager
+        !! ( manager && manager.respond_to?(:isSummaryLogging) && manager.isSummaryLogging )
+      end
+
+      # Job (latency) metrics as a Hash e.g.
+      #
+      #   { 'mails/SignupMailer' => { :count => 42, :failures => 1,
+      #     :latency => { :p50 => 1200, :p99 => 5300, :p999 => 9800, ... },
+      #     :wait => { ... } } }
+      #
+      # NOTE: all times are in micro-seconds.
+      def self.job_metrics_snapshot
+        return {} unless metrics = job_metrics
+        snapshot = {}
+        metrics.snapshot.each do |name, stats|
+          snapshot[name] = {
+            :count => stats.getCount, :failures => stats.getFailures,
+            :latency => histogram_to_hash(stats.getLatency),
+            :wait => histogram_to_hash(stats.getWait)
+          }
+        end
+        snapshot
+      end
+
+      def self.histogram_to_hash(histogram)
+        {
+          :count => histogram.getCount, :mean => histogram.getMean, :max => histogram.getMax,
+          :p50 => histogram.getP50, :p99 => histogram.getP99, :p999 => histogram.getP999
+        }
+      end
+      private_class_method :histogram_to_hash
+
+    end
+  end
+end
@@ -0,0 +1,54 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # @return the (Java) fork-join executor shared by workers (if running with a manager)
+      # @see org.kares.jruby.ParallelExecutor
+      def self.parallel_executor
+        manager = self.manager
+        manager && manager.respond_to?(:getParallelExecutor) ? manager.getParallelExecutor : nil
+      end
+
+      # Yields each item in parallel (using the manager's fork-join pool), e.g.
+      #
+      #   JRuby::Rack::Worker.parallel_each(images) { |image| image.resize! }
+      #
+      # Returns once all items have been processed, the first raised error is
+      # re-raised. Falls back to a (serial) each when not running with a manager.
+      # Pool threads check-out an ActiveRecord connection per item (if needed)
+      # and return it right away, not to hold on to connections while idle.
+      def self.parallel_each(items, &block)
+        items = items.to_a
+        if executor = parallel_executor
+          pool = parallel_connection_pool
+          executor.each(items.size) do |i|
+            pool ? pool.with_connection { block.call(items[i]) } : block.call(items[i])
+          end
+        else
+          items.each(&block)
+        end
+        items
+      end
+
+      # Same as #parallel_each but returns the mapped results (in order).
+      def self.parallel_map(items, &block)
+        items = items.to_a
+        return items.map(&block) unless executor = parallel_executor
+        pool = parallel_connection_pool
+        # results are collected (by the executor) from the completed tasks
+        executor.map(items.size) do |i|
+          pool ? pool.with_connection { block.call(items[i]) } : block.call(items[i])
+        end.to_a
+      end
+
+      def self.parallel_connection_pool
+        return nil unless defined?(::ActiveRecord::Base.connection_pool)
+        ::ActiveRecord::Base.connection_pool rescue nil # not (yet) established
+      end
+      private_class_method :parallel_connection_pool
+
+    end
+  end
+end
@@ -0,0 +1,51 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # Client for the in-JVM job queue (consumed by the built-in "queue" worker)
+      # e.g. to enqueue a job (any object responding to `perform`) :
+      #
+      #   JRuby::Rack::Worker::Queue.enqueue NewsletterJob.new(42), :priority => 1
+      #   JRuby::Rack::Worker::Queue.enqueue CleanupJob, :args => [ 'tmp' ], :run_at => Time.now + 60
+      #
+      # NOTE: jobs are serialized using Marshal.
+      # @see org.kares.jruby.JobQueue
+      module Queue
+
+        DEFAULT_QUEUE = 'default'.freeze
+
+        # @return the enqueued job's id
+        def self.enqueue(job, options = {})
+          raise ArgumentError, "job does not respond to :perform" unless job.respond_to?(:perform)
+          payload = Marshal.dump([ job, options[:args] || [] ]).to_java_bytes
+          run_at = options[:run_at] ? ( options[:run_at].to_f * 1000 ).to_i : 0
+          queue = ( options[:queue] || DEFAULT_QUEUE ).to_s
+          java_queue.push(queue, ( options[:priority] || 0 ).to_i, run_at, payload).getId
+        end
+
+        # @return number of queued jobs (not being worked on)
+        def self.size(queue = nil)
+          queue ? java_queue.size(queue.to_s) : java_queue.size
+        end
+
+        # @private
+        def self.load(job)
+          Marshal.load String.from_java_bytes(job.getPayload)
+        end
+
+        # @return the (Java) job queue from the worker manager
+        def self.java_queue
+          manager = JRuby::Rack::Worker.manager
+          unless manager && manager.respond_to?(:getJobQueue)
+            raise "no worker manager (job queue) available in this runtime"
+          end
+          manager.getJobQueue
+        end
+
+      end
+
+    end
+  end
+end
@@ -0,0 +1,25 @@
+begin
+  require 'jruby/rack/worker/logger'
+  require 'jruby/rack/worker/env'
+  env = JRuby::Rack::Worker::ENV
+
+  require 'jruby/rack/worker/queue/worker'
+  options = {}
+  if queues = ( env['QUEUES'] || env['QUEUE'] )
+    options[:queues] = queues.split(',').map(&:strip)
+  end
+  options[:max_attempts] = env['MAX_ATTEMPTS'].to_i if env['MAX_ATTEMPTS']
+  options[:sleep_delay] = env['SLEEP_DELAY'].to_f if env['SLEEP_DELAY']
+
+  JRuby::Rack::Worker::Queue::Worker.new(options).start
+rescue Exception => e
+  if defined? JRuby::Rack::Worker.log_error
+    JRuby::Rack::Worker.log_error(e)
+  else
+    msg = e.inspect.dup
+    if backtrace = e.backtrace
+      msg << ":\n  #{backtrace.join("\n  ")}"
+    end
+    STDERR.puts(msg) || true
+  end || raise(e)
+end
@@ -0,0 +1,116 @@
+require 'jruby/rack/worker/queue'
+require 'jruby/rack/worker/logger'
+require 'jruby/rack/worker/metrics'
+require 'jruby/rack/worker/completions'
+
+module JRuby
+  module Rack
+    module Worker
+      module Queue
+
+        # A worker (loop) performing jobs from the in-JVM queue.
+        # @see JRuby::Rack::Worker::Queue.enqueue
+        class Worker
+
+          DEFAULT_MAX_ATTEMPTS = 5
+          DEFAULT_SLEEP_DELAY = 5
+
+          attr_reader :queues, :max_attempts, :sleep_delay
+          attr_accessor :logger
+
+          def initialize(options = {})
+            queues = options[:queues]
+            @queues = queues && ! queues.empty? ? queues.map(&:to_s) : nil
+            @max_attempts = ( options[:max_attempts] || DEFAULT_MAX_ATTEMPTS ).to_i
+            @sleep_delay = ( options[:sleep_delay] || DEFAULT_SLEEP_DELAY ).to_f
+            @logger = options[:logger] || JRuby::Rack::Worker.logger
+            @queue = options[:java_queue] || Queue.java_queue
+            # NOTE: memoized since the manager un-exports itself on shutdown
+            @manager = JRuby::Rack::Worker.manager
+            @metrics = JRuby::Rack::Worker.job_metrics
+            @completions = JRuby::Rack::Worker.job_completions
+          end
+
+          def name
+            @name ||= "queue worker #{java.lang.Thread.currentThread.getName}".freeze
+          end
+          alias_method :to_s, :name
+
+          def start
+            logger.info "Starting #{name}"
+            at_exit { stop }
+            queues = @queues && @queues.to_java(:string)
+            timeout = ( @sleep_delay * 1000 ).to_i
+            until stop?
+              begin
+                job = @queue.reserve(queues, timeout)
+                run(job) if job
+              rescue java.lang.InterruptedException
+                next # woken up e.g. on shutdown (an interrupted job stays queued)
+              end
+            end
+            logger.info "Stopped #{name}"
+          end
+
+          def stop; @stop = true end
+
+          def stop?
+            @stop || ( @manager && @manager.respond_to?(:isStopping) && @manager.isStopping )
+          end
+
+          # Performs a (reserved) job, an interrupted job (e.g. on shutdown) is
+          # put back into the queue (not counted as a failure) and re-raised.
+          # @return true if the job succeeded
+          def run(job)
+            started = @metrics.start if @metrics
+            name = nil; success = false; interrupted = false
+            begin
+              object, args = Queue.load(job)
+              name = object.is_a?(Module) ? object.name : object.class.name
+              logger.debug "#{self.name}: running #{name} (#{job})"
+              object.perform(*args)
+              success = true
+            rescue java.lang.InterruptedException, SignalException, SystemExit
+              interrupted = true
+              @queue.release(job)
+              raise
+            rescue StandardError => e
+              failed(job, name, e)
+            ensure
+              if success
+                @queue.complete(job)
+                JRuby::Rack::Worker.complete_job(@completions, job.getId)
+              end
+              if @metrics && ! interrupted
+                @metrics.recordSince(name || 'unknown', job.getQueue, started, job.getWaitTime, ! success)
+              end
+            end
+            success
+          end
+
+          protected
+
+          def failed(job, name, error)
+            attempts = job.getAttempts + 1
+            message = "#{self.name}: #{name || job} failed with #{error.class}: #{error.message} (#{attempts} attempts)"
+            if attempts >= max_attempts
+              logger.error "#{message} - giving up"
+              @queue.complete(job)
+              JRuby::Rack::Worker.complete_job(@completions, job.getId, "#{error.class}: #{error.message}")
+            else
+              logger.warn message
+              @queue.retry(job, ( ( Time.now.to_f + retry_delay(attempts) ) * 1000 ).to_i)
+            end
+          end
+
+          # (same as DJ) seconds to wait before the next attempt
+          def retry_delay(attempts)
+            attempts ** 4 + 5
+          end
+
+        end
+
+      end
+    end
+  end
+end
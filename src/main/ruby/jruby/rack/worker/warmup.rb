@@ -0,0 +1,41 @@
+require 'jruby/rack/worker/env'
+
+module JRuby
+  module Rack
+    module Worker
+
+      # Warms up (configured) job classes before the worker loop starts, the
+      # classes get (auto-)loaded and those responding to `warm_up` have it
+      # called (a number of times - so that the JIT kicks in) e.g.
+      #
+      #   class NewsletterJob
+      #     def self.warm_up; new(0).render_template end
+      #   end
+      #
+      # @see org.kares.jruby.WorkerManager#WARMUP_JOBS_KEY
+      # @return the number of warmed up job classes
+      def self.warm_up(job_classes = ENV['jruby.worker.warmup.jobs'],
+                       iterations = ENV['jruby.worker.warmup.iterations'])
+        job_classes = job_classes.to_s.split(',') unless job_classes.is_a?(Array)
+        iterations = ( iterations || 1 ).to_i
+        job_classes.map(&:strip).reject(&:empty?).inject(0) do |count, name|
+          begin
+            job_class = name.split('::').inject(Object) { |mod, const| mod.const_get(const) }
+            iterations.times { job_class.warm_up } if job_class.respond_to?(:warm_up)
+            count + 1
+          rescue Exception => e
+            warn "[#{self.name}] failed warming up #{name}: #{e.inspect}"
+            count
+          end
+        end
+      end
+
+      # @return false while (some) worker runtimes are still warming up
+      def self.warmed_up?
+        manager = self.manager
+        manager && manager.respond_to?(:isWarmedUp) ? manager.isWarmedUp : true
+      end
+
+    end
+  end
+end
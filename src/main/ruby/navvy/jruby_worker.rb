@@ -4,30 +4,125 @@ unless defined?(Navvy::Job)
 end
 
 module Navvy
+  # A Navvy worker (instance) per thread, jobs are fetched in batches by a
+  # shared fetcher and spread across all worker threads (of the runtime).
   class JRubyWorker < Worker
 
-    # a thread-safe Navvy::Worker.start
-    def self.start
-      Navvy.logger.info '*** Starting ***'
+    # Fetches (a batch of) jobs for all workers, a single query at a time.
+    # Fetched jobs are claimed (in memory) until performed, thus those not yet
+    # completed are not handed out to another thread when fetched again.
+    class Fetcher
+
+      attr_reader :limit
+
+      def initialize(limit = nil)
+        @limit = limit || Navvy::Job.limit
+        @jobs = []; @claimed = {}; @idle_until = nil
+        @lock = Mutex.new
+      end
+
+      # @return the next job to run or nil if there's none (right now)
+      def next_job
+        @lock.synchronize do
+          fetch if @jobs.empty? # others wait for the batch (instead of querying)
+          @jobs.shift
+        end
+      end
+
+      # Release a (performed) job's claim.
+      def done(job)
+        @lock.synchronize { @claimed.delete(job.id) }
+      end
 
-      at_exit { exit! }
+      # @return number of fetched jobs not yet handed out
+      def size; @lock.synchronize { @jobs.size } end
 
-      loop do
-        fetch_and_run_jobs
+      private
 
-        break if @exit
-        
-        sleep sleep_time
+      def fetch
+        # no jobs found recently - do not query again for each idle thread
+        return if @idle_until && Time.now < @idle_until
+        jobs = Navvy::Job.next(@limit).reject { |job| @claimed.key?(job.id) }
+        @idle_until = jobs.empty? ? Time.now + Navvy::Worker.sleep_time : nil
+        jobs.each { |job| @claimed[job.id] = true }
+        @jobs.concat(jobs)
       end
+
+    end
+
+    @@fetcher = nil; @@at_exit = false; LOCK = Mutex.new # :nodoc
+
+    # @return the fetcher shared by all (JRuby) workers
+    def self.fetcher(limit = nil)
+      LOCK.synchronize { @@fetcher ||= Fetcher.new(limit) }
     end
 
+    # Registers an at_exit hook (once, not per worker) to clean up on exit.
+    def self.register_at_exit
+      LOCK.synchronize do
+        return false if @@at_exit
+        at_exit { exit! }
+        @@at_exit = true
+      end
+    end
+
+    # a thread-safe Navvy::Worker.start
+    def self.start
+      new.start
+    end
+
+    @@exit = false
+
     def self.exit!
-      return if @exit
+      return if @@exit
       Navvy.logger.info '*** Exiting ***'
-      @exit = true
+      @@exit = true
       Navvy.logger.info '*** Cleaning up ***'
       Navvy::Job.cleanup
     end
 
+    def initialize(fetcher = self.class.fetcher)
+      @fetcher = fetcher; @exit = false
+      manager = JRuby::Rack::Worker.manager if defined? JRuby::Rack::Worker.manager
+      @manager = manager && manager.respond_to?(:isStopping) ? manager : nil
+    end
+
+    def start
+      Navvy.logger.info '*** Starting ***'
+      @@exit = false # (re-)started e.g. by a new manager
+      self.class.register_at_exit
+      until stop?
+        if job = @fetcher.next_job
+          run_job(job)
+        elsif @manager # woken up on shutdown
+          JRuby::Rack::Worker.idle(self.class.sleep_time, @manager)
+        else
+          sleep self.class.sleep_time
+        end
+      end
+    end
+
+    # Stop the worker (after the current job).
+    def stop; @exit = true end
+
+    def stop?
+      @exit || @@exit || ( @manager ? @manager.isStopping : false )
+    end
+
+    # @see Navvy::Worker.fetch_and_run_jobs
+    def run_job(job)
+      result = job.run
+      message = "* #{job.object.to_s}.#{job.method_name}" <<
+        "(#{job.args.join(', ')}) => #{(job.exception || result).to_s}"
+      if Navvy.logger.respond_to?(:colorized_info)
+        Navvy.logger.colorized_info message, job.failed? ? 31 : 32
+      else
+        Navvy.logger.info message
+      end
+      result
+    ensure
+      @fetcher.done(job)
+    end
+
   end
-end
\ No newline at end of file
+end
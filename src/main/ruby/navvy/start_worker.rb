@@ -1,7 +1,13 @@
 require 'jruby/rack/worker/logger'
 begin
+  require 'jruby/rack/worker/env'
+  env = JRuby::Rack::Worker::ENV
+
   require 'navvy/jruby_worker'
+  if batch_size = env['BATCH_SIZE'] # jobs fetched (at most) per query
+    Navvy::JRubyWorker.fetcher Integer(batch_size)
+  end
   Navvy::JRubyWorker.start
 rescue => e
   JRuby::Rack::Worker.log_error(e) || raise
-end
\ No newline at end of file
+end
@@ -1,5 +1,6 @@
 require 'resque' unless defined?(Resque::Worker)
 require 'logger'
+require 'time'
 
 module Resque
   # Thread-safe worker usable with JRuby, adapts most of the methods designed
@@ -58,7 +59,7 @@ module Resque
             pause while paused? # keep sleeping while paused
           end
 
-          if (job = (RESERVE_ACCEPTS_INTERVAL ? reserve(interval) : reserve))
+          if (job = reserve_throttled(interval))
             log "got: #{job.inspect}"
 
             job.worker = self
@@ -71,6 +72,7 @@ module Resque
 
             done_working
           else
+            stats_batch.flush_due if stats_batch # idle - write pending stats
             break if interval.zero?
             if RESERVE_ACCEPTS_INTERVAL
               log! "Timed out after #{interval} seconds"
@@ -83,11 +85,206 @@ module Resque
           end
         end
 
+        flush_done_working
+        requeue_batch
         unregister_worker
       rescue Exception => exception
+        flush_done_working rescue nil
+        requeue_batch rescue nil
         unregister_worker(exception)
       end
 
+      # Number of jobs reserved (from a queue) at once, 1 by default (no batching).
+      # Batched jobs are buffered by the worker (thread) and put back to the head
+      # of their queue if the worker stops before performing them.
+      def batch_size; @batch_size ||= 1 end
+
+      def batch_size=(size)
+        @batch_size = [ size.to_i, 1 ].max
+      end
+
+      # Reserves unless the (shared) circuit breaker is open, waits for the
+      # breaker to close (or a probe) and reserves (re-trying) only than.
+      # @see JRuby::Rack::Worker.circuit_breaker
+      def reserve_with_breaker(interval)
+        unless breaker = circuit_breaker
+          return RESERVE_ACCEPTS_INTERVAL ? reserve(interval) : reserve
+        end
+        begin
+          return nil unless breaker.await( ( [ interval, 1 ].max * 1000 ).to_i )
+        rescue java.lang.InterruptedException
+          return nil
+        end
+        begin
+          job = RESERVE_ACCEPTS_INTERVAL ? reserve(interval) : reserve
+          breaker.recordSuccess
+          job
+        rescue StandardError => e # e.g. Redis::CannotConnectError
+          breaker.recordFailure("#{e.class}: #{e.message}")
+          nil
+        end
+      end
+      private :reserve_with_breaker
+
+      # Waits while workers are throttled (due web load) before reserving,
+      # the throttle is released once the reserved job has been performed.
+      # @see JRuby::Rack::Worker.worker_throttle
+      def reserve_throttled(interval)
+        return reserve_with_breaker(interval) unless throttle = worker_throttle
+        return nil unless JRuby::Rack::Worker.acquire_throttle(throttle, interval)
+        job = nil
+        begin
+          job = reserve_with_breaker(interval)
+        ensure
+          job ? ( @throttled = true ) : throttle.release
+        end
+      end
+      private :reserve_throttled
+
+      # @see Resque::Worker#reserve
+      # @override to skip queues (and job classes) that are over their rate
+      # limit, such jobs stay queued (at the head of their queue) and to skip
+      # jobs of quarantined classes (those are left in place)
+      # @see JRuby::Rack::Worker.rate_limits
+      # @see JRuby::Rack::Worker.job_quarantine
+      def reserve(*args)
+        limits = rate_limits; quarantine = job_quarantine
+        if batch_size > 1
+          return reserve_batched(args.first) unless limits || quarantine
+          unless @batch_size_ignored
+            @batch_size_ignored = true
+            log "Not reserving jobs in batches (BATCH_SIZE) - rate limits and quarantine decide per job"
+          end
+        end
+        return super unless limits || quarantine
+        queues.each do |queue|
+          if job = reserve_limited(queue, limits, quarantine)
+            log! "Found job on #{queue}"
+            return job
+          end
+        end
+        sleep(args.first) if args.first # reserve(interval) would block
+        nil
+      end
+
+      # Reserves up to #batch_size jobs from a queue in a single (MULTI/EXEC)
+      # round-trip, returns the first one and buffers the rest.
+      def reserve_batched(interval = nil)
+        reserved = ( @reserved ||= [] )
+        return reserved.shift unless reserved.empty?
+        redis = Resque.redis
+        queues.each do |queue|
+          key = "queue:#{queue}"
+          payloads = redis.multi do |multi|
+            multi ||= redis
+            multi.lrange(key, 0, batch_size - 1)
+            multi.ltrim(key, batch_size, -1)
+          end
+          payloads = payloads && payloads.first
+          next if payloads.nil? || payloads.empty?
+          log! "Found #{payloads.size} job(s) on #{queue}"
+          payloads.each { |payload| reserved << Resque::Job.new(queue, Resque.decode(payload)) }
+          return reserved.shift
+        end
+        flush_done_working # idle
+        sleep(interval) if interval # reserve(interval) would block
+        nil
+      end
+      private :reserve_batched
+
+      # Puts (batch) reserved jobs, not yet performed, back to their queue (head).
+      def requeue_batch
+        reserved = @reserved
+        return if reserved.nil? || reserved.empty?
+        @reserved = []
+        redis = Resque.redis
+        redis.pipelined do |pipe|
+          pipe ||= redis
+          reserved.reverse_each do |job|
+            pipe.lpush("queue:#{job.queue}", Resque.encode(job.payload))
+          end
+        end
+        log "Re-queued #{reserved.size} reserved job(s)"
+      end
+      private :requeue_batch
+
+      # @see Resque::Worker#done_working
+      # @override to write the bookkeeping along with the next #working_on
+      # (of the same batch), once the batch drained it's written right away
+      def done_working
+        return super if batch_size <= 1 || rate_limits || job_quarantine
+        return super if @reserved.nil? || @reserved.empty?
+        @done_working = true
+      end
+
+      # @see Resque::Worker#working_on
+      # @override to write the previous job's #done_working in the same round-trip
+      def working_on(job)
+        return super unless @done_working
+        @done_working = false
+        processed! if batch = stats_batch # coalesced (written by the batch)
+        data = Resque.encode(:queue => job.queue, :run_at => Time.now.utc.iso8601, :payload => job.payload)
+        redis = Resque.redis
+        redis.pipelined do |pipe|
+          pipe ||= redis
+          unless batch
+            pipe.incrby('stat:processed', 1); pipe.incrby("stat:processed:#{self}", 1)
+          end
+          pipe.set("worker:#{self}", data) # replaces the done job's key (no need to delete it)
+        end
+      end
+
+      # Writes a pending #done_working (e.g. once the worker is idle).
+      def flush_done_working
+        return unless @done_working
+        @done_working = false
+        if @unregistered # by the shutdown batch - only count it
+          stats_batch ? stats_batch.incr('processed') : Resque::Stat << 'processed'
+        else
+          Worker.instance_method(:done_working).bind(self).call
+        end
+      end
+      private :flush_done_working
+
+      QUARANTINE_SKIP = 50 # max (head) jobs looked at per reserve (and queue)
+
+      def reserve_limited(queue, limits, quarantine)
+        if limits
+          return nil if limits.getWaitTime(queue, nil) > 0
+          if limits.hasClassLimits
+            return nil unless head = Resque.peek(queue)
+            return nil if limits.getWaitTime(queue, head['class'].to_s) > 0
+          end
+        end
+        quarantined = quarantine && quarantine.getQuarantined.to_a
+        if quarantined && ! quarantined.empty?
+          return nil unless job = reserve_skipping(queue, quarantined)
+        else
+          return nil unless job = Resque::Job.reserve(queue)
+        end
+        if limits && limits.tryAcquire(queue, job.payload['class'].to_s) > 0
+          # lost a race for the last permit - push it back to the head
+          Resque.redis.lpush("queue:#{queue}", Resque.encode(job.payload))
+          return nil
+        end
+        job
+      end
+      private :reserve_limited
+
+      # Reserves the first job (of the queue's head) not of a quarantined class,
+      # quarantined jobs are not popped (nor re-pushed) thus keep their order.
+      def reserve_skipping(queue, quarantined)
+        key = "queue:#{queue}"; redis = Resque.redis
+        redis.lrange(key, 0, QUARANTINE_SKIP - 1).each do |encoded|
+          payload = Resque.decode(encoded)
+          next if quarantined.include?(payload['class'].to_s)
+          # LREM fails (0) if another worker reserved the job meanwhile
+          return Resque::Job.new(queue, payload) if redis.lrem(key, 1, encoded).to_i > 0
+        end
+        nil
+      end
+      private :reserve_skipping
+
       # No forking with JRuby !
       # @see Resque::Worker#fork
       def fork # :nodoc
@@ -97,6 +294,47 @@ module Resque
 
     end
 
+    require 'jruby/rack/worker/metrics'
+    require 'jruby/rack/worker/connections'
+    require 'jruby/rack/worker/limits'
+
+    # @see Resque::Worker#perform
+    # @override records job latency metrics
+    # and releases the connection (if configured) after the job
+    def perform(job, &block)
+      @performing = true; @unregistered = false
+      metrics = job_metrics; quarantine = job_quarantine
+      return super unless metrics || quarantine
+      started = metrics.start if metrics; @job_failed = false; done = nil
+      begin
+        outcome = super; done = true
+        outcome
+      ensure
+        failed = @job_failed || ! done
+        metrics.recordSince(job_class_name(job), job.queue, started, -1, failed) if metrics
+        quarantine.record(job_class_name(job), failed) if quarantine
+      end
+    ensure
+      @performing = false
+      if @throttled
+        @throttled = false; worker_throttle.release
+      end
+      @connection_pool_checked ||= JRuby::Rack::Worker.check_connection_pool!
+      JRuby::Rack::Worker.release_connections if release_connections?
+    end
+
+    if method_defined?(:failed!)
+      # @see Resque::Worker#failed!
+      def failed!(*args)
+        @job_failed = true
+        if ! RESQUE_2x && ( batch = stats_batch )
+          batch.incr('failed'); batch.incr("failed:#{self}")
+        else
+          super
+        end
+      end
+    end
+
     # @see Resque::Worker#enable_gc_optimizations
     def enable_gc_optimizations # :nodoc
       nil # we're definitely not REE
@@ -132,6 +370,7 @@ module Resque
     def register_signal_handlers
       at_exit { shutdown }
       log! "registered at_exit shutdown hook (instead of signal handlers)"
+      register_shutdown_batch
     end
 
     # @see Resque::Worker#unregister_signal_handlers
@@ -213,6 +452,11 @@ module Resque
 
     # returns worker thread names that supposely belong to the current application
     def worker_thread_ids
+      manager = JRuby::Rack::Worker.manager
+      if manager && manager.respond_to?(:getWorkerThreadNames)
+        return manager.getWorkerThreadNames.to_a # threads the manager started
+      end
+      # not managed (e.g. started from a script) - look up threads by name :
       thread_group = java.lang.Thread.currentThread.getThreadGroup
       threads = java.lang.reflect.Array.newInstance(
         java.lang.Thread.java_class, thread_group.activeCount)
@@ -291,6 +535,189 @@ module Resque
 
     else
 
+      # Workers (of a runtime) register here so that the manager shuts them
+      # down and unregisters all idle ones (in a single Redis round-trip).
+      # @see org.kares.jruby.WorkerManager#addShutdownBatch
+      class ShutdownBatch # :nodoc
+
+        def initialize; @workers = {}; @lock = Mutex.new end
+
+        def add(worker)
+          @lock.synchronize { @workers[worker.id] = worker }
+        end
+
+        def shutdown(ids)
+          workers = @lock.synchronize { @workers.values_at(*ids).compact }
+          workers.each(&:shutdown)
+          if batch = JRubyWorker.stats_batch
+            batch.stop # started again (by #batch_stats) if workers get re-started
+            batch.flush
+          end
+          # busy workers unregister themselves as they finish their job
+          JRubyWorker.unregister_workers workers.reject(&:performing?)
+        end
+
+      end
+      SHUTDOWN_BATCH = ShutdownBatch.new
+
+      # Coalesces (processed/failed) stat increments and heartbeats of all the
+      # workers (of a runtime) in memory, these get written in a single pipelined
+      # round-trip once per interval (or as soon as enough of them are pending).
+      # A (daemon) flusher thread writes pending updates on the interval, thus
+      # these do not wait for the next increment while workers are busy.
+      class StatsBatch
+
+        attr_reader :interval, :max_size
+
+        def initialize(interval = 1.0, max_size = 100)
+          @interval = interval; @max_size = max_size
+          @stats = Hash.new(0); @heartbeats = {}; @size = 0
+          @flushed_at = Time.now; @lock = Mutex.new
+          @flusher = nil
+        end
+
+        # Start flushing pending updates (every interval) in the background.
+        def start
+          @lock.synchronize do
+            return @flusher if @flusher && @flusher.alive?
+            @flusher = Thread.new do
+              Thread.current.name = 'resque-stats-batch' if Thread.current.respond_to?(:name=)
+              loop do
+                sleep @interval
+                begin
+                  flush_due
+                rescue => e # increments are kept for the next flush
+                  warn "failed flushing stats: #{e.inspect}"
+                end
+              end
+            end
+          end
+        end
+
+        # Stop the (background) flusher, pending updates are still written on
+        # increments (once due) and by an explicit #flush.
+        def stop
+          flusher = @lock.synchronize { f = @flusher; @flusher = nil; f }
+          flusher.kill if flusher
+        end
+
+        def incr(stat, by = 1)
+          due = @lock.synchronize { @stats[stat] += by; @size += 1; due? }
+          flush if due
+        end
+
+        def heartbeat(id, time)
+          due = @lock.synchronize { @heartbeats[id] = time; @size += 1; due? }
+          flush if due
+        end
+
+        # @return number of pending (not yet written) updates
+        def size; @lock.synchronize { @size } end
+
+        def flush_due
+          flush if @lock.synchronize { due? }
+        end
+
+        def flush
+          stats = heartbeats = size = nil
+          @lock.synchronize do
+            return if @size == 0
+            stats = @stats; heartbeats = @heartbeats; size = @size
+            @stats = Hash.new(0); @heartbeats = {}; @size = 0
+            @flushed_at = Time.now
+          end
+          redis = Resque.redis
+          begin
+            redis.pipelined do |pipe|
+              pipe ||= redis
+              stats.each { |stat, by| pipe.incrby("stat:#{stat}", by) }
+              heartbeats.each { |id, time| pipe.hset('workers:heartbeat', id, time) }
+            end
+          rescue Exception
+            @lock.synchronize do # keep the (failed) updates for the next flush
+              stats.each { |stat, by| @stats[stat] += by }
+              heartbeats.each do |id, time| # unless a newer one is pending
+                @heartbeats[id] = time unless @heartbeats.key?(id)
+              end
+              @size += size
+            end
+            raise
+          end
+        end
+
+        private
+
+        def due?
+          @size > 0 && ( @size >= @max_size || Time.now - @flushed_at >= @interval )
+        end
+
+      end
+
+      @@stats_batch = nil; STATS_BATCH_LOCK = Mutex.new # :nodoc
+
+      # NOTE: the batch is runtime wide (not per manager) as are the stats and
+      # Resque.redis it writes to - a runtime's workers belong to one manager,
+      # a (re-)started manager re-starts the batch's flusher (stopped on shutdown).
+      # @return the (runtime wide) stats batch or nil if not batching stats
+      def self.stats_batch; @@stats_batch end
+
+      # Start batching stats (and heartbeats) of all workers.
+      def self.batch_stats(interval = 1.0, max_size = 100)
+        batch = STATS_BATCH_LOCK.synchronize { @@stats_batch ||= StatsBatch.new(interval, max_size) }
+        batch.start; batch
+      end
+
+      # @see Resque::Worker#processed!
+      # @override to coalesce stat increments (if batching stats)
+      def processed!
+        return super unless batch = stats_batch
+        batch.incr('processed'); batch.incr("processed:#{self}")
+      end
+
+      if method_defined?(:heartbeat!) # >= 1.26
+
+        # @see Resque::Worker#heartbeat!
+        # @override to coalesce heartbeats (if batching stats)
+        def heartbeat!(*args)
+          return super unless batch = stats_batch
+          time = args.first || Time.now
+          batch.heartbeat(to_s, time.iso8601)
+        end
+
+      end
+
+      # Unregisters given (idle) workers using a single (pipelined) round-trip.
+      # @see Resque::Worker#unregister_worker
+      def self.unregister_workers(workers)
+        return if workers.empty?
+        ids = workers.map(&:id)
+        # Resque's (Redis) writes get queued, the pipe is not handed to Resque
+        Resque.redis.pipelined do
+          workers.each { |worker| worker.send(:unregister_idle_worker) }
+        end
+        if JRUBY
+          with_global_lock do
+            store_global_property(WORKERS_KEY, ( system_registered_workers - ids ).join(','))
+          end
+        end
+      end
+
+      # Unregisters an idle worker (within a pipeline) using Resque's
+      # unregister_worker, the processing job is only read to be failed.
+      def unregister_idle_worker
+        @idle_unregister = true
+        Worker.instance_method(:unregister_worker).bind(self).call
+      ensure
+        @idle_unregister = false
+        @unregistered = true # skip on #unregister_worker
+      end
+      private :unregister_idle_worker
+
+      # @see Resque::Worker#processing
+      def processing
+        @idle_unregister ? {} : super
+      end
+
       # @see Resque::Worker#register_worker
       def register_worker
         outcome = super
@@ -302,7 +729,9 @@ module Resque
 
         # @see Resque::Worker#unregister_worker
         def unregister_worker(exception = nil)
+          return if @unregistered # by the shutdown batch
           system_unregister_worker if JRUBY
+          stats_batch.flush if stats_batch # before the worker's stats get cleared
           super(exception)
         end
 
@@ -310,7 +739,9 @@ module Resque
 
         # @see Resque::Worker#unregister_worker
         def unregister_worker(exception = nil)
+          return if @unregistered # by the shutdown batch
           system_unregister_worker if JRUBY
+          stats_batch.flush if stats_batch # before the worker's stats get cleared
           super(); raise exception
         end
 
@@ -368,6 +799,38 @@ module Resque
 
     end
 
+    PER_JOB_MESSAGE = /\A(got|done): /
+    private_constant :PER_JOB_MESSAGE if respond_to?(:private_constant)
+
+    alias_method :log_message, :log
+    private :log_message
+
+    # @override to log (per job) messages at debug level with summary logging
+    # @see JRuby::Rack::Worker.summary_logging?
+    def log(message)
+      if summary_logging? && PER_JOB_MESSAGE =~ message
+        logger.debug message # NOTE: log! might end up calling log
+      else
+        log_message message
+      end
+    end
+
+    if ( instance_method(:log_with_severity) rescue nil ) # Resque >= 1.26
+
+      alias_method :log_with_severity_message, :log_with_severity
+      private :log_with_severity_message
+
+      # @override e.g. 'done: ...' gets logged (by #perform) using Resque.logger
+      # @see #log
+      def log_with_severity(severity, message)
+        if summary_logging? && severity.to_s == 'info' && PER_JOB_MESSAGE =~ message.to_s
+          severity = :debug
+        end
+        log_with_severity_message severity, message
+      end
+
+    end
+
     def logger
       @logger ||= begin
         # [master] `Resque.logger = Logger.new(STDOUT)`
@@ -392,8 +855,85 @@ module Resque
       @logger = logger
     end
 
+    # @return whether the worker is currently performing a job
+    def performing?; !!@performing end
+
+    # @see Resque::Worker#shutdown?
+    # @override to also stop (after the current job) when the manager shuts down
+    def shutdown?
+      super || ( ( manager = worker_manager ) ? manager.isStopping : false )
+    end
+
     private
 
+    # @override idle (polling) sleeps get woken up when the manager shuts down
+    def sleep(*args)
+      return super unless JRUBY && ( time = args.first ) && ( manager = worker_manager )
+      JRuby::Rack::Worker.idle(time, manager)
+    end
+
+    def register_shutdown_batch
+      return if RESQUE_2x || ! JRUBY # batching relies on the 1.x Redis keys
+      manager = JRuby::Rack::Worker.manager
+      return unless manager && manager.respond_to?(:addShutdownBatch)
+      SHUTDOWN_BATCH.add(self)
+      manager.addShutdownBatch('resque', JRuby.runtime, id) { |ids| SHUTDOWN_BATCH.shutdown(ids.to_a) }
+    end
+
+    def stats_batch
+      RESQUE_2x ? nil : JRubyWorker.stats_batch
+    end
+
+    def job_metrics
+      return @job_metrics if defined? @job_metrics
+      @job_metrics = JRuby::Rack::Worker.job_metrics
+    end
+
+    def summary_logging?
+      return @summary_logging if defined? @summary_logging
+      @summary_logging = JRuby::Rack::Worker.summary_logging?
+    end
+
+    def release_connections?
+      return @release_connections if defined? @release_connections
+      @release_connections = JRuby::Rack::Worker.release_connections?
+    end
+
+    def rate_limits
+      return nil unless JRUBY
+      return @rate_limits if defined? @rate_limits
+      @rate_limits = JRuby::Rack::Worker.rate_limits
+    end
+
+    def job_quarantine
+      return nil unless JRUBY
+      return @job_quarantine if defined? @job_quarantine
+      @job_quarantine = JRuby::Rack::Worker.job_quarantine
+    end
+
+    def worker_throttle
+      return nil unless JRUBY
+      return @worker_throttle if defined? @worker_throttle
+      @worker_throttle = JRuby::Rack::Worker.worker_throttle
+    end
+
+    def circuit_breaker
+      return nil unless JRUBY
+      return @circuit_breaker if defined? @circuit_breaker
+      @circuit_breaker = JRuby::Rack::Worker.circuit_breaker
+    end
+
+    # NOTE: memoized since the manager un-exports itself on shutdown
+    def worker_manager
+      return @worker_manager if defined? @worker_manager
+      manager = JRuby::Rack::Worker.manager
+      @worker_manager = manager && manager.respond_to?(:isStopping) ? manager : nil
+    end
+
+    def job_class_name(job)
+      ( job.payload && job.payload['class'] ).to_s
+    end
+
     # so that we can later identify a "live" worker thread
     def update_native_thread_name
       thread = JRuby.reference(Thread.current)
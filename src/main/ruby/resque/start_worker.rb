@@ -25,6 +25,14 @@ begin
   end
 
   worker = Resque::JRubyWorker.new(*queues)
+  if batch_size = env['BATCH_SIZE'] # jobs reserved per (Redis) round-trip
+    worker.batch_size = Integer(batch_size) if worker.respond_to?(:batch_size=)
+  end
+  if stats_interval = env['STATS_INTERVAL'] # coalesce stats (and heartbeat) writes
+    if Resque::JRubyWorker.respond_to?(:batch_stats)
+      Resque::JRubyWorker.batch_stats Float(stats_interval), Integer(env['STATS_BATCH_SIZE'] || 100)
+    end
+  end
 
   if worker.respond_to?(:very_verbose) && ! defined?(Resque.logger)
     worker.verbose = verbose
@@ -50,6 +58,8 @@ begin
     end
   end
 
+  worker.logger = JRuby::Rack::Worker.async_logger(worker.logger)
+
   worker.log "Starting worker #{worker}"
 
   interval ? worker.work(interval) : worker.work
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class AsyncLoggerTest {
+
+    static class MemoSink implements AsyncLogger.Sink {
+
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        public void write(List<AsyncLogger.Entry> entries) {
+            batches.add(entries.size());
+            threads.add(Thread.currentThread());
+            for ( AsyncLogger.Entry entry : entries ) messages.add(entry.getMessage());
+        }
+
+    }
+
+    @Test
+    public void doesNotLogUnlessStarted() {
+        AsyncLogger logger = new AsyncLogger(16, true);
+        assertFalse( logger.log(new MemoSink(), 0, "hello", null) );
+    }
+
+    @Test
+    public void writesAllMessagesFromBackgroundThreadOnStop() {
+        AsyncLogger logger = new AsyncLogger(128, true);
+        logger.start("test-logger");
+        MemoSink sink = new MemoSink();
+        for ( int i = 0; i < 100; i++ ) assertTrue( logger.log(sink, 0, "msg" + i, null) );
+        logger.stop(1000);
+
+        assertEquals( 100, sink.messages.size() );
+        assertEquals( "msg0", sink.messages.get(0) );
+        assertEquals( "msg99", sink.messages.get(99) );
+        assertEquals( 100, logger.getWritten() );
+        assertEquals( 0, logger.getDropped() );
+        assertNotSame( Thread.currentThread(), sink.threads.get(0) );
+        assertFalse( logger.isStarted() );
+    }
+
+    @Test
+    public void dropsMessagesWhenFullWithDropPolicy() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MemoSink blockingSink = new MemoSink() {
+            @Override
+            public void write(List<AsyncLogger.Entry> entries) {
+                try { latch.await(); } catch (InterruptedException e) { }
+                super.write(entries);
+            }
+        };
+        AsyncLogger logger = new AsyncLogger(4, false);
+        logger.start("test-logger");
+        logger.log(blockingSink, 0, "first", null);
+        Thread.sleep(50); // writer thread is now blocked writing "first"
+        for ( int i = 0; i < 10; i++ ) logger.log(blockingSink, 0, "msg" + i, null);
+
+        assertEquals( 6, logger.getDropped() );
+        latch.countDown();
+        logger.stop(1000);
+        assertEquals( 5, blockingSink.messages.size() );
+    }
+
+    @Test
+    public void writesInBatchesPerSink() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MemoSink sink1 = new MemoSink() {
+            @Override
+            public void write(List<AsyncLogger.Entry> entries) {
+                try { latch.await(); } catch (InterruptedException e) { }
+                super.write(entries);
+            }
+        };
+        final MemoSink sink2 = new MemoSink();
+        AsyncLogger logger = new AsyncLogger(64, true);
+        logger.start("test-logger");
+        logger.log(sink1, 0, "first", null);
+        Thread.sleep(50);
+        for ( int i = 0; i < 5; i++ ) logger.log(sink1, 0, "1-" + i, null);
+        for ( int i = 0; i < 3; i++ ) logger.log(sink2, 0, "2-" + i, null);
+        latch.countDown();
+        logger.stop(1000);
+
+        assertEquals( 6, sink1.messages.size() );
+        assertEquals( Integer.valueOf(5), sink1.batches.get(1) );
+        assertEquals( 1, sink2.batches.size() );
+        assertEquals( Integer.valueOf(3), sink2.batches.get(0) );
+    }
+
+    @Test
+    public void stopDoesNotBlockOnFullBuffer() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MemoSink blockingSink = new MemoSink() {
+            @Override
+            public void write(List<AsyncLogger.Entry> entries) {
+                try { latch.await(); } catch (InterruptedException e) { }
+                super.write(entries);
+            }
+        };
+        final AsyncLogger logger = new AsyncLogger(2, false);
+        logger.start("test-logger");
+        logger.log(blockingSink, 0, "first", null);
+        Thread.sleep(50); // writer thread is now blocked writing "first"
+        logger.log(blockingSink, 0, "msg1", null);
+        logger.log(blockingSink, 0, "msg2", null); // buffer full
+
+        final long start = System.currentTimeMillis();
+        logger.stop(200);
+        assertTrue( System.currentTimeMillis() - start < 1000 );
+        assertFalse( logger.log(blockingSink, 0, "late", null) );
+
+        latch.countDown(); // writer exits (once stopped) after writing the rest
+        Thread.sleep(500);
+        assertEquals( Arrays.asList("first", "msg1", "msg2"), blockingSink.messages );
+    }
+
+    @Test
+    public void messagesLoggedWhileStoppingAreNotLost() throws InterruptedException {
+        for ( int run = 0; run < 20; run++ ) {
+            final AsyncLogger logger = new AsyncLogger(1024, true);
+            final MemoSink sink = new MemoSink();
+            logger.start("test-logger");
+            final CountDownLatch started = new CountDownLatch(1);
+            final List<String> direct = Collections.synchronizedList(new ArrayList<String>());
+            final Thread logging = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for ( int i = 0; i < 500; i++ ) {
+                        if ( ! logger.log(sink, 0, "msg" + i, null) ) direct.add("msg" + i);
+                    }
+                }
+            };
+            logging.start();
+            started.await();
+            logger.stop(1000);
+            logging.join();
+
+            assertEquals( 500, sink.messages.size() + direct.size() );
+        }
+    }
+
+}
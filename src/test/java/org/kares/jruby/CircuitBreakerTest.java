@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 3, 10000, 60000);
+        breaker.recordFailure("1"); breaker.recordFailure("2");
+        breaker.recordSuccess(); // resets
+        breaker.recordFailure("1"); breaker.recordFailure("2");
+        assertTrue( breaker.tryAcquire() );
+        breaker.recordFailure("3");
+        assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+        assertFalse( breaker.tryAcquire() );
+    }
+
+    @Test
+    public void letsSingleProbeThroughAndReopensOnFailure() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 1, 40, 1000);
+        breaker.recordFailure("down");
+        assertFalse( breaker.tryAcquire() );
+
+        assertTrue( breaker.await(1000) ); // probe
+        assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+        assertFalse( breaker.tryAcquire() ); // only one probe
+
+        breaker.recordFailure("still down");
+        assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+        assertFalse( breaker.await(20) ); // back-off doubled (60 - 100ms)
+    }
+
+    @Test
+    public void resumesAllWaitingWorkersOnSuccessfulProbe() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 1, 100, 1000);
+        breaker.recordFailure("down");
+
+        final int count = 4;
+        final AtomicInteger acquired = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        for ( int i = 0; i < count; i++ ) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        if ( breaker.await(5000) ) {
+                            if ( acquired.incrementAndGet() == 1 ) {
+                                Thread.sleep(10); breaker.recordSuccess(); // the probe
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) { /* ignore */ }
+                    finally { done.countDown(); }
+                }
+            }.start();
+        }
+        assertTrue( done.await(3, TimeUnit.SECONDS) );
+        assertEquals( count, acquired.get() );
+        assertTrue( breaker.isClosed() );
+    }
+
+    @Test
+    public void timesOutLostProbe() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 1, 20, 10000, 50);
+        breaker.recordFailure("down");
+        assertTrue( breaker.await(1000) ); // probe (that never reports back)
+        assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+        assertFalse( breaker.tryAcquire() );
+
+        final long start = System.currentTimeMillis();
+        assertTrue( breaker.await(1000) ); // another probe - not after max back-off
+        assertTrue( System.currentTimeMillis() - start < 1000 );
+        assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+        assertFalse( breaker.tryAcquire() );
+    }
+
+    @Test
+    public void doublesBackoffOnFailedProbesUpToMax() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 1, 10, 30);
+        breaker.recordFailure("down");
+        assertEquals( 10, breaker.getBackoff() );
+        for ( final long expected : new long[] { 20, 30, 30 } ) {
+            assertTrue( breaker.await(1000) ); // probe
+            breaker.recordFailure("still down");
+            assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+            assertEquals( expected, breaker.getBackoff() );
+        }
+    }
+
+    @Test
+    public void successfulProbeClosesAndResetsBackoff() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 2, 10, 1000);
+        breaker.recordFailure("1"); breaker.recordFailure("2");
+        assertTrue( breaker.await(1000) );
+        breaker.recordFailure("failed probe");
+        assertEquals( 20, breaker.getBackoff() );
+
+        assertTrue( breaker.await(1000) );
+        breaker.recordSuccess();
+        assertTrue( breaker.isClosed() );
+        assertEquals( 10, breaker.getBackoff() );
+
+        breaker.recordFailure("1"); // threshold counted from scratch
+        assertTrue( breaker.isClosed() );
+        assertTrue( breaker.tryAcquire() );
+    }
+
+    @Test
+    public void failuresWhileOpenDoNotExtendBackoff() {
+        final CircuitBreaker breaker = new CircuitBreaker(null, 1, 10000, 60000);
+        breaker.recordFailure("down");
+        breaker.recordFailure("late failure"); // e.g. a worker that got through before
+        assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+        assertEquals( 10000, breaker.getBackoff() );
+    }
+
+    @Test
+    public void isDisabledUnlessConfigured() {
+        assertNull( newManager(null).getCircuitBreaker() );
+        assertNull( newManager("0").getCircuitBreaker() );
+        final CircuitBreaker breaker = newManager("3").getCircuitBreaker();
+        assertNotNull( breaker );
+        assertTrue( breaker.isClosed() );
+    }
+
+    private static WorkerManager newManager(final String threshold) {
+        return new WorkerManager() {
+            protected org.jruby.Ruby getRuntime() { return null; }
+            public String getParameter(final String key) {
+                return BREAKER_THRESHOLD_KEY.equals(key) ? threshold : null;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.jruby.Ruby;
+import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class IsolatedWorkerPoolTest {
+
+    private static final String JOB =
+        "class IsolatedTestJob\n" +
+        "  def initialize(op); @op = op end\n" +
+        "  def perform(*args)\n" +
+        "    case @op\n" +
+        "    when 'pid' then java.lang.management.ManagementFactory.getRuntimeMXBean.getName\n" +
+        "    when 'fail' then raise ArgumentError, 'failed on purpose'\n" +
+        "    when 'exit' then exit!(1)\n" +
+        "    when 'stall' # no more heartbeats\n" +
+        "      java.lang.Thread.getAllStackTraces.keySet.each { |t| t.interrupt if t.name == 'isolated-worker-heartbeat' }\n" +
+        "      sleep(120)\n" +
+        "    else args.reverse\n" +
+        "    end\n" +
+        "  end\n" +
+        "end\n";
+
+    private File root;
+    private Ruby runtime;
+    private IsolatedWorkerPool pool;
+
+    @Before
+    public void startPool() throws IOException {
+        root = File.createTempFile("jruby-rack-worker", "");
+        root.delete();
+        new File(root, "config").mkdirs();
+        final FileWriter writer = new FileWriter(new File(root, "config/environment.rb"));
+        writer.write(JOB);
+        writer.close();
+
+        runtime = Ruby.newInstance();
+        runtime.evalScriptlet(JOB);
+
+        pool = newPool(0);
+    }
+
+    private IsolatedWorkerPool newPool(final long maxMemory) throws IOException {
+        final String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        final IsolatedWorkerPool pool = new IsolatedWorkerPool(null, 1, Arrays.asList(java, "-cp",
+            System.getProperty("java.class.path"), IsolatedWorker.class.getName(), root.getPath()), maxMemory);
+        pool.start("isolated-worker-test");
+        return pool;
+    }
+
+    @After
+    public void stopPool() {
+        if ( pool != null ) pool.stop();
+        runtime.tearDown(false);
+        new File(root, "config/environment.rb").delete();
+        new File(root, "config").delete();
+        root.delete();
+    }
+
+    @Test
+    public void performsJobInChildProcess() throws InterruptedException {
+        assertEquals( "[2, 1]", perform("reverse", "[ 1, 2 ]").inspect().toString() );
+        final String pid = perform("pid", "[]").toString();
+        final String ownPid = java.lang.management.ManagementFactory.getRuntimeMXBean().getName();
+        assertFalse( ownPid.equals(pid) );
+    }
+
+    @Test
+    public void reportsJobFailure() throws InterruptedException {
+        try {
+            perform("fail", "[]");
+            fail("expected to fail");
+        }
+        catch (IllegalStateException e) {
+            assertTrue( e.getMessage(), e.getMessage().contains("failed on purpose") );
+        }
+        assertEquals( "[]", perform("reverse", "[]").inspect().toString() ); // child still alive
+    }
+
+    @Test
+    public void restartsChildThatDied() throws InterruptedException {
+        try {
+            perform("exit", "[]");
+            fail("expected to fail");
+        }
+        catch (IllegalStateException e) {
+            assertTrue( e.getMessage(), e.getMessage().contains("died") );
+        }
+        assertEquals( "[3]", perform("reverse", "[ 3 ]").inspect().toString() );
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void failsJobOfStalledChild() throws InterruptedException {
+        try {
+            perform("stall", "[]");
+            fail("expected to fail");
+        }
+        catch (IllegalStateException e) {
+            assertTrue( e.getMessage(), e.getMessage().contains("died") );
+        }
+        assertEquals( "[4]", perform("reverse", "[ 4 ]").inspect().toString() );
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void rejectsClientWithInvalidToken() throws Exception {
+        final Socket socket = new Socket("127.0.0.1", pool.getPort());
+        try {
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            IsolatedWorkerPool.writeFrame(out, IsolatedWorkerPool.HELLO, hello(0, "guessed"));
+            assertEquals( -1, socket.getInputStream().read() ); // closed
+        }
+        finally { socket.close(); }
+        assertEquals( "[5]", perform("reverse", "[ 5 ]").inspect().toString() );
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void silentClientDoesNotBlockChildReconnect() throws Exception {
+        final Socket socket = new Socket("127.0.0.1", pool.getPort()); // never says hello
+        try {
+            try {
+                perform("exit", "[]");
+                fail("expected to fail");
+            }
+            catch (IllegalStateException e) {
+                assertTrue( e.getMessage(), e.getMessage().contains("died") );
+            }
+            assertEquals( "[6]", perform("reverse", "[ 6 ]").inspect().toString() );
+        }
+        finally { socket.close(); }
+    }
+
+    @Test(timeout = 120 * 1000)
+    public void restartsChildAboveMemoryLimit() throws Exception {
+        pool.stop();
+        pool = newPool(1); // any child is above the limit
+        final String pid = perform("pid", "[]").toString();
+        String newPid = pid;
+        while ( newPid.equals(pid) ) {
+            Thread.sleep(IsolatedWorkerPool.HEARTBEAT_INTERVAL);
+            newPid = perform("pid", "[]").toString();
+        }
+        assertFalse( pid.equals(newPid) );
+    }
+
+    @Test
+    public void reportsResidentMemory() throws IOException {
+        final File status = File.createTempFile("status", "");
+        try {
+            final FileWriter writer = new FileWriter(status);
+            writer.write("Name:\tjava\nVmPeak:\t  200000 kB\nVmRSS:\t   12345 kB\nThreads:\t42\n");
+            writer.close();
+            assertEquals( 12345 * 1024L, IsolatedWorker.residentMemory(status) );
+
+            assertEquals( -1, IsolatedWorker.residentMemory(new File(status.getPath() + ".missing")) );
+            assertTrue( IsolatedWorker.usedMemory(new File(status.getPath() + ".missing")) > 0 ); // heap
+        }
+        finally { status.delete(); }
+    }
+
+    private static byte[] hello(final int index, final String token) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(index); out.writeUTF(token);
+        return bytes.toByteArray();
+    }
+
+    private IRubyObject perform(final String op, final String args) throws InterruptedException {
+        final byte[] payload = (byte[]) JavaEmbedUtils.rubyToJava(
+            runtime.evalScriptlet("Marshal.dump([ IsolatedTestJob.new('" + op + "'), " + args + " ]).to_java_bytes")
+        );
+        final byte[] result = pool.submit(payload, 60 * 1000);
+        runtime.getGlobalVariables().set("$result", JavaEmbedUtils.javaToRuby(runtime, result));
+        return runtime.evalScriptlet("Marshal.load String.from_java_bytes($result)");
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobCompletionsTest {
+
+    @Test
+    public void wakesUpAwaitingThread() throws InterruptedException {
+        final JobCompletions completions = new JobCompletions(1000);
+        new Thread() {
+            @Override
+            public void run() {
+                try { Thread.sleep(50); } catch (InterruptedException e) { return; }
+                completions.complete(42L, null);
+            }
+        }.start();
+        final JobCompletions.Completion completion = completions.await("42", 5000);
+        assertNotNull( completion );
+        assertTrue( completion.isSuccess() );
+        assertEquals( 0, completions.size() );
+    }
+
+    @Test
+    public void retainsCompletionNoOneAwaitsYet() throws InterruptedException {
+        final JobCompletions completions = new JobCompletions(1000);
+        assertTrue( completions.complete("1", "boom") );
+        assertFalse( completions.complete("1", null) ); // already completed
+
+        final JobCompletions.Completion completion = completions.await(1, 0);
+        assertNotNull( completion );
+        assertFalse( completion.isSuccess() );
+        assertEquals( "boom", completion.getError() );
+    }
+
+    @Test
+    public void expiresRetainedCompletions() throws InterruptedException {
+        final JobCompletions completions = new JobCompletions(10);
+        completions.complete("1", null);
+        assertEquals( 1, completions.size() );
+        completions.expire(System.currentTimeMillis() + 20);
+        assertEquals( 0, completions.size() );
+
+        assertNull( completions.await("1", 10) ); // timed out
+        assertEquals( 0, completions.size() );
+    }
+
+}
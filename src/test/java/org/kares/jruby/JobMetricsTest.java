@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kares.jruby;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobMetricsTest {
+
+    @Test
+    public void bucketsAreMonotonicAndCoverValues() {
+        int prev = -1;
+        for ( long value = 0; value < 1000000; value += 7 ) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertTrue( index >= prev );
+            assertTrue( "value: " + value, LatencyHistogram.bucketValue(index) >= value );
+            prev = index;
+        }
+        assertTrue( LatencyHistogram.bucketIndex(Long.MAX_VALUE) < LatencyHistogram.BUCKETS );
+    }
+
+    @Test
+    public void reportsPercentilesWithinRelativeError() {
+        final LatencyHistogram histogram = new LatencyHistogram(4);
+        for ( int i = 1; i <= 10000; i++ ) histogram.record(i);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals( 10000, snapshot.getCount() );
+        assertEquals( 10000, snapshot.getMax() );
+        assertEquals( 5000.5, snapshot.getMean(), 0.001 );
+        assertEquals( 5000, snapshot.getP50(), 5000 / LatencyHistogram.SUB_BUCKETS );
+        assertEquals( 9900, snapshot.getP99(), 9900 / LatencyHistogram.SUB_BUCKETS );
+        assertEquals( 9990, snapshot.getP999(), 9990 / LatencyHistogram.SUB_BUCKETS );
+    }
+
+    @Test
+    public void mergesRecordsFromAllThreads() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram(8);
+        final Thread[] threads = new Thread[6];
+        for ( int t = 0; t < threads.length; t++ ) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for ( int i = 0; i < 1000; i++ ) histogram.record(i);
+                }
+            };
+            threads[t].start();
+        }
+        for ( Thread thread : threads ) thread.join();
+
+        assertEquals( 6000, histogram.getCount() );
+        assertEquals( 999, histogram.snapshot().getMax() );
+    }
+
+    @Test
+    public void recordsPerQueueAndJobClass() {
+        final JobMetrics metrics = new JobMetrics();
+        metrics.record("Mailer", "mails", 1000, 50, false);
+        metrics.record("Mailer", "mails", 3000, -1, true);
+        metrics.record("Export", null, 100000, 10, false);
+
+        final Map<String, JobMetrics.Stats> snapshot = metrics.snapshot();
+        assertEquals( 2, snapshot.size() );
+        final JobMetrics.Stats mailer = snapshot.get("mails/Mailer");
+        assertEquals( 2, mailer.getCount() );
+        assertEquals( 1, mailer.getFailures() );
+        assertEquals( 1, mailer.getWait().getCount() );
+        assertNotNull( snapshot.get("default/Export") );
+
+        assertArrayEquals( new String[] { "default/Export", "mails/Mailer" }, metrics.getJobNames() );
+        assertEquals( 3000, metrics.getLatencyPercentile("mails/Mailer", 100) );
+        assertEquals( -1, metrics.getLatencyPercentile("mails/Missing", 50) );
+
+        metrics.reset();
+        assertTrue( metrics.snapshot().isEmpty() );
+    }
+
+    @Test
+    public void nextIntervalReturnsJobsSinceLastIntervalPerQueue() {
+        final JobMetrics metrics = new JobMetrics();
+        metrics.record("Mailer", "mails", 1000, 50, false);
+        metrics.record("Export", null, 2000, 10, true);
+        metrics.record("Export", null, 3000, 10, false);
+
+        Map<String, JobMetrics.Stats> stats = metrics.nextInterval();
+        assertEquals( Arrays.asList("default", "mails"), new ArrayList<String>(stats.keySet()) );
+        assertEquals( 2, stats.get("default").getCount() );
+        assertEquals( 1, stats.get("default").getFailures() );
+        assertEquals( 3000, stats.get("default").getLatency().getMax() );
+        assertEquals( 1, stats.get("mails").getCount() );
+
+        metrics.record("Mailer", "mails", 500, 50, false);
+        stats = metrics.nextInterval();
+        assertEquals( 1, stats.size() );
+        assertEquals( 1, stats.get("mails").getCount() );
+        assertEquals( 0, stats.get("mails").getFailures() );
+
+        assertTrue( metrics.nextInterval().isEmpty() );
+        assertEquals( 2, metrics.snapshot("mails", "Mailer").getCount() );
+    }
+
+    @Test
+    public void nextIntervalDoesNotLoseConcurrentRecords() throws Exception {
+        final JobMetrics metrics = new JobMetrics();
+        final int threads = 4, records = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for ( int t = 0; t < threads; t++ ) {
+            new Thread() {
+                public void run() {
+                    for ( int i = 0; i < records; i++ ) metrics.record("Job", "jobs", i % 100, -1, i % 2 == 0);
+                    done.countDown();
+                }
+            }.start();
+        }
+        long count = 0, failures = 0;
+        while ( done.getCount() > 0 ) {
+            final JobMetrics.Stats stats = metrics.nextInterval().get("jobs");
+            if ( stats != null ) { count += stats.getCount(); failures += stats.getFailures(); }
+        }
+        final JobMetrics.Stats stats = metrics.nextInterval().get("jobs");
+        if ( stats != null ) { count += stats.getCount(); failures += stats.getFailures(); }
+        assertEquals( threads * records, count );
+        assertEquals( threads * records / 2, failures );
+    }
+
+    @Test
+    public void reporterSummarizesIntervalPerQueue() {
+        final WorkerManager manager = new WorkerManager() {
+            protected org.jruby.Ruby getRuntime() { return null; }
+        };
+        final ThroughputReporter reporter = new ThroughputReporter(manager, 1000);
+        assertTrue( reporter.report().isEmpty() );
+
+        manager.getJobMetrics().record("Mailer", "mails", 1500, -1, false);
+        manager.getJobMetrics().record("Mailer", "mails", 2500, -1, true);
+        manager.getJobMetrics().record("Export", "exports", 500, -1, false);
+        final List<String> summary = reporter.report();
+        assertEquals( 2, summary.size() );
+        assertTrue( summary.get(0), summary.get(0).contains("exports: 1 jobs processed (0 failed)") );
+        assertTrue( summary.get(1), summary.get(1).contains("mails: 2 jobs processed (1 failed)") );
+        assertTrue( summary.get(1), summary.get(1).contains("p99=2.5ms") );
+        assertTrue( reporter.report().isEmpty() );
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobQuarantineTest {
+
+    @Test
+    public void quarantinesFailingJobClass() {
+        final JobQuarantine quarantine = new JobQuarantine(null, 0.8, 5, 60 * 1000);
+        for ( int i = 0; i < 4; i++ ) {
+            assertFalse( quarantine.record("PoisonJob", true) ); // not enough samples
+            quarantine.record("HealthyJob", false);
+        }
+        assertTrue( quarantine.record("PoisonJob", true) );
+        assertFalse( quarantine.record("PoisonJob", true) ); // already
+
+        assertTrue( quarantine.isQuarantined("PoisonJob") );
+        assertTrue( quarantine.getQuarantineTime("PoisonJob") > 50 * 1000 );
+        assertFalse( quarantine.isQuarantined("HealthyJob") );
+        assertFalse( quarantine.isQuarantined(null) );
+        assertEquals( Arrays.asList("PoisonJob"), Arrays.asList( quarantine.getQuarantined() ) );
+    }
+
+    @Test
+    public void doesNotQuarantineBelowFailureRate() {
+        final JobQuarantine quarantine = new JobQuarantine(null, 0.6, 2, 60 * 1000);
+        for ( int i = 0; i < 10; i++ ) {
+            assertFalse( quarantine.record("FlakyJob", i % 3 == 0) );
+        }
+        assertFalse( quarantine.isQuarantined("FlakyJob") );
+    }
+
+    @Test
+    public void releasesAfterCooldown() throws InterruptedException {
+        final JobQuarantine quarantine = new JobQuarantine(null, 1.0, 1, 50);
+        assertTrue( quarantine.record("PoisonJob", true) );
+        assertTrue( quarantine.isQuarantined("PoisonJob") );
+        Thread.sleep(60);
+        assertFalse( quarantine.isQuarantined("PoisonJob") );
+        assertTrue( quarantine.record("PoisonJob", true) ); // still failing
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class JobQueueTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("jruby-rack-worker-journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        final File[] files = directory.listFiles();
+        if ( files != null ) for ( File file : files ) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void reservesByPriorityThanOrder() throws IOException {
+        final JobQueue queue = new JobQueue();
+        queue.push(null, 5, 0, bytes("low"));
+        queue.push(null, 1, 0, bytes("high-1"));
+        queue.push("other", 1, 0, bytes("high-2"));
+
+        assertEquals( "high-1", string( queue.reserve(null).getPayload() ) );
+        assertEquals( "high-2", string( queue.reserve(null).getPayload() ) );
+        assertEquals( "low", string( queue.reserve(null).getPayload() ) );
+        assertNull( queue.reserve(null) );
+    }
+
+    @Test
+    public void reservesFromGivenQueuesOnly() throws IOException {
+        final JobQueue queue = new JobQueue();
+        queue.push("mails", 0, 0, bytes("mail"));
+        queue.push("posts", 0, 0, bytes("post"));
+
+        assertEquals( "post", string( queue.reserve(new String[] { "posts", "missing" }).getPayload() ) );
+        assertNull( queue.reserve(new String[] { "posts" }) );
+        assertEquals( 1, queue.size("mails") );
+    }
+
+    @Test
+    public void delayedJobsAreReservedWhenDue() throws Exception {
+        final JobQueue queue = new JobQueue();
+        queue.push(null, 0, System.currentTimeMillis() + 200, bytes("later"));
+        assertNull( queue.reserve(null) );
+
+        final long start = System.currentTimeMillis();
+        final JobQueue.Job job = queue.reserve(null, 5000);
+        assertNotNull( job );
+        assertTrue( System.currentTimeMillis() - start >= 150 );
+        assertTrue( job.getWaitTime() >= 0 );
+    }
+
+    @Test
+    public void waitingReserveGetsWokenUpOnPush() throws Exception {
+        final JobQueue queue = new JobQueue();
+        final JobQueue.Job[] reserved = new JobQueue.Job[1];
+        final Thread thread = new Thread() {
+            public void run() {
+                try { reserved[0] = queue.reserve(null, 10000); }
+                catch (InterruptedException e) { }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        queue.push(null, 0, 0, bytes("now"));
+        thread.join(2000);
+        assertNotNull( reserved[0] );
+    }
+
+    @Test
+    public void jobIsReservedOnceByConcurrentWorkers() throws Exception {
+        final JobQueue queue = new JobQueue();
+        for ( int i = 0; i < 2000; i++ ) queue.push(null, i % 3, 0, bytes("job" + i));
+
+        final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+        final int[] count = new int[1];
+        final Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ ) {
+            threads[t] = new Thread() {
+                public void run() {
+                    JobQueue.Job job;
+                    while ( ( job = queue.reserve(null) ) != null ) {
+                        assertTrue( ids.add(job.getId()) );
+                        synchronized (count) { count[0]++; }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for ( Thread thread : threads ) thread.join();
+        assertEquals( 2000, count[0] );
+    }
+
+    @Test
+    public void replaysNotCompletedJobsFromJournal() throws IOException {
+        JobQueue queue = new JobQueue( new JobJournal(directory, 1024 * 1024, false) );
+        queue.push("mails", 3, 0, bytes("one"));
+        queue.push("mails", 1, 0, bytes("two"));
+        queue.push(null, 0, System.currentTimeMillis() + 60000, bytes("three"));
+
+        JobQueue.Job job = queue.reserve(null);
+        assertEquals( "two", string( job.getPayload() ) );
+        queue.complete(job);
+        job = queue.reserve(null);
+        queue.retry(job, 0);
+        queue.close();
+
+        queue = new JobQueue( new JobJournal(directory, 1024 * 1024, false) );
+        assertEquals( 2, queue.size() );
+        job = queue.reserve(null);
+        assertEquals( "one", string( job.getPayload() ) );
+        assertEquals( 1, job.getAttempts() );
+        assertEquals( 1, job.getId() ); // retried with the same id
+        assertNull( queue.reserve(null) ); // "three" is delayed
+
+        queue.push(null, 0, 0, bytes("four"));
+        assertTrue( queue.reserve(null).getId() > job.getId() );
+        queue.close();
+    }
+
+    @Test
+    public void keepsJobsAddedWhileSegmentsRollConcurrently() throws Exception {
+        final JobQueue queue = new JobQueue( new JobJournal(directory, 1024, false) );
+        final Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ ) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for ( int i = 0; i < 250; i++ ) {
+                            final JobQueue.Job job = queue.push(null, 0, 0, new byte[60]);
+                            if ( i % 2 == 0 ) queue.complete(job);
+                        }
+                    }
+                    catch (IOException e) { throw new RuntimeException(e); }
+                }
+            };
+            threads[t].start();
+        }
+        for ( Thread thread : threads ) thread.join();
+        queue.close();
+        assertEquals( 500, new JobQueue( new JobJournal(directory, 1024, false) ).size() );
+    }
+
+    @Test
+    public void replaysRecordsWrittenAfterAnUnwrittenOne() throws IOException {
+        JobQueue queue = new JobQueue( new JobJournal(directory, 1024 * 1024, false) );
+        queue.push(null, 0, 0, bytes("one"));
+        queue.push(null, 1, 0, bytes("two"));
+        queue.close();
+        // as if the JVM crashed before the first (reserved) record got written
+        final File[] files = directory.listFiles();
+        assertEquals( 1, files.length );
+        final RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        try { // the first (job) record follows the segment's (id) mark
+            file.seek(24); file.write(new byte[8]);
+        }
+        finally { file.close(); }
+
+        queue = new JobQueue( new JobJournal(directory, 1024 * 1024, false) );
+        assertEquals( 1, queue.size() );
+        assertEquals( "two", string( queue.reserve(null).getPayload() ) );
+        queue.close();
+    }
+
+    @Test
+    public void doesNotReuseIdsOfCompletedJobs() throws IOException {
+        JobQueue queue = new JobQueue( new JobJournal(directory, 1024, false) );
+        JobQueue.Job job = null;
+        for ( int i = 0; i < 20; i++ ) { // rolls (and deletes) segments
+            job = queue.push(null, 0, 0, new byte[100]);
+            queue.complete( queue.reserve(null) );
+        }
+        final long lastId = job.getId();
+        queue.close();
+
+        queue = new JobQueue( new JobJournal(directory, 1024, false) );
+        assertEquals( 0, queue.size() );
+        assertTrue( queue.push(null, 0, 0, new byte[1]).getId() > lastId );
+        queue.close();
+    }
+
+    @Test
+    public void retriedJobCanBeAwaitedUsingTheEnqueuedId() throws IOException, InterruptedException {
+        final JobQueue queue = new JobQueue();
+        final JobCompletions completions = new JobCompletions(1000);
+        final long id = queue.push(null, 0, 0, bytes("job")).getId();
+
+        final JobQueue.Job job = queue.retry( queue.reserve(null), 0 ); // failed once
+        assertEquals( id, job.getId() );
+        assertSame( job, queue.reserve(null) );
+        queue.complete(job);
+        completions.complete(job.getId(), null);
+
+        final JobCompletions.Completion completion = completions.await(id, 1000);
+        assertNotNull( completion );
+        assertTrue( completion.isSuccess() );
+    }
+
+    @Test
+    public void replaysSyncedJournal() throws IOException {
+        JobQueue queue = new JobQueue( new JobJournal(directory, 1024, true) );
+        for ( int i = 0; i < 20; i++ ) queue.push(null, 0, 0, new byte[100]); // rolls segments
+        queue.close();
+        assertEquals( 20, new JobQueue( new JobJournal(directory, 1024, true) ).size() );
+    }
+
+    @Test
+    public void rollsAndDeletesJournalSegments() throws IOException {
+        final JobQueue queue = new JobQueue( new JobJournal(directory, 1024, false) );
+        for ( int i = 0; i < 100; i++ ) queue.push(null, 0, 0, new byte[100]);
+        final int segments = queue.getJournal().getSegmentCount();
+        assertTrue( "segments: " + segments, segments > 5 );
+
+        JobQueue.Job job;
+        while ( ( job = queue.reserve(null) ) != null ) queue.complete(job);
+        assertTrue( queue.getJournal().getSegmentCount() < 3 );
+        queue.close();
+
+        assertEquals( 0, new JobQueue( new JobJournal(directory, 1024, false) ).size() );
+    }
+
+    @Test
+    public void compactsSegmentsKeptByAScheduledJob() throws IOException {
+        JobQueue queue = new JobQueue( new JobJournal(directory, 1024, false) );
+        final long runAt = System.currentTimeMillis() + 24 * 60 * 60 * 1000;
+        queue.push("later", 0, runAt, bytes("far future"));
+        for ( int i = 0; i < 200; i++ ) {
+            queue.push(null, 0, 0, new byte[100]);
+            queue.complete( queue.reserve(new String[] { JobQueue.DEFAULT_QUEUE }) );
+        }
+        final int segments = queue.getJournal().getSegmentCount();
+        assertTrue( "segments: " + segments, segments <= 3 );
+        queue.close();
+
+        queue = new JobQueue( new JobJournal(directory, 1024, false) );
+        assertEquals( 1, queue.size() );
+        assertEquals( 1, queue.size("later") );
+        queue.close();
+    }
+
+    @Test
+    public void releasedJobIsReservedAgain() throws IOException {
+        final JobQueue queue = new JobQueue();
+        final long id = queue.push(null, 0, 0, bytes("job")).getId();
+        final JobQueue.Job job = queue.reserve(null);
+        assertNull( queue.reserve(null) );
+        queue.release(job);
+        assertEquals( id, queue.reserve(null).getId() );
+    }
+
+    @Test
+    public void waitingReserveReturnsWhenWokenUp() throws Exception {
+        final JobQueue queue = new JobQueue();
+        final Thread waker = new Thread() {
+            @Override
+            public void run() {
+                try { Thread.sleep(100); } catch (InterruptedException e) { return; }
+                queue.wakeUp();
+            }
+        };
+        waker.start();
+        final long start = System.currentTimeMillis();
+        assertNull( queue.reserve(null, 30 * 1000) );
+        assertTrue( System.currentTimeMillis() - start < 10 * 1000 );
+    }
+
+    @Test
+    public void waitingReserveIsInterruptible() throws Exception {
+        final JobQueue queue = new JobQueue();
+        final Thread thread = Thread.currentThread();
+        final Thread interrupter = new Thread() {
+            @Override
+            public void run() {
+                try { Thread.sleep(100); } catch (InterruptedException e) { return; }
+                thread.interrupt();
+            }
+        };
+        interrupter.start();
+        try {
+            queue.reserve(null, 30 * 1000);
+            fail("expected to be interrupted");
+        }
+        catch (InterruptedException e) { /* expected */ }
+        assertFalse( Thread.interrupted() );
+    }
+
+    private static byte[] bytes(final String str) {
+        try { return str.getBytes("UTF-8"); }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+    private static String string(final byte[] bytes) {
+        try { return new String(bytes, "UTF-8"); }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+}
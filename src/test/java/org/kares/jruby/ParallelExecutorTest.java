@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class ParallelExecutorTest {
+
+    private ParallelExecutor executor;
+
+    @Before
+    public void createExecutor() {
+        executor = new ParallelExecutor(3, "parallel-test");
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void callsTaskForEachIndex() throws Exception {
+        final AtomicIntegerArray calls = new AtomicIntegerArray(1000);
+        executor.each(1000, new ParallelExecutor.Task() {
+            public void call(int index) {
+                calls.incrementAndGet(index);
+            }
+        });
+        for ( int i = 0; i < calls.length(); i++ ) assertEquals( 1, calls.get(i) );
+    }
+
+    @Test
+    public void supportsNestedFanOut() throws Exception {
+        final AtomicIntegerArray calls = new AtomicIntegerArray(10 * 10);
+        executor.each(10, new ParallelExecutor.Task() {
+            public void call(final int outer) throws Exception {
+                executor.each(10, new ParallelExecutor.Task() {
+                    public void call(int inner) {
+                        calls.incrementAndGet(outer * 10 + inner);
+                    }
+                });
+            }
+        });
+        for ( int i = 0; i < calls.length(); i++ ) assertEquals( 1, calls.get(i) );
+    }
+
+    @Test
+    public void propagatesTaskFailure() throws Exception {
+        try {
+            executor.each(10, new ParallelExecutor.Task() {
+                public void call(int index) throws Exception {
+                    if ( index == 7 ) throw new java.io.IOException("failed " + index);
+                }
+            });
+            fail("expected to raise");
+        }
+        catch (IllegalStateException e) { // fork-join might wrap it (again)
+            Throwable cause = e;
+            while ( cause.getCause() != null ) cause = cause.getCause();
+            assertEquals( "failed 7", cause.getMessage() );
+        }
+    }
+
+    @Test
+    public void mapsIndexesInOrder() throws Exception {
+        final Ruby runtime = Ruby.newInstance();
+        final Object[] results = executor.map(1000, new ParallelExecutor.Mapper() {
+            public IRubyObject call(int index) {
+                return runtime.newFixnum(index * 2);
+            }
+        });
+        assertEquals( 1000, results.length );
+        for ( int i = 0; i < results.length; i++ ) {
+            assertEquals( runtime.newFixnum(i * 2), results[i] );
+        }
+    }
+
+    @Test
+    public void waitingCallerCanBeInterrupted() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread caller = new Thread() {
+            public void run() {
+                try {
+                    executor.each(1, new ParallelExecutor.Task() {
+                        public void call(int index) throws Exception {
+                            started.countDown(); release.await();
+                        }
+                    });
+                }
+                catch (Throwable e) { error.set(e); }
+            }
+        };
+        caller.start();
+        assertTrue( started.await(1, TimeUnit.SECONDS) );
+        caller.interrupt(); // e.g. on (manager) shutdown
+        caller.join(1000);
+        release.countDown();
+        assertFalse( caller.isAlive() );
+        assertTrue( "" + error.get(), error.get() instanceof InterruptedException );
+    }
+
+    @Test
+    public void waitingCallerReturnsOnShutdown() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread caller = new Thread() {
+            public void run() {
+                try {
+                    executor.each(1, new ParallelExecutor.Task() {
+                        public void call(int index) throws Exception {
+                            started.countDown(); release.await();
+                        }
+                    });
+                }
+                catch (Throwable e) { error.set(e); }
+            }
+        };
+        caller.start();
+        assertTrue( started.await(1, TimeUnit.SECONDS) );
+        final Thread shutdown = new Thread() {
+            public void run() { executor.shutdown(5000); } // waits for the task
+        };
+        shutdown.start();
+        caller.join(1000);
+        release.countDown(); shutdown.join();
+        assertFalse( caller.isAlive() );
+        assertTrue( "" + error.get(), error.get() instanceof CancellationException );
+    }
+
+}
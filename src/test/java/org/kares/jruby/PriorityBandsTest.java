@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class PriorityBandsTest {
+
+    @Test
+    public void mapsJobPrioritiesToThreadPriorities() {
+        final PriorityBands bands = new PriorityBands("..9=MAX, 10..19 = 6, 20..=min");
+        assertEquals( Thread.MAX_PRIORITY, bands.getThreadPriority(-100) );
+        assertEquals( Thread.MAX_PRIORITY, bands.getThreadPriority(9) );
+        assertEquals( 6, bands.getThreadPriority(10) );
+        assertEquals( 6, bands.getThreadPriority(19) );
+        assertEquals( Thread.MIN_PRIORITY, bands.getThreadPriority(20) );
+        assertEquals( Thread.MIN_PRIORITY, bands.getThreadPriority(Integer.MAX_VALUE) );
+    }
+
+    @Test
+    public void returnsNegativeForUnmappedPriority() {
+        final PriorityBands bands = new PriorityBands("0..0=NORM,");
+        assertEquals( Thread.NORM_PRIORITY, bands.getThreadPriority(0) );
+        assertEquals( -1, bands.getThreadPriority(1) );
+    }
+
+    @Test
+    public void failsOnInvalidSpec() {
+        for ( final String spec : new String[] { "1=MAX", "1..2", "1..2=11", "a..=MIN" } ) {
+            try {
+                new PriorityBands(spec);
+                fail("expected to fail on: " + spec);
+            }
+            catch (IllegalArgumentException e) { /* expected */ }
+        }
+    }
+
+    @Test
+    public void backsOffBeforeLowPriorityJobs() {
+        final Thread thread = Thread.currentThread();
+        final int priority = thread.getPriority();
+        final WorkerManager manager = newManager("true");
+        try {
+            long start = System.currentTimeMillis();
+            assertEquals( priority, manager.applyJobPriority(30) ); // MIN
+            assertTrue( System.currentTimeMillis() - start >= 40 );
+            assertEquals( Thread.MIN_PRIORITY, thread.getPriority() );
+
+            start = System.currentTimeMillis();
+            manager.applyJobPriority(5); // NORM - no back-off
+            assertTrue( System.currentTimeMillis() - start < 40 );
+        }
+        finally {
+            thread.setPriority(priority);
+        }
+    }
+
+    @Test
+    public void backOffIsPerPriorityLevelBelowNorm() {
+        final WorkerManager manager = newManager("25");
+        manager.getPriorityBands();
+        assertEquals( 100, manager.getPriorityBackoff(Thread.MIN_PRIORITY) );
+        assertEquals( 25, manager.getPriorityBackoff(Thread.NORM_PRIORITY - 1) );
+        assertEquals( 0, manager.getPriorityBackoff(Thread.NORM_PRIORITY) );
+        assertEquals( 0, manager.getPriorityBackoff(Thread.MAX_PRIORITY) );
+
+        final WorkerManager noYield = newManager(null);
+        noYield.getPriorityBands();
+        assertEquals( 0, noYield.getPriorityBackoff(Thread.MIN_PRIORITY) );
+    }
+
+    private static WorkerManager newManager(final String yield) {
+        return new WorkerManager() {
+            protected org.jruby.Ruby getRuntime() { return null; }
+            public String getParameter(final String key) {
+                if ( THREAD_PRIORITY_BANDS_KEY.equals(key) ) return "..9=NORM, 10..=MIN";
+                if ( THREAD_PRIORITY_YIELD_KEY.equals(key) ) return yield;
+                return null;
+            }
+        };
+    }
+
+}
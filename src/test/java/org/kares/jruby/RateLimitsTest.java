@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class RateLimitsTest {
+
+    @Test
+    public void parsesQueueAndClassLimits() {
+        final RateLimits limits = new RateLimits("queue:mails=10/s, class:GeocodeJob=120/m*20 ,");
+        assertEquals( 10.0, limits.getQueueLimiter("mails").getRate(), 0.01 );
+        assertEquals( 2.0, limits.getClassLimiter("GeocodeJob").getRate(), 0.01 );
+        assertNull( limits.getQueueLimiter("default") );
+        assertNull( limits.getClassLimiter(null) );
+        assertTrue( limits.hasClassLimits() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failsOnInvalidLimit() {
+        new RateLimits("mails=10/s");
+    }
+
+    @Test
+    public void limiterAllowsBurstThanWaits() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(20, 3); // a permit per 50ms
+        assertEquals( 0, limiter.tryAcquire() );
+        assertEquals( 0, limiter.tryAcquire() );
+        assertEquals( 0, limiter.tryAcquire() );
+        final long wait = limiter.tryAcquire();
+        assertTrue( "wait: " + wait, wait > 0 && wait <= 50 );
+        assertEquals( wait, limiter.getWaitTime(), 5 );
+
+        Thread.sleep(wait + 5);
+        assertEquals( 0, limiter.tryAcquire() );
+        assertTrue( limiter.tryAcquire() > 0 );
+    }
+
+    @Test
+    public void acquiresFromBothLimitersOrNone() {
+        final RateLimits limits = new RateLimits("queue:api=1/h*2, class:Slow=1/h");
+        assertEquals( 0, limits.tryAcquire("api", "Slow") );
+        assertTrue( limits.tryAcquire("api", "Slow") > 0 ); // class limited
+        // the queue permit was given back :
+        assertEquals( 0, limits.getWaitTime("api", "Fast") );
+        assertEquals( 0, limits.tryAcquire("api", "Fast") );
+        assertTrue( limits.getWaitTime("api", null) > 0 );
+        assertEquals( 0, limits.tryAcquire("other", null) );
+    }
+
+    @Test
+    public void listsExhaustedLimits() {
+        final RateLimits limits = new RateLimits("queue:api=1/h, queue:mails=10/s, class:Slow=1/h");
+        assertEquals( 0, limits.getLimitedQueues().length );
+        assertEquals( 0, limits.tryAcquire("api", "Slow") );
+        assertArrayEquals( new String[] { "api" }, limits.getLimitedQueues() );
+        assertArrayEquals( new String[] { "Slow" }, limits.getLimitedClasses() );
+    }
+
+}
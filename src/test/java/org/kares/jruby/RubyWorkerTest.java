@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.jruby.Ruby;
+import org.jruby.runtime.Constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class RubyWorkerTest {
+
+    private File dir;
+    private Ruby runtime;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("jruby-rack-worker", "");
+        dir.delete();
+        new File(dir, "foo").mkdirs();
+        new File(dir, "jruby_rack_worker").mkdirs();
+        write(new File(dir, "foo/start_worker.class"), "");
+        runtime = Ruby.newInstance();
+        runtime.getJRubyClassLoader().addURL( dir.toURI().toURL() );
+    }
+
+    @After
+    public void deleteDir() {
+        runtime.tearDown(false);
+        new File(dir, "foo/start_worker.class").delete();
+        new File(dir, RubyWorker.COMPILED_MARKER).delete();
+        new File(dir, "foo").delete();
+        new File(dir, "jruby_rack_worker").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void loadsCompiledScriptWithSameJRubyVersion() throws IOException {
+        final RubyWorker worker = new RubyWorker(runtime, null, "foo/start_worker.rb");
+        assertNull( worker.getCompiledFileName() ); // no marker
+
+        write(new File(dir, RubyWorker.COMPILED_MARKER), "jruby.version=" + Constants.VERSION);
+        assertEquals( "foo/start_worker.class", worker.getCompiledFileName() );
+
+        assertNull( new RubyWorker(runtime, null, "bar/start_worker.rb").getCompiledFileName() );
+    }
+
+    @Test
+    public void ignoresScriptCompiledWithAnotherVersion() throws IOException {
+        write(new File(dir, RubyWorker.COMPILED_MARKER), "jruby.version=1.0.0");
+        final RubyWorker worker = new RubyWorker(runtime, null, "foo/start_worker.rb");
+        assertNull( worker.getCompiledFileName() );
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content + "\n");
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -284,6 +285,98 @@ public class ServletWorkerManagerTest {
         assertEquals(subject, workerManager);
     }
     
+    @Test
+    public void runsShutdownBatchOnceForAllRegisteredNames() {
+        final List<String[]> calls = new ArrayList<String[]>();
+        final WorkerManager.ShutdownHandler handler = new WorkerManager.ShutdownHandler() {
+            public void shutdown(String[] names) { calls.add(names); }
+        };
+        subject.addShutdownBatch("group", "worker#1", handler);
+        subject.addShutdownBatch("group", "worker#2", handler);
+        subject.addShutdownBatch("group", "worker#1", handler);
+
+        subject.shutdown();
+        subject.shutdown();
+
+        assertEquals( 1, calls.size() );
+        assertArrayEquals( new String[] { "worker#1", "worker#2" }, calls.get(0) );
+    }
+
+    @Test
+    public void runsShutdownBatchPerRuntime() {
+        final List<String[]> calls = new ArrayList<String[]>();
+        final WorkerManager.ShutdownHandler handler = new WorkerManager.ShutdownHandler() {
+            public void shutdown(String[] names) { calls.add(names); }
+        };
+        final Ruby runtime1 = Ruby.newInstance(), runtime2 = Ruby.newInstance();
+        try {
+            subject.addShutdownBatch("group", runtime1, "worker#1", handler);
+            subject.addShutdownBatch("group", runtime2, "worker#2", handler);
+            subject.addShutdownBatch("group", runtime1, "worker#3", handler);
+
+            subject.shutdown();
+
+            assertEquals( 2, calls.size() );
+            assertArrayEquals( new String[] { "worker#1", "worker#3" }, calls.get(0) );
+            assertArrayEquals( new String[] { "worker#2" }, calls.get(1) );
+        }
+        finally {
+            runtime1.tearDown(false); runtime2.tearDown(false);
+        }
+    }
+
+    @Test
+    public void shutdownBatchLeavesOutWorkersStillRunning() throws InterruptedException {
+        when( mockServletContext().getInitParameter( WorkerManager.SCRIPT_KEY ) ).thenReturn(
+            "$worker_manager.addShutdownBatch('ruby', JRuby.runtime, 'worker') { |names| $batched = names.to_a } \n" +
+            "begin \n" + // keeps running (ignores interrupts)
+            "  Java::OrgKaresJruby::ServletWorkerManagerTest::RELEASE.await \n" +
+            "rescue java.lang.InterruptedException \n" +
+            "  retry \n" +
+            "end"
+        );
+        when( mockServletContext().getInitParameter( WorkerManager.THREAD_COUNT_KEY ) ).thenReturn( "1" );
+        when( mockServletContext().getInitParameter( WorkerManager.SHUTDOWN_TIMEOUT_KEY ) ).thenReturn( "0.1" );
+
+        createSubject();
+        subject.startup();
+        final RubyWorker worker = subject.workers.keySet().iterator().next();
+        final Thread thread = subject.workers.get(worker);
+        Thread.sleep(500);
+        try {
+            subject.shutdown();
+            assertTrue( thread.isAlive() );
+            assertTrue( worker.runtime.evalScriptlet("$batched").isNil() );
+        }
+        finally {
+            RELEASE.countDown();
+            thread.join(5000);
+        }
+    }
+
+    public static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+    @Test
+    public void shutdownBatchCanBeRegisteredFromRuby() {
+        when( mockServletContext().getInitParameter( WorkerManager.SCRIPT_KEY ) ).thenReturn(
+            "$worker_manager.addShutdownBatch('ruby', 'worker') { |names| $batched = names.to_a }"
+        );
+        when( mockServletContext().getInitParameter( WorkerManager.THREAD_COUNT_KEY ) ).thenReturn( "1" );
+
+        createSubject();
+        final List<Thread> createdThreads = new ArrayList<Thread>();
+        subject.setThreadFactory( new MemoThreadFactory( subject.newThreadFactory(), createdThreads ) );
+        subject.startup();
+        final Ruby runtime = subject.workers.keySet().iterator().next().runtime;
+        for ( Thread thread : createdThreads ) {
+            try { thread.join(5000); } catch (InterruptedException e) { }
+        }
+
+        subject.shutdown();
+
+        assertEquals( "[\"worker\"]", runtime.evalScriptlet("$batched.inspect").toString() );
+    }
+
     /**
      * =============================== Helpers ===============================
      */
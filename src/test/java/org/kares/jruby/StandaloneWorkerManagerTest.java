@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.jruby.Ruby;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class StandaloneWorkerManagerTest {
+
+    private File root;
+    private StandaloneWorkerManager subject;
+
+    @Before
+    public void createRoot() throws IOException {
+        root = File.createTempFile("jruby-rack-worker", "");
+        root.delete();
+        new File(root, "config").mkdirs();
+        final FileWriter writer = new FileWriter(new File(root, "config/environment.rb"));
+        writer.write("BOOTED = ENV['RAILS_ENV']\n");
+        writer.close();
+    }
+
+    @After
+    public void shutdownSubject() {
+        if ( subject != null ) subject.shutdown();
+        new File(root, "config/environment.rb").delete();
+        new File(root, "config/warmup.rb").delete();
+        new File(root, "config").delete();
+        root.delete();
+    }
+
+    @Test
+    public void bootsApplicationIntoSharedRuntime() {
+        final Properties properties = new Properties();
+        properties.setProperty(WorkerManager.SCRIPT_KEY, "$booted = BOOTED");
+        properties.setProperty(WorkerManager.THREAD_COUNT_KEY, "2");
+        properties.setProperty(StandaloneWorkerManager.ENV_KEY, "staging");
+        subject = new StandaloneWorkerManager(root, properties);
+
+        assertEquals( "2", subject.getParameter(WorkerManager.THREAD_COUNT_KEY) );
+        assertEquals( 30 * 1000L, subject.getShutdownTimeout() );
+
+        final Ruby runtime = subject.getRuntime();
+        assertSame( runtime, subject.getRuntime() );
+        assertEquals( "staging", runtime.evalScriptlet("BOOTED").toString() );
+        assertEquals( root.getPath(), runtime.evalScriptlet("Dir.pwd").toString() );
+    }
+
+    @Test
+    public void bootsRuntimePerThreadUnlessShared() {
+        final Properties properties = new Properties();
+        properties.setProperty(StandaloneWorkerManager.RUNTIME_SHARED_KEY, "false");
+        subject = new StandaloneWorkerManager(root, properties);
+
+        assertNotSame( subject.getRuntime(), subject.getRuntime() );
+    }
+
+    @Test
+    public void warmsUpSharedRuntimeOnceBeforeStartup() throws IOException, InterruptedException {
+        final FileWriter writer = new FileWriter(new File(root, "config/warmup.rb"));
+        writer.write("$warm_ups = ( $warm_ups || 0 ) + 1\n");
+        writer.close();
+
+        final Properties properties = new Properties();
+        properties.setProperty(WorkerManager.SCRIPT_KEY, "$warmed_up = $warm_ups");
+        properties.setProperty(WorkerManager.THREAD_COUNT_KEY, "2");
+        properties.setProperty(WorkerManager.WARMUP_SCRIPT_KEY, "config/warmup.rb");
+        properties.setProperty(WorkerManager.WARMUP_GATE_KEY, "true");
+        subject = new StandaloneWorkerManager(root, properties);
+
+        subject.startup();
+        assertTrue( subject.isWarmedUp() );
+        final Ruby runtime = subject.getRuntime();
+        assertEquals( "1", runtime.evalScriptlet("$warm_ups.to_s").toString() );
+        for ( Thread thread : new ArrayList<Thread>(subject.workers.values()) ) thread.join(5000);
+        assertEquals( "1", runtime.evalScriptlet("$warmed_up.to_s").toString() );
+    }
+
+    @Test
+    public void drainsWorkersOnShutdown() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty(WorkerManager.SCRIPT_KEY,
+            "manager = $worker_manager; loop { break if manager.awaitStopping(10000) }"
+        );
+        properties.setProperty(WorkerManager.THREAD_COUNT_KEY, "2");
+        subject = new StandaloneWorkerManager(root, properties);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        subject.startup();
+        threads.addAll(subject.workers.values());
+        assertEquals( 2, threads.size() );
+        assertEquals( 2, subject.getWorkerCount( subject.getRuntime() ) );
+        Thread.sleep(500);
+        assertFalse( subject.isStopping() );
+        assertEquals( 2, subject.getWorkerThreads().size() );
+        assertTrue( subject.getWorkerThreadNames().contains( threads.get(0).getName() ) );
+
+        final long start = System.currentTimeMillis();
+        subject.shutdown();
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+        for ( Thread thread : threads ) assertFalse( thread.isAlive() );
+        assertTrue( subject.isStopping() );
+        assertTrue( subject.getWorkerThreadNames().isEmpty() );
+    }
+
+    @Test
+    public void doesNotInterruptBusyWorkersBeforeTimeout() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty(WorkerManager.SCRIPT_KEY,
+            "$worker_manager.awaitStopping(10000) \n" +
+            "begin \n" + // a job still running when shutdown starts
+            "  java.lang.Thread.sleep(500); $job = 'done' \n" +
+            "rescue java.lang.InterruptedException \n" +
+            "  $job = 'interrupted' \n" +
+            "end"
+        );
+        properties.setProperty(WorkerManager.THREAD_COUNT_KEY, "1");
+        properties.setProperty(WorkerManager.SHUTDOWN_TIMEOUT_KEY, "5");
+        subject = new StandaloneWorkerManager(root, properties);
+        final Ruby runtime = subject.getRuntime();
+        subject.startup();
+        Thread.sleep(200);
+        subject.shutdown();
+        assertEquals( "done", runtime.getGlobalVariables().get("$job").toString() );
+    }
+
+    @Test
+    public void interruptsWorkersStillRunningAfterTimeout() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty(WorkerManager.SCRIPT_KEY,
+            "begin \n" +
+            "  java.lang.Thread.sleep(60 * 1000) \n" +
+            "rescue java.lang.InterruptedException \n" +
+            "  $job = 'interrupted' \n" +
+            "end"
+        );
+        properties.setProperty(WorkerManager.THREAD_COUNT_KEY, "1");
+        properties.setProperty(WorkerManager.SHUTDOWN_TIMEOUT_KEY, "0.2");
+        subject = new StandaloneWorkerManager(root, properties);
+        final Ruby runtime = subject.getRuntime();
+        subject.startup();
+        final List<Thread> threads = new ArrayList<Thread>(subject.workers.values());
+        Thread.sleep(200);
+
+        final long start = System.currentTimeMillis();
+        subject.shutdown();
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+        assertFalse( threads.get(0).isAlive() );
+        assertEquals( "interrupted", runtime.getGlobalVariables().get("$job").toString() );
+    }
+
+    public static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+    @Test
+    public void doesNotTearDownRuntimeOfWorkerStillRunning() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty(WorkerManager.SCRIPT_KEY,
+            "at_exit { $torn_down = true } \n" +
+            "begin \n" + // ignores interrupts
+            "  Java::OrgKaresJruby::StandaloneWorkerManagerTest::RELEASE.await \n" +
+            "rescue java.lang.InterruptedException \n" +
+            "  retry \n" +
+            "end"
+        );
+        properties.setProperty(WorkerManager.THREAD_COUNT_KEY, "1");
+        properties.setProperty(WorkerManager.SHUTDOWN_TIMEOUT_KEY, "0.1");
+        subject = new StandaloneWorkerManager(root, properties);
+        final Ruby runtime = subject.getRuntime();
+        subject.startup();
+        final List<Thread> threads = new ArrayList<Thread>(subject.workers.values());
+        Thread.sleep(200);
+        try {
+            subject.shutdown();
+            assertTrue( threads.get(0).isAlive() );
+            assertEquals( 1, subject.getWorkerThreads().size() );
+            assertTrue( runtime.getGlobalVariables().get("$torn_down").isNil() );
+        }
+        finally {
+            RELEASE.countDown();
+            threads.get(0).join(5000);
+            runtime.tearDown(false);
+        }
+    }
+
+}
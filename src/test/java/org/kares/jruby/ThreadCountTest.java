@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class ThreadCountTest {
+
+    @Test
+    public void detectsExpressions() {
+        assertTrue( ThreadCount.isExpression("auto") );
+        assertTrue( ThreadCount.isExpression(" cores * 2 ") );
+        assertTrue( ThreadCount.isExpression("CORES/2") );
+        assertFalse( ThreadCount.isExpression("2") );
+        assertFalse( ThreadCount.isExpression("cores^2") );
+        assertFalse( ThreadCount.isExpression(null) );
+    }
+
+    @Test
+    public void resolvesFromCoresAndQuota() {
+        assertEquals( 8, new ThreadCount(8, -1, -1, -1).resolve("auto") );
+        assertEquals( 16, new ThreadCount(8, -1, -1, -1).resolve("cores*2") );
+        assertEquals( 3, new ThreadCount(8, 2.5, -1, -1).resolve("auto") );
+        assertEquals( 2, new ThreadCount(8, 2.5, -1, -1).resolve("cores/2") );
+        assertEquals( 1, new ThreadCount(2, -1, -1, -1).resolve("cores-4") );
+    }
+
+    @Test
+    public void capsByPoolAndRuntimes() {
+        final ThreadCount shared = new ThreadCount(8, -1, 5, 1);
+        assertEquals( 4, shared.resolve("cores*2") );
+        assertTrue( shared.getDecision(), shared.getDecision().contains("connection pool 5 (capped)") );
+
+        final ThreadCount pooled = new ThreadCount(8, -1, 5, 3);
+        assertEquals( 2, pooled.resolve("auto") ); // connection pool per runtime
+        assertTrue( pooled.getDecision(), pooled.getDecision().contains("3 pooled runtimes (capped)") );
+    }
+
+    @Test
+    public void readsCgroupQuota() throws IOException {
+        final File root = new File(System.getProperty("java.io.tmpdir"), "jruby-worker-cgroup-" + System.nanoTime());
+        assertEquals( -1, ThreadCount.readCpuQuota(root), 0 );
+        try {
+            new File(root, "cpu").mkdirs();
+            write(new File(root, "cpu/cpu.cfs_quota_us"), "150000");
+            write(new File(root, "cpu/cpu.cfs_period_us"), "100000");
+            assertEquals( 1.5, ThreadCount.readCpuQuota(root), 0.001 );
+
+            write(new File(root, "cpu.max"), "max 100000");
+            assertEquals( -1, ThreadCount.readCpuQuota(root), 0 );
+            write(new File(root, "cpu.max"), "200000 100000");
+            assertEquals( 2, ThreadCount.readCpuQuota(root), 0.001 );
+        }
+        finally {
+            new File(root, "cpu.max").delete();
+            new File(root, "cpu/cpu.cfs_quota_us").delete();
+            new File(root, "cpu/cpu.cfs_period_us").delete();
+            new File(root, "cpu").delete(); root.delete();
+        }
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content + "\n");
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+}
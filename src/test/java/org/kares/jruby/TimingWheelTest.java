@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void expiresDueDeadlinesOnAdvance() {
+        final TimingWheel wheel = new TimingWheel(10, 8, 1000);
+        assertFalse( wheel.schedule(1005) ); // already due
+        assertTrue( wheel.schedule(1020) );
+        assertTrue( wheel.schedule(1025) );
+        assertTrue( wheel.schedule(1050) );
+        assertEquals( 3, wheel.getPending() );
+
+        assertEquals( 0, wheel.advance(1019) );
+        assertEquals( 2, wheel.advance(1020) );
+        assertEquals( 0, wheel.advance(1049) );
+        assertEquals( 1, wheel.advance(1055) );
+        assertEquals( 0, wheel.getPending() );
+    }
+
+    @Test
+    public void cascadesOverflowDeadlines() {
+        final long start = 1000;
+        final TimingWheel wheel = new TimingWheel(10, 4, start); // spans 40, 160, 640 ...
+        final long[] deadlines = { 1035, 1090, 1170, 1555, 2345, 9999 };
+        for ( final long deadline : deadlines ) assertTrue( wheel.schedule(deadline) );
+
+        int expired = 0;
+        for ( long now = start; now <= 10000; now += 10 ) {
+            final int count = wheel.advance(now);
+            for ( int i = 0; i < count; i++ ) {
+                // each deadline expires within it's tick
+                final long deadline = deadlines[expired++];
+                assertTrue( "expired " + deadline + " at " + now, now >= deadline - deadline % 10 );
+                assertTrue( "expired " + deadline + " at " + now, now < deadline + 10 );
+            }
+        }
+        assertEquals( deadlines.length, expired );
+        assertEquals( 0, wheel.getPending() );
+    }
+
+    @Test
+    public void schedulerWakesUpWhenJobIsDue() throws InterruptedException {
+        final JobScheduler scheduler = new JobScheduler(null, 10, 1000, 2);
+        scheduler.start("job-scheduler-test");
+        try {
+            final long start = System.currentTimeMillis();
+            scheduler.schedule(start + 100);
+            assertFalse( scheduler.await(20) );
+            assertTrue( scheduler.await(1000) );
+            assertTrue( System.currentTimeMillis() - start >= 90 );
+
+            scheduler.schedule(start); // due (wakes right away)
+            assertTrue( scheduler.await(10) );
+        }
+        finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void schedulerLoadsRunTimesAhead() throws InterruptedException {
+        final long[] window = new long[2];
+        final JobScheduler scheduler = new JobScheduler(null, 10, 60 * 1000, 1);
+        scheduler.setLoader(new JobScheduler.Loader() {
+            public long[] load(long from, long to) {
+                window[0] = from; window[1] = to;
+                return new long[] { System.currentTimeMillis() + 50, System.currentTimeMillis() + 100 };
+            }
+        });
+        assertFalse( scheduler.setLoader(null) );
+
+        final long start = System.currentTimeMillis();
+        scheduler.start("job-scheduler-test");
+        try {
+            assertTrue( scheduler.await(1000) );
+            // the first load starts at the current time (not 0 - a full scan)
+            assertTrue( window[0] >= start && window[0] <= System.currentTimeMillis() );
+            assertEquals( window[0] + 60 * 1000, window[1] );
+            // the second (loaded) job is due after the first one (not in the same tick)
+            assertTrue( scheduler.await(1000) );
+            assertFalse( scheduler.await(10) );
+        }
+        finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void schedulerLoadsIncrementallyEveryLoadInterval() throws InterruptedException {
+        final int[] loads = new int[1];
+        final JobScheduler scheduler = new JobScheduler(null, 10, 60 * 1000, 1);
+        assertEquals( 30 * 1000, scheduler.getLoadInterval() );
+        scheduler.setLoadInterval(50);
+        scheduler.setLoadInterval(5000); // only lowered
+        assertEquals( 50, scheduler.getLoadInterval() );
+        scheduler.setLoader(new JobScheduler.Loader() {
+            public long[] load(long from, long to) {
+                synchronized (loads) { loads[0]++; }
+                return null;
+            }
+        });
+        scheduler.start("job-scheduler-test");
+        try {
+            Thread.sleep(300);
+        }
+        finally {
+            scheduler.stop();
+        }
+        synchronized (loads) { assertTrue( "loads: " + loads[0], loads[0] >= 3 ); }
+    }
+
+}
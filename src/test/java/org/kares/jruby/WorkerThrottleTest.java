@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012 Karol Bucek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kares.jruby;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author kares <self_AT_kares_DOT_org>
+ */
+public class WorkerThrottleTest {
+
+    @Test
+    public void allowsAllWorkersWhileLatencyIsOnTarget() throws InterruptedException {
+        final WorkerThrottle throttle = new WorkerThrottle(null, 1000, 0, 10, 2);
+        throttle.requestCompleted(throttle.requestStarted());
+        assertTrue( throttle.acquire(0) );
+        assertTrue( throttle.acquire(0) );
+        assertFalse( throttle.acquire(0) ); // 2 workers at most
+        throttle.release();
+        assertTrue( throttle.acquire(0) );
+        assertFalse( throttle.isThrottled() );
+    }
+
+    @Test
+    public void pausesWorkersWhileRequestsAreSlow() throws InterruptedException {
+        final WorkerThrottle throttle = new WorkerThrottle(null, 10, 0, 50, 2);
+        final long started = throttle.requestStarted() - 20 * 1000 * 1000; // 20ms ago
+        throttle.requestCompleted(started);
+        Thread.sleep(60);
+        throttle.requestCompleted(throttle.requestStarted() - 20 * 1000 * 1000);
+        assertEquals( 1, throttle.getPermits() );
+        Thread.sleep(60);
+        throttle.requestCompleted(throttle.requestStarted() - 20 * 1000 * 1000);
+        assertEquals( 0, throttle.getPermits() );
+        assertFalse( throttle.acquire(10) );
+
+        // no (slow) requests within a window - workers resume
+        assertTrue( throttle.acquire(200) );
+        assertTrue( throttle.isThrottled() );
+    }
+
+    @Test
+    public void throttlesOnTooManyInFlightRequests() throws InterruptedException {
+        final WorkerThrottle throttle = new WorkerThrottle(null, 1000, 1, 20, 1);
+        throttle.requestStarted(); throttle.requestStarted();
+        Thread.sleep(30);
+        assertFalse( throttle.acquire(0) );
+        assertEquals( 2, throttle.getInFlight() );
+        assertEquals( 0, throttle.getPermits() );
+    }
+
+}
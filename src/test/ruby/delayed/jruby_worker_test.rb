@@ -81,6 +81,23 @@ module Delayed
       assert_true worker.stop?
     end
 
+    test "shutdown batch stops workers and clears all locks" do
+      worker1 = new_worker; worker1.name = 'worker1'
+      worker2 = new_worker; worker2.name = 'worker2'
+      batch = Delayed::JRubyWorker::ShutdownBatch.new
+      batch.add(worker1); batch.add(worker2)
+
+      job_class = stub_Delayed_Job(:mock) # Delayed::Job
+      job_class.expects(:clear_locks!).with('worker1').once
+      job_class.expects(:clear_locks!).with('worker2').once
+
+      batch.shutdown [ 'worker1', 'worker2' ]
+      assert worker1.stop?
+      assert worker2.stop?
+
+      worker1.exit! # locks already cleared
+    end
+
     test "name is made of [prefix] host pid and thread" do
       worker = nil; lock = java.lang.Object.new
       thread = java.lang.Thread.new do
@@ -128,6 +145,115 @@ module Delayed
       worker.start
     end
 
+    test "does not reserve jobs of queues and classes over their rate limit" do
+      scope = mock('scope')
+      job_class = Class.new do
+        def self.ready_to_run(worker_name, max_run_time); @scope end
+        def self.column_names; [ 'handler', 'queue' ] end
+      end
+      job_class.instance_variable_set :@scope, scope
+      assert Delayed::ReserveFilter.install(job_class)
+
+      assert_equal scope, job_class.ready_to_run('worker', 60) # not filtering
+      scope.expects(:where).with('queue IS NULL OR queue NOT IN (?)', [ 'api' ]).returns scope
+      scope.expects(:where).with('handler NOT LIKE ?', "--- !ruby/object:GeocodeJob\n%").returns scope
+      scope.stubs(:where).with('handler NOT LIKE ?', Not(equals("--- !ruby/object:GeocodeJob\n%"))).returns scope
+      Delayed::ReserveFilter.excluding([ 'api' ], [ 'GeocodeJob', 'User#notify' ]) do
+        assert_equal scope, job_class.ready_to_run('worker', 60)
+      end
+      assert_nil Thread.current[:delayed_reserve_filter]
+    end
+
+    test "deferred (rate limited) job stops working off jobs" do
+      worker = new_worker
+      worker.stubs(:circuit_breaker).returns nil
+      worker.stubs(:job_quarantine).returns nil
+      worker.stubs(:worker_throttle).returns nil
+      worker.stubs(:job_scheduler).returns nil
+      worker.stubs(:rate_limits).returns limits = mock('limits')
+      limits.stubs(:tryAcquire).returns 1000
+      job = mock('job'); job.stubs(:name).returns 'GeocodeJob'
+      job.stubs(:payload_object).returns Object.new
+      job.expects(:run_at=); job.expects(:locked_at=); job.expects(:locked_by=)
+      job.expects(:save!)
+      job.expects(:invoke_job).never
+      assert_nil worker.run(job)
+    end
+
+    test "throttled worker waits for a permit before reserving a job" do
+      worker = new_worker
+      worker.stubs(:worker_throttle).returns throttle = mock('throttle')
+      throttle.expects(:acquire).twice.returns(false, true)
+      job_class = stub_Delayed_Job # Delayed::Job
+      job_class.expects(:reserve).once.returns nil
+      throttle.expects(:release).once # no job reserved
+      assert_nil worker.send(:reserve_and_run_one_job)
+    end
+
+    test "does not reserve jobs of quarantined classes" do
+      worker = new_worker
+      worker.stubs(:worker_throttle).returns nil
+      worker.stubs(:rate_limits).returns nil
+      worker.stubs(:job_quarantine).returns quarantine = mock('quarantine')
+      quarantine.stubs(:getQuarantined).returns [ 'PoisonJob' ].to_java(:string)
+      job_class = stub_Delayed_Job # Delayed::Job
+      job_class.expects(:reserve).once.returns do
+        assert_equal [ nil, [ 'PoisonJob' ] ], Thread.current[:delayed_reserve_filter]
+        nil
+      end
+      assert_nil worker.send(:reserve_and_run_one_job)
+    end
+
+    test "quarantined job is deferred (not counted as a success)" do
+      worker = new_worker
+      worker.stubs(:job_quarantine).returns quarantine = mock('quarantine')
+      quarantine.stubs(:getQuarantineTime).returns 60000
+      worker.stubs(:job_scheduler).returns nil
+      job = mock('job'); job.stubs(:name).returns 'PoisonJob'
+      job.stubs(:payload_object).returns Object.new
+      job.expects(:run_at=); job.expects(:locked_at=); job.expects(:locked_by=)
+      job.expects(:save!)
+      job.expects(:invoke_job).never
+      assert_nil worker.run(job)
+    end
+
+    test "scheduler loader queries run_at and id ranges matching worker filters" do
+      job_class = SchedulingScope.new; job_class.max_ids = [ 10, 12 ]
+      loader = Scheduling::Loader.new(job_class)
+      loader.add_filter [ 1, 5, [ 'mail' ] ]
+      loader.add_filter [ 0, 3, [ 'api' ] ]
+      unlocked = [ { :locked_at => nil, :failed_at => nil } ]
+
+      loader.load(1000, 61000) # first load - no (full) scan for ids
+      assert_equal [ [ :maximum ],
+        [ unlocked, [ 'priority >= ?', 0 ], [ 'priority <= ?', 5 ], [ { :queue => [ 'mail', 'api' ] } ],
+          [ 'run_at > ? AND run_at <= ?', Time.at(1), Time.at(61) ] ] ], job_class.queries
+
+      job_class.queries.clear
+      loader.load(61000, 62000)
+      assert_equal [ [ 'id > ?', 10 ], :maximum ], job_class.queries[0]
+      assert_equal [ 'run_at > ? AND run_at <= ?', Time.at(61), Time.at(62) ], job_class.queries[1].last
+      assert_equal [ [ 'id > ? AND id <= ?', 10, 12 ], [ 'run_at <= ?', Time.at(61) ] ], job_class.queries[2].last(2)
+      assert_equal 3, job_class.queries.size
+    end
+
+    test "scheduler loader does not filter if a worker has no filters" do
+      loader = Scheduling::Loader.new(job_class = SchedulingScope.new)
+      loader.add_filter [ 1, nil, [ 'mail' ] ]
+      loader.add_filter [ nil, nil, [] ]
+      loader.load(1000, 2000)
+      assert_equal [ [ { :locked_at => nil, :failed_at => nil } ],
+        [ 'run_at > ? AND run_at <= ?', Time.at(1), Time.at(2) ] ], job_class.queries.last
+    end
+
+    test "idle wait on the scheduler is capped at the sleep delay" do
+      worker = new_worker
+      worker.stubs(:job_scheduler).returns scheduler = mock('scheduler')
+      scheduler.stubs(:getWindow).returns 60000
+      scheduler.expects(:await).with(5000).returns false
+      worker.sleep(5)
+    end
+
     test "replaces class options with thread-local ones" do
       worker = nil; failure = nil; lock = java.lang.Object.new
       exit_on_cmplt = Delayed::Worker.respond_to?(:exit_on_complete)
@@ -176,6 +302,40 @@ module Delayed
       assert_equal nil, Delayed::Worker.exit_on_complete if exit_on_cmplt
     end
 
+    test "worker reads options from a frozen snapshot" do
+      worker = nil; failure = nil; lock = java.lang.Object.new
+      thread = java.lang.Thread.new do
+        begin
+          worker = new_worker :sleep_delay => 7, :read_ahead => 3
+          assert_equal 7, worker.sleep_delay
+          assert_equal 3, worker.read_ahead
+
+          begin # class readers (used by DJ) return the snapshot as well
+            Delayed::Worker.max_priority = 42
+            assert_equal worker.max_priority, Delayed::JRubyWorker.max_priority
+          ensure
+            Delayed::Worker.max_priority = nil
+          end
+
+          Delayed::JRubyWorker.sleep_delay = 9
+          assert_equal 9, Delayed::JRubyWorker.sleep_delay
+          assert_equal 7, worker.sleep_delay
+        rescue => e
+          failure = e
+        ensure
+          lock.synchronized { lock.notify }
+        end
+      end
+      thread.start
+
+      lock.synchronized { lock.wait }
+
+      raise failure unless failure.nil?
+
+      assert_equal 5, Delayed::Worker.sleep_delay
+      assert_equal 5, Delayed::JRubyWorker.sleep_delay
+    end
+
     begin
 
       context "with backend" do
@@ -242,6 +402,29 @@ module Delayed
       Delayed::JRubyWorker.new options
     end
 
+    # records queries of a Delayed::Job (ActiveRecord) class - chained scopes
+    class SchedulingScope
+      attr_accessor :max_ids
+      attr_reader :queries
+
+      def initialize(root = nil, chain = [])
+        @root = root || self; @chain = chain; @queries = []
+      end
+
+      def connection_pool; self end
+      def with_connection; yield end
+      def column_names; [ 'queue' ] end
+
+      def where(*args); SchedulingScope.new(@root, @chain + [ args ]) end
+
+      def select(*args); @root.queries << @chain; [] end
+
+      def maximum(column)
+        @root.queries << ( @chain + [ :maximum ] )
+        ( @root.max_ids || [] ).shift
+      end
+    end
+
     def stub_Delayed_Job(mock = false)
       Delayed.const_set :JobReal, Delayed::Job if Delayed.const_defined?(:Job)
       Delayed.const_set :Job, const = ( mock ? mock('Delayed::Job') : stub(:clear_locks! => nil) )
@@ -0,0 +1,101 @@
+require File.expand_path('test_helper', File.dirname(__FILE__) + '/..')
+require 'delayed/jruby_worker'
+require 'delayed/payload_codec'
+
+module Delayed
+  class PayloadCodecTest < Test::Unit::TestCase
+
+    class TestJob
+      attr_reader :to, :args
+      def initialize(to, args); @to = to; @args = args end
+      def perform; end
+    end
+
+    class HandlerJob
+      attr_accessor :handler
+      def payload_object; :original end
+      include PayloadCodec::Job
+    end
+
+    setup do
+      @format = PayloadCodec.format
+      PayloadCodec.cache.clear
+    end
+
+    teardown do
+      PayloadCodec.format = @format
+    end
+
+    test "writes yaml by default" do
+      job = HandlerJob.new
+      job.payload_object = TestJob.new('foo@bar.com', [ 1 ])
+      assert_match /^--- !ruby\/object/, job.handler
+    end
+
+    [ :marshal, :json ].each do |format|
+      test "round-trips #{format} payload" do
+        PayloadCodec.format = format
+        job = HandlerJob.new
+        job.payload_object = TestJob.new('foo@bar.com', [ 1, { 'a' => 'b' } ])
+        assert job.handler.start_with?("#{format}:")
+
+        loaded = HandlerJob.new; loaded.handler = job.handler
+        assert_equal 'foo@bar.com', loaded.payload_object.to
+        assert_equal [ 1, { 'a' => 'b' } ], loaded.payload_object.args
+      end
+    end
+
+    test "json falls back to yaml for non-native values" do
+      PayloadCodec.format = :json
+      job = HandlerJob.new
+      job.payload_object = TestJob.new('foo@bar.com', Object.new)
+      assert_match /^--- /, job.handler
+    end
+
+    class Record; end # stands for an ActiveRecord::Base
+
+    test "marshal falls back to yaml for payloads referring to records" do
+      PayloadCodec.format = :marshal
+      PayloadCodec.stubs(:record_types).returns [ Record ]
+      job = HandlerJob.new
+      job.payload_object = TestJob.new('foo@bar.com', [ { 'user' => Record.new } ])
+      assert_match /^--- /, job.handler
+    end
+
+    test "clearing the cache resets hits and misses" do
+      cache = PayloadCodec::Cache.new
+      cache.put 'a', 1; cache.get 'a'; cache.get 'b'
+      cache.clear
+      assert_equal 0, cache.hits
+      assert_equal 0, cache.misses
+    end
+
+    test "caches parsed yaml (returning copies)" do
+      handler = TestJob.new('foo@bar.com', [ 'x' ]).to_yaml
+      job1 = HandlerJob.new; job1.handler = handler
+      job2 = HandlerJob.new; job2.handler = handler
+
+      assert_equal 'foo@bar.com', job1.payload_object.to
+      assert_equal 'foo@bar.com', job2.payload_object.to
+      assert_not_same job1.payload_object, job2.payload_object
+      assert_equal 1, PayloadCodec.cache.hits
+    end
+
+    test "does not cache record handlers" do
+      job = HandlerJob.new; job.handler = "--- LOAD;User;1\n" # DJ 2.x record
+      assert_equal 'LOAD;User;1', job.payload_object
+      assert_equal 0, PayloadCodec.cache.size
+    end
+
+    test "cache evicts least recently used" do
+      cache = PayloadCodec::Cache.new(2)
+      cache.put 'a', 1; cache.put 'b', 2
+      cache.get 'a'
+      cache.put 'c', 3
+      assert_equal 2, cache.size
+      assert_nil cache.get('b')
+      assert_not_nil cache.get('a')
+    end
+
+  end
+end
@@ -58,6 +58,100 @@ module JRuby::Rack
       end
       
     end
+
+    test "async logger level does not change the target's level" do
+      require 'jruby/rack/worker/async_logger'
+      target = Logger.new(nil); target.level = Logger::INFO
+      logger = JRuby::Rack::Worker::AsyncLogger.new(target, async = mock('async'))
+      assert_equal Logger::INFO, logger.level
+
+      logger.level = Logger::WARN
+      assert_equal Logger::INFO, target.level
+      async.expects(:log).never
+      logger.info 'filtered'
+    end
+
+    test "async logger reads the target's level (unless set)" do
+      require 'jruby/rack/worker/async_logger'
+      target = Logger.new(nil); target.level = Logger::INFO
+      logger = JRuby::Rack::Worker::AsyncLogger.new(target, mock('async'))
+      target.level = Logger::ERROR
+      assert_equal Logger::ERROR, logger.level
+    end
+
+    test "async logger formats messages with the time and progname of the call" do
+      require 'jruby/rack/worker/async_logger'; require 'stringio'
+      target = Logger.new(out = StringIO.new); target.progname = 'app'
+      target.formatter = lambda { |severity, time, progname, msg| "#{severity} #{time.to_i} #{progname}: #{msg}\n" }
+      logger = JRuby::Rack::Worker::AsyncLogger.new(target, async = mock('async'))
+      line = nil
+      async.expects(:log).with { |sink, level, message, error| line = message; level == -1 }.returns true
+      logger.warn('worker') { 'hello' }
+      assert_equal "WARN #{Time.now.to_i} worker: hello\n", line
+    end
     
+    test "parallel map collects results (in order) from the executor" do
+      require 'jruby/rack/worker/parallel'
+      executor = org.kares.jruby.ParallelExecutor.new(2, 'parallel-test')
+      begin
+        JRuby::Rack::Worker.stubs(:parallel_executor).returns executor
+        JRuby::Rack::Worker.stubs(:parallel_connection_pool).returns nil
+        items = (1..100).map { |i| "item#{i}" }
+        results = JRuby::Rack::Worker.parallel_map(items) { |item| item }
+        assert_equal items, results
+        assert results.each_with_index.all? { |item, i| item.equal?(items[i]) }
+      ensure
+        executor.shutdown(1000)
+      end
+    end
+
+    test "parallel tasks use a (pooled) connection per item" do
+      require 'jruby/rack/worker/parallel'
+      executor = org.kares.jruby.ParallelExecutor.new(2, 'parallel-test')
+      begin
+        JRuby::Rack::Worker.stubs(:parallel_executor).returns executor
+        pool = Object.new
+        def pool.with_connection; @count = ( @count || 0 ) + 1; yield end
+        JRuby::Rack::Worker.stubs(:parallel_connection_pool).returns pool
+        JRuby::Rack::Worker.parallel_each([ 1, 2, 3 ]) { |i| i }
+        assert_equal [ 2, 4 ], JRuby::Rack::Worker.parallel_map([ 1, 2 ]) { |i| i * 2 }
+        assert_equal 5, pool.instance_variable_get(:@count)
+      ensure
+        executor.shutdown(1000)
+      end
+    end
+
+    test "connection pool check waits for ActiveRecord (to be loaded)" do
+      require 'jruby/rack/worker/connections'
+      JRuby::Rack::Worker.send(:class_variable_set, :@@connection_pool_checked, nil)
+      JRuby::Rack::Worker.stubs(:manager).returns manager = mock('manager')
+      JRuby::Rack::Worker.stubs(:connection_pool).returns nil
+      manager.expects(:getWorkerCount).never
+      assert_false JRuby::Rack::Worker.check_connection_pool!(mock('logger'))
+    end
+
+    test "connection pool gets checked once (per manager) counting the runtime's workers" do
+      require 'jruby/rack/worker/connections'
+      JRuby::Rack::Worker.send(:class_variable_set, :@@connection_pool_checked, nil)
+      JRuby::Rack::Worker.stubs(:manager).returns manager = mock('manager')
+      JRuby::Rack::Worker.stubs(:connection_pool).returns pool = mock('pool')
+      JRuby::Rack::Worker.stubs(:release_connections?).returns false
+      pool.stubs(:size).returns 2
+      manager.expects(:getWorkerCount).with(JRuby.runtime).once.returns 3
+      logger = mock('logger'); logger.expects(:warn).once.with { |msg| msg =~ /^3 worker thread\(s\)/ }
+      assert JRuby::Rack::Worker.check_connection_pool!(logger)
+      assert JRuby::Rack::Worker.check_connection_pool!(logger)
+    end
+
+    test "connection pool check does not warn while connections are released" do
+      require 'jruby/rack/worker/connections'
+      JRuby::Rack::Worker.stubs(:connection_pool).returns pool = mock('pool')
+      JRuby::Rack::Worker.stubs(:release_connections?).returns true
+      pool.stubs(:size).returns 2
+      logger = mock('logger'); logger.expects(:warn).never; logger.expects(:info).once
+      JRuby::Rack::Worker.check_connection_pool(3, logger)
+      JRuby::Rack::Worker.check_connection_pool(2, logger)
+    end
+
   end
 end
\ No newline at end of file
@@ -0,0 +1,94 @@
+require File.expand_path('test_helper', File.dirname(__FILE__) + '/..')
+require 'navvy'
+
+gem_spec = Gem.loaded_specs['navvy'] if defined? Gem
+puts "loaded gem 'navvy' '#{gem_spec.version.to_s}'" if gem_spec
+
+module Navvy
+  class Job # a (backend-less) stub, jobs get mocked
+    def self.limit; 100 end
+    def self.next(limit = self.limit); [] end
+    def self.cleanup; end
+  end unless defined? Navvy::Job
+end
+
+require 'navvy/jruby_worker'
+
+module Navvy
+  class JRubyWorkerTest < Test::Unit::TestCase
+
+    setup do
+      require 'logger'; require 'stringio'
+      Navvy.logger = Logger.new(StringIO.new) if Navvy.respond_to?(:logger=)
+    end
+
+    test "fetches a batch of jobs once for all workers" do
+      fetcher = Navvy::JRubyWorker::Fetcher.new(3)
+      job1, job2, job3 = new_job(1), new_job(2), new_job(3)
+      Navvy::Job.expects(:next).with(3).once.returns [ job1, job2, job3 ]
+
+      jobs = []
+      threads = 3.times.map { Thread.new { jobs << fetcher.next_job } }
+      threads.each(&:join)
+      assert_equal [ 1, 2, 3 ], jobs.map(&:id).sort
+      assert_equal 0, fetcher.size
+    end
+
+    test "does not hand out a claimed job fetched again" do
+      fetcher = Navvy::JRubyWorker::Fetcher.new(2)
+      job1, job2, job3 = new_job(1), new_job(2), new_job(3)
+      Navvy::Job.stubs(:next).returns([ job1 ]).then.returns([ job1, job2 ]).then.returns([ job1, job3 ])
+
+      assert_equal job1, fetcher.next_job # not yet done
+      assert_equal job2, fetcher.next_job
+      fetcher.done(job1)
+      assert_equal job1, fetcher.next_job
+    end
+
+    test "hands out jobs (of a batch) before fetching again" do
+      fetcher = Navvy::JRubyWorker::Fetcher.new(2)
+      job1, job2 = new_job(1), new_job(2)
+      Navvy::Job.expects(:next).once.returns [ job1, job2 ]
+
+      assert_equal job1, fetcher.next_job
+      assert_equal 1, fetcher.size
+      assert_equal job2, fetcher.next_job
+    end
+
+    test "does not fetch again for each idle worker" do
+      fetcher = Navvy::JRubyWorker::Fetcher.new(2)
+      Navvy::Worker.stubs(:sleep_time).returns 60
+      Navvy::Job.expects(:next).once.returns []
+
+      assert_nil fetcher.next_job
+      assert_nil fetcher.next_job
+    end
+
+    test "registers the at_exit hook once" do
+      Navvy::JRubyWorker.send(:class_variable_set, :@@at_exit, false)
+      Navvy::JRubyWorker.expects(:at_exit).once
+      2.times do
+        worker = Navvy::JRubyWorker.new(mock('fetcher')); worker.stop
+        worker.start
+      end
+    end
+
+    test "a started worker resets the exit flag" do
+      Navvy::JRubyWorker.stubs(:at_exit); Navvy::Job.stubs(:cleanup)
+      Navvy::JRubyWorker.exit!
+      worker = Navvy::JRubyWorker.new(mock('fetcher'))
+      assert worker.stop?
+
+      worker.stop; worker.start
+      assert_false Navvy::JRubyWorker.send(:class_variable_get, :@@exit)
+    end
+
+    private
+
+    def new_job(id)
+      job = stub("job-#{id}"); job.stubs(:id).returns id
+      job
+    end
+
+  end
+end
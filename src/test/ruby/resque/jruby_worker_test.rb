@@ -168,6 +168,13 @@ module Resque
       new_worker.prune_dead_workers
     end
 
+    test "known worker threads are the (live) threads of the manager" do
+      worker = new_worker
+      JRuby::Rack::Worker.stubs(:manager).returns manager = mock('manager')
+      manager.stubs(:getWorkerThreadNames).returns java.util.HashSet.new([ 'app-worker-1' ])
+      assert_equal [ 'app-worker-1' ], worker.worker_thread_ids
+    end
+
     test "registers a worker with the system" do
       worker = new_worker
       if RESQUE_2x
@@ -237,6 +244,140 @@ module Resque
       end
     end
 
+    test "unregisters idle workers (on shutdown) in a single pipeline" do
+      return if RESQUE_2x
+      worker1 = Resque::JRubyWorker.new('foo'); worker2 = Resque::JRubyWorker.new('bar')
+      Resque.stubs(:redis).returns redis = mock('redis')
+      redis.expects(:pipelined).once.yields
+      Resque::Worker.any_instance.expects(:unregister_worker).twice
+      Resque::JRubyWorker.stubs(:with_global_lock)
+      Resque::JRubyWorker.unregister_workers [ worker1, worker2 ]
+
+      worker1.unregister_worker # already unregistered (by the batch)
+    end
+
+    test "reserves a batch of jobs in one round-trip" do
+      worker = Resque::JRubyWorker.new('foo'); worker.batch_size = 3
+      Resque.stubs(:redis).returns redis = mock('redis')
+      redis.expects(:multi).once.returns [ [ '{"class":"A","args":[1]}', '{"class":"A","args":[2]}' ], 'OK' ]
+
+      job1 = worker.reserve; job2 = worker.reserve
+      assert_equal [1], job1.args
+      assert_equal [2], job2.args
+    end
+
+    test "writes done working along with the next job's working on" do
+      return if RESQUE_2x
+      worker = Resque::JRubyWorker.new('foo'); worker.batch_size = 3
+      worker.stubs(:rate_limits).returns nil; worker.stubs(:job_quarantine).returns nil
+      Resque.stubs(:redis).returns redis = mock('redis')
+      worker.stubs(:redis).returns redis
+      worker.stubs(:stats_batch).returns nil
+      worker.instance_variable_set :@reserved, [ Resque::Job.new('foo', 'class' => 'A', 'args' => [2]) ]
+      redis.expects(:pipelined).never
+      worker.done_working # pending
+
+      redis.expects(:pipelined).once.yields(pipe = mock('pipe'))
+      pipe.expects(:incrby).with('stat:processed', 1)
+      pipe.expects(:incrby).with("stat:processed:#{worker}", 1)
+      pipe.expects(:set).with { |key, data| key == "worker:#{worker}" && data.include?('"args":[1]') }
+      worker.working_on Resque::Job.new('foo', 'class' => 'A', 'args' => [1])
+    end
+
+    test "writes done working right away once the batch drained" do
+      return if RESQUE_2x
+      worker = Resque::JRubyWorker.new('foo'); worker.batch_size = 3
+      worker.stubs(:rate_limits).returns nil; worker.stubs(:job_quarantine).returns nil
+      worker.instance_variable_set :@reserved, []
+      Resque::Worker.any_instance.expects(:done_working).once
+      worker.done_working
+      assert_nil worker.instance_variable_get(:@done_working)
+    end
+
+    test "skips quarantined jobs without re-pushing them" do
+      worker = Resque::JRubyWorker.new('foo')
+      worker.stubs(:rate_limits).returns nil
+      worker.stubs(:job_quarantine).returns quarantine = mock('quarantine')
+      quarantine.stubs(:getQuarantined).returns [ 'Poison' ].to_java(:string)
+      Resque.stubs(:redis).returns redis = mock('redis')
+      redis.expects(:lrange).with('queue:foo', 0, 49).returns [ '{"class":"Poison","args":[1]}', '{"class":"A","args":[2]}' ]
+      redis.expects(:lrem).with('queue:foo', 1, '{"class":"A","args":[2]}').returns 1
+      redis.expects(:rpush).never; redis.expects(:lpop).never
+
+      job = worker.reserve
+      assert_equal 'A', job.payload['class']
+      assert_equal [2], job.args
+    end
+
+    test "re-queues reserved jobs (to the queue head) on stop" do
+      worker = Resque::JRubyWorker.new('foo'); worker.batch_size = 3
+      Resque.stubs(:redis).returns redis = mock('redis')
+      redis.stubs(:multi).returns [ [ '{"class":"A","args":[1]}', '{"class":"A","args":[2]}', '{"class":"A","args":[3]}' ], 'OK' ]
+      worker.reserve
+
+      redis.stubs(:pipelined).yields
+      seq = sequence('lpush')
+      redis.expects(:lpush).with('queue:foo', '{"class":"A","args":[3]}').in_sequence(seq)
+      redis.expects(:lpush).with('queue:foo', '{"class":"A","args":[2]}').in_sequence(seq)
+      worker.send(:requeue_batch)
+    end
+
+    test "shutdown batch stops the stats flusher" do
+      return if RESQUE_2x
+      batch = Resque::JRubyWorker::StatsBatch.new(60, 100)
+      Resque::JRubyWorker.stubs(:stats_batch).returns batch
+      flusher = batch.start
+      Resque::JRubyWorker::ShutdownBatch.new.shutdown []
+      flusher.join(1)
+      assert ! flusher.alive?
+    end
+
+    test "coalesces stats into a single pipelined write" do
+      return if RESQUE_2x
+      batch = Resque::JRubyWorker::StatsBatch.new(60, 3)
+      Resque.stubs(:redis).returns redis = mock('redis')
+      redis.expects(:pipelined).never
+      batch.incr('processed'); batch.incr('processed')
+
+      redis.expects(:pipelined).once.yields
+      redis.expects(:incrby).with('stat:processed', 2)
+      redis.expects(:incrby).with('stat:failed', 1)
+      batch.incr('failed')
+      assert_equal 0, batch.size
+    end
+
+    test "keeps stats and heartbeats of a failed flush" do
+      return if RESQUE_2x
+      batch = Resque::JRubyWorker::StatsBatch.new(60, 100)
+      Resque.stubs(:redis).returns redis = mock('redis')
+      batch.incr('processed'); batch.incr('processed'); batch.heartbeat('w1', 'T1')
+      redis.expects(:pipelined).raises Errno::ECONNREFUSED
+      assert_raise(Errno::ECONNREFUSED) { batch.flush }
+      assert_equal 3, batch.size
+
+      redis.expects(:pipelined).once.yields
+      redis.expects(:incrby).with('stat:processed', 2)
+      redis.expects(:hset).with('workers:heartbeat', 'w1', 'T1')
+      batch.flush
+      assert_equal 0, batch.size
+    end
+
+    test "flushes pending stats on the interval" do
+      return if RESQUE_2x
+      batch = Resque::JRubyWorker::StatsBatch.new(0.05, 100)
+      Resque.stubs(:redis).returns redis = mock('redis')
+      redis.stubs(:pipelined).yields
+      redis.expects(:incrby).with('stat:processed', 1)
+      batch.incr('processed')
+      begin
+        batch.start
+        10.times { sleep 0.05; break if batch.size == 0 }
+        assert_equal 0, batch.size
+      ensure
+        batch.stop
+      end
+    end
+
     test "split worker id" do
       assert_equal [ 'host', '42', nil, '*' ],
         Resque::JRubyWorker.split_id("host:42:*")
@@ -267,6 +408,19 @@ module Resque
       end
     end
 
+    test "logs per job messages at debug level with summary logging" do
+      worker = new_worker
+      worker.stubs(:summary_logging?).returns true
+      worker.logger.expects(:debug).once.with('got: (Job{default} | Object | [])')
+      worker.log 'got: (Job{default} | Object | [])'
+      if worker.respond_to?(:log_with_severity) # Resque >= 1.26 (Resque.logger)
+        worker.expects(:log_with_severity_message).with(:debug, 'done: (Job{default} | Object | [])')
+        worker.expects(:log_with_severity_message).with(:info, 'Starting')
+        worker.log_with_severity :info, 'done: (Job{default} | Object | [])'
+        worker.log_with_severity :info, 'Starting'
+      end
+    end
+
     test "returns a logger instance" do
       worker = new_worker
       assert_kind_of Logger, worker.logger